@@ -20,7 +20,11 @@
 package org.magdaaproject.analysis.rhizome;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Map;
+
+import javax.management.JMException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,15 +35,28 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.magdaaproject.analysis.rhizome.tasks.AbstractTask;
 import org.magdaaproject.analysis.rhizome.tasks.BatchImport;
 import org.magdaaproject.analysis.rhizome.tasks.BundlesOverTime;
+import org.magdaaproject.analysis.rhizome.tasks.ClockSkew;
 import org.magdaaproject.analysis.rhizome.tasks.CreateTable;
+import org.magdaaproject.analysis.rhizome.tasks.DeviceOverlap;
+import org.magdaaproject.analysis.rhizome.tasks.DeviceStatistics;
 import org.magdaaproject.analysis.rhizome.tasks.ImportData;
+import org.magdaaproject.analysis.rhizome.tasks.MeshReplicas;
+import org.magdaaproject.analysis.rhizome.tasks.PlanImport;
+import org.magdaaproject.analysis.rhizome.tasks.PropagationGraph;
+import org.magdaaproject.analysis.rhizome.tasks.PropagationLatency;
+import org.magdaaproject.analysis.rhizome.tasks.ResilienceSimulation;
 import org.magdaaproject.analysis.rhizome.tasks.StatisticalAnalysis;
 import org.magdaaproject.analysis.rhizome.tasks.TaskException;
 import org.magdaaproject.analysis.rhizome.tasks.UpdateOrigin;
 import org.magdaaproject.analysis.rhizome.tasks.ValidateProperties;
+import org.magdaaproject.utils.GraphWriter;
+import org.magdaaproject.utils.StatementProfiler;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskMetrics;
+import org.magdaaproject.utils.TaskPhase;
 
 /**
  * main entry point to the Rhizome Analysis application
@@ -74,7 +91,7 @@ public class RhizomeAnalysis {
 	 * list of valid task types
 	 */
 
-	public static final String[] TASK_TYPES = {"create-table", "import-data", "batch-import", "update-origin", "statistics", "chart-bundles-over-time"};
+	public static final String[] TASK_TYPES = {"create-table", "import-data", "batch-import", "plan-import", "update-origin", "statistics", "device-statistics", "chart-bundles-over-time", "device-overlap", "resilience-sim", "propagation-graph", "latency-matrix", "chart-mesh-replicas", "clock-skew"};
 
 	/*
 	 * private class level variables
@@ -180,6 +197,10 @@ public class RhizomeAnalysis {
 			doBatchImportTask();
 		}
 		
+		if(taskType.equals("plan-import") == true) {
+			doPlanImportTask();
+		}
+		
 		if(taskType.equals("update-origin") == true) {
 			doUpdateOriginTask();
 		}
@@ -188,9 +209,37 @@ public class RhizomeAnalysis {
 			doStatisticsTask();
 		}
 		
+		if(taskType.equals("device-statistics") == true) {
+			doDeviceStatisticsTask();
+		}
+		
 		if(taskType.equals("chart-bundles-over-time") == true) {
 			doBundlesOverTimeTask();
 		}
+		
+		if(taskType.equals("device-overlap") == true) {
+			doDeviceOverlapTask();
+		}
+		
+		if(taskType.equals("resilience-sim") == true) {
+			doResilienceSimulationTask();
+		}
+		
+		if(taskType.equals("propagation-graph") == true) {
+			doPropagationGraphTask();
+		}
+		
+		if(taskType.equals("latency-matrix") == true) {
+			doLatencyMatrixTask();
+		}
+		
+		if(taskType.equals("chart-mesh-replicas") == true) {
+			doMeshReplicasTask();
+		}
+		
+		if(taskType.equals("clock-skew") == true) {
+			doClockSkewTask();
+		}
 	}
 
 	/*
@@ -205,10 +254,18 @@ public class RhizomeAnalysis {
 			printCliHelp("ERROR: the table name is required");
 		}
 
-		CreateTable createTableTask = new CreateTable(config, tableName);
+		// requested profile of table
+		String profile = cmd.getOptionValue("profile");
+		
+		if(profile != null && StringUtils.isInArray(profile, CreateTable.TABLE_PROFILES) == false) {
+			printCliHelp("ERROR: unrecognised table profile");
+		}
+		
+		CreateTable createTableTask = new CreateTable(config, tableName, profile);
 
 		//create the table
 		try {
+			startMetrics(createTableTask);
 			createTableTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR: unbable to create the table:" + "\n" + e.getMessage());
@@ -264,6 +321,7 @@ public class RhizomeAnalysis {
 		
 		//undertake the task
 		try {
+			startMetrics(importDataTask);
 			importDataTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR: unable to complete data import:" + "\n" + e.getMessage());
@@ -306,20 +364,92 @@ public class RhizomeAnalysis {
 			printCliHelp("ERROR: unable to access the specified directory");
 		}
 		
-		BatchImport batchImportTask = new BatchImport(config, tableName, inputFile);
+		if(cmd.hasOption("distributed") == true && cmd.hasOption("watch") == true) {
+			printCliHelp("ERROR: the -distributed and -watch options can't be used together");
+		}
+		
+		// optional report of the databases that weren't imported
+		File reportFile = null;
+		
+		if(StringUtils.isEmpty(cmd.getOptionValue("output")) == false) {
+			reportFile = new File(cmd.getOptionValue("output"));
+		}
+		
+		BatchImport batchImportTask = new BatchImport(config, tableName, inputFile, reportFile, getThreadCount(), cmd.hasOption("distributed"), cmd.hasOption("watch"));
 		
 		//undertake the task
 		try {
+			startMetrics(batchImportTask);
 			batchImportTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR during data import:" + "\n" + e.getMessage());
 			System.exit(-1);
 		}
 		
+		// summarise the import
+		System.out.println("Imported: " + batchImportTask.getImportedCount() + " rhizome databases");
+		System.out.println("Skipped, already imported: " + batchImportTask.getSkippedCount() + " rhizome databases");
+		System.out.println("Not imported: " + batchImportTask.getFailures().size() + " rhizome databases");
+		
+		for(Map.Entry<File, String> failure : batchImportTask.getFailures().entrySet()) {
+			System.out.println(" " + failure.getKey().getAbsolutePath() + ": " + failure.getValue());
+		}
+		
+		if(batchImportTask.getFailures().size() > 0) {
+			System.err.println("ERROR: " + batchImportTask.getTatalCount() + " records were created, but some rhizome databases could not be imported, run the task again once they are replaced to import them");
+			System.exit(-1);
+		}
+		
 		System.out.println("SUCCESS: a total of " + batchImportTask.getTatalCount() + " records have been created");
 		System.exit(0);
 	}
 
+	/*
+	 * undertake the plan import task
+	 */
+	private static void doPlanImportTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// input file
+		String inputPath = cmd.getOptionValue("dataset");
+		
+		if(StringUtils.isEmpty(inputPath) == true) {
+			printCliHelp("ERROR: the path to the dataset is required");
+		}
+		
+		File inputFile = new File(inputPath);
+		
+		if(inputFile.isDirectory() == false || inputFile.canRead() == false) {
+			printCliHelp("ERROR: unable to access the specified directory");
+		}
+		
+		// optional report of each database
+		File reportFile = null;
+		
+		if(StringUtils.isEmpty(cmd.getOptionValue("output")) == false) {
+			reportFile = new File(cmd.getOptionValue("output"));
+		}
+		
+		PlanImport planImportTask = new PlanImport(config, tableName, inputFile, reportFile, getThreadCount());
+		
+		//undertake the task
+		try {
+			startMetrics(planImportTask);
+			planImportTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to plan the import:" + "\n" + e.getMessage());
+			System.exit(-1);
+		}
+		
+		System.exit(0);
+	}
+	
 	/*
 	 * undertake the update origin task
 	 */
@@ -346,10 +476,11 @@ public class RhizomeAnalysis {
 			printCliHelp("ERROR: unable to access the specified directory");
 		}
 		
-		UpdateOrigin updateOriginTask = new UpdateOrigin(config, tableName, inputFile);
+		UpdateOrigin updateOriginTask = new UpdateOrigin(config, tableName, inputFile, getThreadCount());
 		
 		//undertake the task
 		try {
+			startMetrics(updateOriginTask);
 			updateOriginTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR: during data import:" + "\n" + e.getMessage());
@@ -379,10 +510,15 @@ public class RhizomeAnalysis {
 			printCliHelp("ERROR: the table name is required");
 		}
 		
-		StatisticalAnalysis statisticalAnalysisTask = new StatisticalAnalysis(config, tableName); 
+		if(cmd.hasOption("approximate") == true && cmd.hasOption("parallel") == true) {
+			printCliHelp("ERROR: the approximate and parallel options cannot be combined");
+		}
+		
+		StatisticalAnalysis statisticalAnalysisTask = new StatisticalAnalysis(config, tableName, cmd.hasOption("corrected"), cmd.hasOption("approximate"), cmd.hasOption("parallel"), getThreadCount()); 
 		
 		// undertake the task
 		try {
+			startMetrics(statisticalAnalysisTask);
 			statisticalAnalysisTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR: unable to complete statistical analysis:" + "\n" + e.getMessage());
@@ -399,6 +535,54 @@ public class RhizomeAnalysis {
 		System.exit(0);	
 	}
 	
+	/*
+	 * undertake the statistics of each device
+	 */
+	private static void doDeviceStatisticsTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// output file
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(StringUtils.isEmpty(outputPath) == true) {
+			printCliHelp("ERROR: the path to the output file is required");
+		}
+		
+		File outputFile = new File(outputPath);
+		
+		if(outputFile.exists() == true) {
+			printCliHelp("ERROR: the specified output file already exists");
+		}
+		
+		DeviceStatistics deviceStatisticsTask = new DeviceStatistics(config, tableName, outputFile, cmd.hasOption("corrected"), getThreadCount());
+		
+		// undertake the task
+		try {
+			startMetrics(deviceStatisticsTask);
+			deviceStatisticsTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete the device statistics:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				deviceStatisticsTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.out.println("SUCCESS: the specified output file has been created");
+		
+		System.exit(0);	
+	}
+	
 //	/*
 //	 * undertake the basic graph task
 //	 * 
@@ -487,10 +671,11 @@ public class RhizomeAnalysis {
 			printCliHelp("ERROR: the specified output file already exists");
 		}
 		
-		BundlesOverTime bundlesOverTimeTask = new BundlesOverTime(config, tableName, outputFile);
+		BundlesOverTime bundlesOverTimeTask = new BundlesOverTime(config, tableName, outputFile, cmd.hasOption("corrected"), cmd.hasOption("parallel"), getThreadCount());
 		
 		// undertake the task
 		try {
+			startMetrics(bundlesOverTimeTask);
 			bundlesOverTimeTask.doTask();
 		} catch (TaskException e) {
 			System.err.println("ERROR: unable to complete file output creation:" + "\n" + e.getMessage());
@@ -510,6 +695,388 @@ public class RhizomeAnalysis {
 	}
 	
 	
+	/*
+	 * undertake the device overlap matrix
+	 */
+	private static void doDeviceOverlapTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// output file
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(StringUtils.isEmpty(outputPath) == true) {
+			printCliHelp("ERROR: the path to the output file is required");
+		}
+		
+		File outputFile = new File(outputPath);
+		
+		if(outputFile.exists() == true) {
+			printCliHelp("ERROR: the specified output file already exists");
+		}
+		
+		DeviceOverlap deviceOverlapTask = new DeviceOverlap(config, tableName, outputFile, getThreadCount());
+		
+		// undertake the task
+		try {
+			startMetrics(deviceOverlapTask);
+			deviceOverlapTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete the device overlap matrix:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				deviceOverlapTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.out.println("SUCCESS: the specified output file has been created");
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * undertake the resilience simulation
+	 */
+	private static void doResilienceSimulationTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		ResilienceSimulation resilienceSimulationTask = new ResilienceSimulation(config, tableName, 
+				getIntegerOption("removals", "maximum number of removed devices"), 
+				getIntegerOption("samples", "number of samples"), 
+				getThreadCount());
+		
+		// undertake the task
+		try {
+			startMetrics(resilienceSimulationTask);
+			resilienceSimulationTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete the resilience simulation:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				resilienceSimulationTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * undertake the propagation graph task
+	 */
+	private static void doPropagationGraphTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// output file
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(StringUtils.isEmpty(outputPath) == true) {
+			printCliHelp("ERROR: the path to the output file is required");
+		}
+		
+		File outputFile = new File(outputPath);
+		
+		if(outputFile.exists() == true) {
+			printCliHelp("ERROR: the specified output file already exists");
+		}
+		
+		// requested sync window
+		String syncWindow = cmd.getOptionValue("window");
+		
+		Long syncWindowAsLong = null;
+		
+		if(StringUtils.isEmpty(syncWindow) == false) {
+			
+			try {
+				syncWindowAsLong = Long.parseLong(syncWindow);
+			} catch(NumberFormatException e) {
+				printCliHelp("ERROR: unable to parse the requested syncWindow");
+			}
+		}
+		
+		if(GraphWriter.isSupported(outputFile) == false) {
+			printCliHelp("ERROR: the output file must have a .dot, .gv, .graphml or .gexf extension, optionally followed by .gz");
+		}
+		
+		// requested type of edges
+		String edgeType = cmd.getOptionValue("edges");
+		
+		if(edgeType != null && StringUtils.isInArray(edgeType, PropagationGraph.EDGE_TYPES) == false) {
+			printCliHelp("ERROR: unrecognised edge type");
+		}
+		
+		PropagationGraph propagationGraphTask = new PropagationGraph(config, tableName, outputFile, syncWindowAsLong, edgeType); 
+		
+		// undertake the task
+		try {
+			startMetrics(propagationGraphTask);
+			propagationGraphTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete graph construction:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				propagationGraphTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.out.println("SUCCESS: a graph of " + propagationGraphTask.getBundleCount() + " bundles with " + propagationGraphTask.getEdgeCount() + " edges has been created");
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * undertake the latency matrix task
+	 */
+	private static void doLatencyMatrixTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// output file
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(StringUtils.isEmpty(outputPath) == true) {
+			printCliHelp("ERROR: the path to the output file is required");
+		}
+		
+		File outputFile = new File(outputPath);
+		
+		if(outputFile.exists() == true) {
+			printCliHelp("ERROR: the specified output file already exists");
+		}
+		
+		PropagationLatency propagationLatencyTask = new PropagationLatency(config, tableName, outputFile);
+		
+		// undertake the task
+		try {
+			startMetrics(propagationLatencyTask);
+			propagationLatencyTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete the latency matrix:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				propagationLatencyTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.out.println("SUCCESS: the specified output file has been created");
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * undertake the mesh replicas chart
+	 */
+	private static void doMeshReplicasTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		// output file
+		String outputPath = cmd.getOptionValue("output");
+		
+		if(StringUtils.isEmpty(outputPath) == true) {
+			printCliHelp("ERROR: the path to the output file is required");
+		}
+		
+		File outputFile = new File(outputPath);
+		
+		if(outputFile.exists() == true) {
+			printCliHelp("ERROR: the specified output file already exists");
+		}
+		
+		// requested bucket width
+		Integer bucketWidth = getIntegerOption("bucket", "bucket width");
+		
+		MeshReplicas meshReplicasTask = new MeshReplicas(config, tableName, outputFile, bucketWidth == null ? null : bucketWidth.longValue());
+		
+		// undertake the task
+		try {
+			startMetrics(meshReplicasTask);
+			meshReplicasTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete file output creation:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				meshReplicasTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.out.println("SUCCESS: the specified output file has been created");
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * undertake the clock skew estimation
+	 */
+	private static void doClockSkewTask() {
+		
+		// we need to use a table so get the name of the table
+		String tableName = cmd.getOptionValue("table");
+	
+		if(StringUtils.isEmpty(tableName) == true) {
+			printCliHelp("ERROR: the table name is required");
+		}
+		
+		ClockSkew clockSkewTask = new ClockSkew(config, tableName, cmd.getOptionValue("reference"), getThreadCount());
+		
+		// undertake the task
+		try {
+			startMetrics(clockSkewTask);
+			clockSkewTask.doTask();
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to complete the clock skew estimation:" + "\n" + e.getMessage());
+			System.exit(-1);
+		} finally {
+			try {
+				clockSkewTask.closeConnection();
+			} catch (SQLException e) {
+				System.err.println("ERROR: during database connection close");
+				System.exit(-1);
+			}
+		}
+		
+		System.exit(0);	
+	}
+	
+	/*
+	 * make the metrics of a task available over JMX while it runs, and append a
+	 * summary to the file specified by the -metrics option when the application
+	 * exits, as the tasks exit the application directly, the statements of the
+	 * task are profiled if the -slowlog option is specified, and the phases of
+	 * the task are recorded by the flight recorder if the -jfr option is specified
+	 */
+	private static void startMetrics(AbstractTask task) {
+		
+		final TaskMetrics metrics = task.getMetrics();
+		
+		if(StringUtils.isEmpty(cmd.getOptionValue("jfr")) == false) {
+			try {
+				TaskPhase.startRecording(new File(cmd.getOptionValue("jfr")));
+			} catch (IOException e) {
+				System.err.println("WARNING: unable to start the flight recording: " + e.getMessage());
+			}
+		}
+		
+		if(StringUtils.isEmpty(cmd.getOptionValue("slowlog")) == false) {
+			
+			final File reportFile = new File(cmd.getOptionValue("slowlog"));
+			
+			final StatementProfiler profiler = StatementProfiler.start(config, config.getLong("analysis.slow.threshold", StatementProfiler.DEFAULT_THRESHOLD));
+			profiler.setMetrics(metrics);
+			
+			Runtime.getRuntime().addShutdownHook(new Thread("slow-statement-report") {
+				public void run() {
+					try {
+						profiler.writeReport(reportFile);
+					} catch (IOException e) {
+						System.err.println("WARNING: unable to write the slow statement report: " + e.getMessage());
+					} finally {
+						profiler.close();
+					}
+				}
+			});
+		}
+		
+		try {
+			metrics.register();
+		} catch (JMException e) {
+			System.err.println("WARNING: unable to make the task metrics available over JMX: " + e.getMessage());
+		}
+		
+		if(StringUtils.isEmpty(cmd.getOptionValue("metrics")) == false) {
+			
+			final File summaryFile = new File(cmd.getOptionValue("metrics"));
+			
+			Runtime.getRuntime().addShutdownHook(new Thread("metrics-summary") {
+				public void run() {
+					try {
+						metrics.writeSummary(summaryFile);
+					} catch (IOException e) {
+						System.err.println("WARNING: unable to write the metrics summary: " + e.getMessage());
+					}
+				}
+			});
+		}
+	}
+	
+	/*
+	 * get the requested number of threads, or null if not specified
+	 */
+	private static Integer getThreadCount() {
+		return getIntegerOption("threads", "number of threads");
+	}
+	
+	/*
+	 * get the value of a positive integer option, or null if not specified
+	 */
+	private static Integer getIntegerOption(String option, String description) {
+		
+		String value = cmd.getOptionValue(option);
+		
+		Integer valueAsInteger = null;
+		
+		if(StringUtils.isEmpty(value) == false) {
+			
+			try {
+				valueAsInteger = Integer.parseInt(value);
+			} catch(NumberFormatException e) {
+				printCliHelp("ERROR: unable to parse the requested " + description);
+			}
+			
+			if(valueAsInteger < 1) {
+				printCliHelp("ERROR: the " + description + " must be at least 1");
+			}
+		}
+		
+		return valueAsInteger;
+	}
+	
 	/*
 	 * output the application options
 	 */
@@ -572,6 +1139,92 @@ public class RhizomeAnalysis {
 		OptionBuilder.withDescription("path to an output file");
 		options.addOption(OptionBuilder.create("output"));
 		
+		// path to the metrics summary
+		OptionBuilder.withArgName("path");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("path to a file to which a summary of the task metrics is appended");
+		options.addOption(OptionBuilder.create("metrics"));
+		
+		// path to the slow statement report
+		OptionBuilder.withArgName("path");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("path to a file to which a report of the slow sql statements is appended");
+		options.addOption(OptionBuilder.create("slowlog"));
+		
+		// path to the flight recording
+		OptionBuilder.withArgName("path");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("path to a file to which a flight recording of the task is written");
+		options.addOption(OptionBuilder.create("jfr"));
+		
+		// number of worker threads
+		OptionBuilder.withArgName("int");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("number of threads to use, defaults to one per processor");
+		options.addOption(OptionBuilder.create("threads"));
+		
+		// maximum number of removed devices
+		OptionBuilder.withArgName("int");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("maximum number of devices removed in a simulation");
+		options.addOption(OptionBuilder.create("removals"));
+		
+		// number of sampled scenarios
+		OptionBuilder.withArgName("int");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("number of scenarios sampled when exhaustive simulation is impractical");
+		options.addOption(OptionBuilder.create("samples"));
+		
+		// sync window used to build propagation trees
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("sync window used to group copies of a bundle, defaults to 30 seconds");
+		options.addOption(OptionBuilder.create("window"));
+		
+		// type of edges in a propagation graph
+		OptionBuilder.withArgName("string");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("type of edges in a propagation graph, either aggregate or bundle");
+		options.addOption(OptionBuilder.create("edges"));
+		
+		// profile of table to create
+		OptionBuilder.withArgName("string");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("profile of table to create, either basic or extended");
+		options.addOption(OptionBuilder.create("profile"));
+		
+		// width of a bucket in a timeline
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("width of each bucket in a timeline, defaults to 60 seconds");
+		options.addOption(OptionBuilder.create("bucket"));
+		
+		// device with the reference clock
+		OptionBuilder.withArgName("string");
+		OptionBuilder.hasArg(true);
+		OptionBuilder.withDescription("id of the tablet with the reference clock");
+		options.addOption(OptionBuilder.create("reference"));
+		
+		// estimate the statistics
+		OptionBuilder.withDescription("estimate the statistics in a single pass");
+		options.addOption(OptionBuilder.create("approximate"));
+		
+		// read the bundles in parallel
+		OptionBuilder.withDescription("read the bundles in parallel partitions");
+		options.addOption(OptionBuilder.create("parallel"));
+		
+		// keep importing new or changed databases
+		OptionBuilder.withDescription("watch the dataset and import new or changed rhizome databases");
+		options.addOption(OptionBuilder.create("watch"));
+		
+		// share a batch import between several workers
+		OptionBuilder.withDescription("claim devices through a lease table so that several workers can share a batch import");
+		options.addOption(OptionBuilder.create("distributed"));
+		
+		// use the corrected insert times
+		OptionBuilder.withDescription("use insert times corrected for clock skew");
+		options.addOption(OptionBuilder.create("corrected"));
+		
 		return options;
 	}
 }
@@ -19,11 +19,55 @@
  */
 package org.magdaaproject.analysis.rhizome.tasks;
 
+import org.magdaaproject.utils.TaskMetrics;
+import org.magdaaproject.utils.TaskPhase;
+
 /**
  * Abstract task representing tasks undertaken by this application
+ * 
+ * each task records what it is doing in a metrics registry, which is shared
+ * with any tasks it undertakes as part of its own work, and marks the start
+ * and end of each of its phases for the flight recorder
  */
 public abstract class AbstractTask { 
 	
+	private TaskMetrics metrics = new TaskMetrics(getClass().getSimpleName());
+	
 	public abstract void doTask() throws TaskException;
+	
+	/**
+	 * return the metrics recorded by the task
+	 * 
+	 * @return the metrics registry of the task
+	 */
+	public TaskMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * record the metrics of the task in another registry, for example that of
+	 * the task it is part of
+	 * 
+	 * @param metrics the metrics registry to use
+	 */
+	public void setMetrics(TaskMetrics metrics) {
+		
+		if(metrics == null) {
+			throw new IllegalArgumentException("the metrics registry is required");
+		}
+		
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * start a phase of the task, such as scanning a dataset or importing a device
+	 * 
+	 * @param phase the name of the phase
+	 * @param tableName the name of the table the phase works with, or null
+	 * @return the phase, which must be ended
+	 */
+	protected TaskPhase beginPhase(String phase, String tableName) {
+		return TaskPhase.begin(getClass().getSimpleName(), phase, tableName);
+	}
 
 }
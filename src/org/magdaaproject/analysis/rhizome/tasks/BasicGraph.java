@@ -38,6 +38,8 @@ import org.magdaaproject.utils.StringUtils;
  * a class to undertake the task of generating a network graph
  * 
  * Deprecated until such time as sender information is included in Rhizome
+ * 
+ * @see PropagationGraph for a graph covering every bundle in a deployment
  */
 @Deprecated
 public class BasicGraph extends AbstractTask {
@@ -95,7 +97,7 @@ public class BasicGraph extends AbstractTask {
 		// get a database connection
 		// get a connection to the database
 		try {
-			connection = DatabaseUtils.getMysqlConnection(config);
+			connection = DatabaseUtils.getConnection(config);
 		} catch (SQLException e) {
 			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
 		}
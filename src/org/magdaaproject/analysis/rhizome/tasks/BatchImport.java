@@ -20,29 +20,110 @@
 package org.magdaaproject.analysis.rhizome.tasks;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.HiddenFileFilter;
+import org.magdaaproject.utils.DatabaseStager;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.DatasetArchive;
 import org.magdaaproject.utils.DatasetDirectoryWalker;
+import org.magdaaproject.utils.DatasetWatcher;
+import org.magdaaproject.utils.LeaseTable;
+import org.magdaaproject.utils.RhizomeDatabase;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
+
+import au.com.bytecode.opencsv.CSVWriter;
 
 /**
  * a class which implements the batch import task
+ * 
+ * before any data is imported every rhizome database is checked in parallel
+ * using the sqlite quick_check, databases that fail the check are quarantined,
+ * and a failure to import any one database doesn't stop the import of the
+ * others, the quarantined and failed databases are listed in a report
+ * 
+ * each completed import is recorded in the import log table, and devices
+ * already in the log are skipped, so that an interrupted batch import can be
+ * resumed by running it again
+ * 
+ * in distributed mode devices are claimed through the lease table before they
+ * are imported, so that several processes, on one or many hosts, can import
+ * the same dataset at once, each importing the devices it was able to claim
+ * 
+ * in watch mode the dataset continues to be watched once it has been imported,
+ * and each database that is created or changed is imported incrementally once
+ * it has stopped changing for the period set by the import.watch.quiet property
+ * 
+ * device directories may also be stored in zip or tar.gz archives within the
+ * dataset, the archives are read in parallel without being extracted, and each
+ * rhizome database is copied to a temporary file only while it is imported
+ * 
+ * if the import.stage.dir property is set each rhizome database is copied
+ * to that directory before it is imported, with the next databases, up to the
+ * depth set by the import.prefetch.depth property, copied in the background
  */
 public class BatchImport extends AbstractTask {
 	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default number of databases staged ahead of the database being imported
+	 */
+	public static final int DEFAULT_PREFETCH_DEPTH = 2;
+	
+	/**
+	 * the suffix added to the name of the table to give the name of the import log table
+	 */
+	public static final String IMPORT_LOG_SUFFIX = "_import_log";
+	
+	/**
+	 * the suffix added to the name of the table to give the name of the lease table
+	 */
+	public static final String LEASE_SUFFIX = "_import_lease";
+	
+	/**
+	 * the default number of seconds a watched database must be unchanged before it is imported
+	 */
+	public static final int DEFAULT_WATCH_QUIET_PERIOD = 5;
+	
 	/*
 	 * private class level variables
 	 */
 	private Configuration config;
 	private String tableName;
 	private File inputDir;
+	private File reportFile;
+	private int threadCount;
+	private boolean distributed;
+	private boolean watch;
 	
 	private long totalCount;
+	private int skippedCount;
+	private int importedCount;
+	
+	// the reason each quarantined or failed database wasn't imported
+	private LinkedHashMap<File, String> failures = new LinkedHashMap<File, String>();
 	
 	/**
 	 * imports the data from a batch of Rhizome databases into the MySQL table
@@ -50,9 +131,12 @@ public class BatchImport extends AbstractTask {
 	 * @param config a Configuration object with preferences
 	 * @param tableName the name of the table for the deployment
 	 * @param inputDir the path to the parent directory of the dataset
-	 * @param tabletId the unique id of the tablet
+	 * @param reportFile the path to the report of databases that weren't imported, or null for no report
+	 * @param threadCount the number of threads used to check the databases, or null for one per processor
+	 * @param distributed if true claim devices using the lease table, so that several workers can share the dataset
+	 * @param watch if true continue to watch the dataset once it has been imported, importing new or changed databases
 	 */
-	public BatchImport(Configuration config, String tableName, File inputDir) {
+	public BatchImport(Configuration config, String tableName, File inputDir, File reportFile, Integer threadCount, boolean distributed, boolean watch) {
 		
 		// validate the parameters
 		if(config == null) {
@@ -67,9 +151,27 @@ public class BatchImport extends AbstractTask {
 			throw new IllegalArgumentException("the input parent directory is required");
 		}
 		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the number of threads must be at least 1");
+		}
+		
+		if(distributed == true && watch == true) {
+			throw new IllegalArgumentException("a distributed import can't also watch the dataset");
+		}
+		
 		this.config = config;
 		this.tableName = tableName;
 		this.inputDir = inputDir;
+		this.reportFile = reportFile;
+		this.distributed = distributed;
+		this.watch = watch;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
 		totalCount = 0;
 	}
 
@@ -79,55 +181,829 @@ public class BatchImport extends AbstractTask {
 	@Override
 	public void doTask() throws TaskException {
 		
-		// get a list of rhizome files to process
+		// get a list of rhizome files, and archives of device directories, to process
 		DatasetDirectoryWalker rhizomeFileFinder = new DatasetDirectoryWalker(
 			HiddenFileFilter.VISIBLE,
-		    FileFilterUtils.nameFileFilter("rhizome.db")
+			FileFilterUtils.or(FileFilterUtils.nameFileFilter("rhizome.db"), DatasetArchive.ARCHIVE_FILTER)
 		);
 		
-		ArrayList<File> rhizomeFiles = null;
+		ArrayList<File> rhizomeFiles = new ArrayList<File>();
+		ArrayList<File> archives = new ArrayList<File>();
+		
+		TaskPhase scanPhase = beginPhase("dataset.scan", tableName);
 		
 		try {
-			rhizomeFiles = rhizomeFileFinder.getFileList(inputDir);
+			for(File file : rhizomeFileFinder.getFileList(inputDir)) {
+				if(DatasetArchive.isArchive(file) == true) {
+					archives.add(file);
+				} else {
+					rhizomeFiles.add(file);
+				}
+			}
 		} catch (IOException e) {
 			throw new TaskException("unable to gather a list of rhizome databases: \n" + e.getMessage());
+		} finally {
+			scanPhase.setRowCount(rhizomeFiles.size() + archives.size()).end();
 		}
 		
-		if(rhizomeFiles.size() == 0) { 
+		if(rhizomeFiles.size() == 0 && archives.size() == 0) { 
 			throw new TaskException("unable to locate any rhizome database files");
 		}
 		
+		totalCount = 0;
+		skippedCount = 0;
+		importedCount = 0;
+		failures.clear();
+		
+		// skip the devices that have already been imported
+		String importLogTable = tableName + IMPORT_LOG_SUFFIX;
+		HashSet<String> completed = readImportLog(importLogTable);
+		
+		ArrayList<File> pendingFiles = new ArrayList<File>();
+		
+		for(File rhizomeFile : rhizomeFiles) {
+			
+			// when watching, databases may have changed since they were imported so import them incrementally instead
+			if(watch == false && completed.contains(rhizomeFile.getParentFile().getName()) == true) {
+				System.out.println("Skipping, already imported:");
+				System.out.println(rhizomeFile.getAbsolutePath());
+				recordSkipped();
+			} else {
+				pendingFiles.add(rhizomeFile);
+			}
+		}
+		
+		// start watching before the import, so that changes made during it aren't missed
+		DatasetWatcher watcher = null;
+		
+		if(watch == true) {
+			try {
+				watcher = new DatasetWatcher(inputDir, "rhizome.db", config.getInt("import.watch.quiet", DEFAULT_WATCH_QUIET_PERIOD) * 1000L);
+			} catch (IOException e) {
+				throw new TaskException("unable to watch the dataset:\n" + e.getMessage());
+			}
+		}
+		
 		// declare helper variables
 		ImportData importDataTask = new ImportData(config, tableName);
+		importDataTask.setImportLog(importLogTable);
+		importDataTask.setIncremental(watch);
+		importDataTask.setMetrics(getMetrics());
+		
+		try {
+			if(distributed == false) {
+				importDatabases(pendingFiles, importDataTask);
+			} else {
+				importDistributed(pendingFiles, importDataTask, importLogTable);
+			}
+			
+			importArchives(archives, completed, importLogTable);
+			
+			if(watch == true) {
+				
+				if(reportFile != null) {
+					writeReport();
+				}
+				
+				watchDataset(watcher, importDataTask);
+			}
+		} finally {
+			
+			if(watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					throw new TaskException("unable to stop watching the dataset:\n" + e.getMessage());
+				}
+			}
+			
+			// close the connection
+			try {
+				importDataTask.closeConnection();
+			} catch (SQLException e) {
+				throw new TaskException("unable to close MySQL connection:\n" + e.getMessage());
+			}
+		}
+		
+		if(reportFile != null) {
+			writeReport();
+		}
+	}
+	
+	// check, stage and import a list of databases
+	private void importDatabases(List<File> rhizomeFiles, ImportData importDataTask) throws TaskException {
+		
+		// quarantine the databases that fail the integrity check
+		checkDatabases(rhizomeFiles);
+		
+		ArrayList<File> importFiles = new ArrayList<File>();
 		
-		// loop through all of the available files
 		for(File rhizomeFile : rhizomeFiles) {
-			System.out.println("Importing data from:");
-			System.out.println(rhizomeFile.getAbsolutePath());
+			if(failures.containsKey(rhizomeFile) == true) {
+				System.err.println("Quarantined:");
+				System.err.println(rhizomeFile.getAbsolutePath());
+				System.err.println(failures.get(rhizomeFile));
+			} else {
+				importFiles.add(rhizomeFile);
+			}
+		}
+		
+		// stage the databases to local storage if required
+		DatabaseStager stager = null;
+		
+		if(StringUtils.isEmpty(config.getString("import.stage.dir")) == false && importFiles.size() > 0) {
+			try {
+				stager = new DatabaseStager(importFiles, new File(config.getString("import.stage.dir")), config.getInt("import.prefetch.depth", DEFAULT_PREFETCH_DEPTH));
+			} catch (IOException e) {
+				throw new TaskException("unable to prepare the staging directory:\n" + e.getMessage());
+			}
+		}
+		
+		try {
+			
+			// loop through all of the available files
+			for(int i = 0; i < importFiles.size(); i++) {
+				
+				File rhizomeFile = importFiles.get(i);
+				
+				getMetrics().setGauge("databases.queued", importFiles.size() - i);
+				
+				System.out.println("Importing data from:");
+				System.out.println(rhizomeFile.getAbsolutePath());
+				
+				// a failure only affects this database, so record it and move on
+				try {
+					if(stager == null) {
+						importDataTask.setInputFile(rhizomeFile);
+					} else {
+						try {
+							
+							// the time spent waiting for the copy shows whether staging keeps up with the import
+							long waitStart = System.nanoTime();
+							importDataTask.setInputFile(stager.getStagedFile(i));
+							getMetrics().recordTime("stage.wait", waitStart);
+							getMetrics().setGauge("stage.queue", stager.getQueueDepth());
+							
+							importDataTask.setSourcePath(rhizomeFile.getAbsolutePath());
+						} catch (IOException e) {
+							throw new TaskException("unable to stage the database: " + e.getMessage());
+						}
+					}
+					
+					importDataTask.setTableId(rhizomeFile.getParentFile().getName());
+					importDataTask.doTask();
+					
+				} catch (TaskException e) {
+					System.err.println("ERROR: unable to import data from:");
+					System.err.println(rhizomeFile.getAbsolutePath());
+					System.err.println(e.getMessage());
+					
+					recordFailure(rhizomeFile, e.getMessage());
+				}
+				
+				// the staged copy is no longer required
+				if(stager != null) {
+					try {
+						importDataTask.closeSourceConnection();
+					} catch (SQLException e) {
+						throw new TaskException("unable to close the rhizome database:\n" + e.getMessage());
+					}
+					
+					stager.release(i);
+				}
+				
+				if(failures.containsKey(rhizomeFile) == false) {
+					System.out.println("SUCCESS: " + importDataTask.getInsertCount() + " records added" + getUpdateSummary(importDataTask) + " successfully");
+					
+					recordImport(importDataTask.getInsertCount());
+				}
+			}
+		} finally {
+			if(stager != null) {
+				stager.close();
+			}
+		}
+	}
+	
+	/*
+	 * import the databases in the archives of device directories, reading several
+	 * archives at once, each with its own connection to the MySQL database
+	 */
+	private void importArchives(List<File> archives, final HashSet<String> completed, final String importLogTable) throws TaskException {
+		
+		if(archives.size() == 0) {
+			return;
+		}
+		
+		System.out.println("Reading " + archives.size() + " dataset archives");
+		
+		// the databases are copied from the archives to the staging directory if there is one
+		File tempDirectory = null;
+		
+		if(StringUtils.isEmpty(config.getString("import.stage.dir")) == false) {
+			tempDirectory = new File(config.getString("import.stage.dir"));
+		}
+		
+		LeaseTable leases = null;
+		
+		if(distributed == true) {
+			
+			int leaseDuration = config.getInt("import.lease.duration", LeaseTable.DEFAULT_LEASE_DURATION);
+			
+			if(leaseDuration < 3) {
+				throw new TaskException("the lease duration must be at least 3 seconds");
+			}
+			
+			leases = new LeaseTable(config, tableName + LEASE_SUFFIX, leaseDuration);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, archives.size()));
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		
+		try {
+			if(leases != null) {
+				leases.open();
+			}
+			
+			final File stageDirectory = tempDirectory;
+			final LeaseTable archiveLeases = leases;
+			
+			for(final File archive : archives) {
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws TaskException {
+						importArchive(archive, completed, importLogTable, stageDirectory, archiveLeases);
+						return null;
+					}
+				}));
+			}
+			
+			for(Future<Object> result : results) {
+				result.get();
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to open the lease table:\n" + e.getMessage());
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while importing the dataset archives", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to import the dataset archives:\n" + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdownNow();
 			
-			importDataTask.setInputFile(rhizomeFile);
-			importDataTask.setTableId(rhizomeFile.getParentFile().getName());
+			if(leases != null) {
+				try {
+					leases.close();
+				} catch (SQLException e) {
+					throw new TaskException("unable to release the leases held by this worker:\n" + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/*
+	 * import each rhizome database in an archive, a failure to read the archive stops at the database that can't be read,
+	 * the databases of devices claimed by other workers are read from the archive again until they have been imported by
+	 * the other worker or its lease expires and they can be claimed
+	 */
+	private void importArchive(final File archive, final HashSet<String> completed, final String importLogTable, final File tempDirectory, final LeaseTable leases) throws TaskException {
+		
+		final ImportData importDataTask = new ImportData(config, tableName);
+		importDataTask.setImportLog(importLogTable);
+		importDataTask.setIncremental(watch);
+		importDataTask.setMetrics(getMetrics());
+		
+		// the entries of the databases in the archive, and of the devices claimed by other workers
+		final HashSet<String> databases = new HashSet<String>();
+		final HashSet<String> claimedByOthers = new HashSet<String>();
+		
+		try {
+			
+			// every entry is read the first time through the archive
+			HashSet<String> retries = null;
+			
+			while(true) {
+				
+				final HashSet<String> entries = retries;
+				
+				DatasetArchive.readEntries(archive, new DatasetArchive.EntryHandler() {
+					public void handleEntry(String name, InputStream input) throws IOException {
+						
+						// match the databases, and the directories, the dataset walker would find
+						if(DatasetArchive.isVisibleFile(name, "/rhizome.db") == false) {
+							return;
+						}
+						
+						if(entries != null && entries.contains(name) == false) {
+							return;
+						}
+						
+						databases.add(name);
+						
+						if(importArchiveEntry(new File(archive, name), input, importDataTask, completed, importLogTable, tempDirectory, leases) == false) {
+							claimedByOthers.add(name);
+						}
+					}
+				});
+				
+				if(databases.size() == 0) {
+					System.err.println("WARNING: no rhizome databases were found in the archive:");
+					System.err.println(archive.getAbsolutePath());
+				}
+				
+				if(claimedByOthers.size() == 0) {
+					break;
+				}
+				
+				// wait for the other workers to complete their devices, or for their leases to expire
+				Thread.sleep((leases.getLeaseDuration() / 3) * 1000L);
+				
+				HashSet<String> imported = readImportLog(importLogTable);
+				retries = new HashSet<String>();
+				
+				for(String name : claimedByOthers) {
+					if(imported.contains(new File(archive, name).getParentFile().getName()) == true) {
+						recordSkipped();
+					} else {
+						retries.add(name);
+					}
+				}
+				
+				claimedByOthers.clear();
+				
+				if(retries.size() == 0) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while waiting for other workers", e);
+		} catch (IOException e) {
+			System.err.println("ERROR: unable to read the archive:");
+			System.err.println(archive.getAbsolutePath());
+			System.err.println(e.getMessage());
 			
+			recordFailure(archive, "unable to read the archive: " + e.getMessage());
+		} finally {
 			try {
-				importDataTask.doTask();
+				importDataTask.closeConnection();
+			} catch (SQLException e) {
+				throw new TaskException("unable to close MySQL connection:\n" + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * copy a rhizome database from an archive to a temporary file, check it and
+	 * import it, the path of the database is the path of the archive followed by
+	 * the path within the archive, returns false if the device is claimed by
+	 * another worker so the database must be retried
+	 */
+	private boolean importArchiveEntry(File rhizomeFile, InputStream input, ImportData importDataTask, HashSet<String> completed, String importLogTable, File tempDirectory, LeaseTable leases) throws IOException {
+		
+		String tabletId = rhizomeFile.getParentFile().getName();
+		
+		if(watch == false && completed.contains(tabletId) == true) {
+			System.out.println("Skipping, already imported:");
+			System.out.println(rhizomeFile.getAbsolutePath());
+			recordSkipped();
+			return true;
+		}
+		
+		// in distributed mode a device claimed by another worker is retried once that worker may have finished with it
+		if(leases != null) {
+			try {
+				if(leases.claim(tabletId) == false) {
+					return false;
+				}
+				
+				if(readImportLog(importLogTable).contains(tabletId) == true) {
+					System.out.println("Skipping, imported by another worker:");
+					System.out.println(rhizomeFile.getAbsolutePath());
+					leases.release(tabletId);
+					recordSkipped();
+					return true;
+				}
+			} catch (SQLException e) {
+				throw new IOException("unable to claim devices using the lease table: " + e.getMessage(), e);
 			} catch (TaskException e) {
-				throw new TaskException("unable to import data from\n '" + rhizomeFile.getAbsolutePath() + "\n" + e.getMessage());
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		
+		File tempFile = null;
+		
+		try {
+			long copyStart = System.nanoTime();
+			tempFile = DatasetArchive.copyToTempFile(input, rhizomeFile.getName(), tempDirectory);
+			getMetrics().recordTime("archive.copy", copyStart);
+			
+			String problem = checkDatabase(tempFile);
+			
+			if(problem != null) {
+				
+				// describe the database in the archive rather than the temporary copy
+				problem = problem.replace(tempFile.getAbsolutePath(), rhizomeFile.getAbsolutePath());
+				
+				System.err.println("Quarantined:");
+				System.err.println(rhizomeFile.getAbsolutePath());
+				System.err.println(problem);
+				
+				recordFailure(rhizomeFile, problem);
+				return true;
 			}
 			
-			System.out.println("SUCCESS: " + importDataTask.getInsertCount() + " records added successfully");
+			System.out.println("Importing data from:");
+			System.out.println(rhizomeFile.getAbsolutePath());
+			
+			importDataTask.setInputFile(tempFile);
+			importDataTask.setSourcePath(rhizomeFile.getAbsolutePath());
+			importDataTask.setTableId(tabletId);
+			importDataTask.doTask();
+			
+			System.out.println("SUCCESS: " + importDataTask.getInsertCount() + " records added" + getUpdateSummary(importDataTask) + " successfully");
+			recordImport(importDataTask.getInsertCount());
+			
+		} catch (TaskException e) {
+			System.err.println("ERROR: unable to import data from:");
+			System.err.println(rhizomeFile.getAbsolutePath());
+			System.err.println(e.getMessage());
 			
-			totalCount += importDataTask.getInsertCount();
+			recordFailure(rhizomeFile, e.getMessage());
+		} finally {
+			try {
+				importDataTask.closeSourceConnection();
+			} catch (SQLException e) {
+				// the database has been read so the failure to close is of no consequence
+			}
+			
+			if(tempFile != null) {
+				tempFile.delete();
+			}
 			
+			if(leases != null) {
+				try {
+					leases.release(tabletId);
+				} catch (SQLException e) {
+					throw new IOException("unable to release the lease for '" + tabletId + "': " + e.getMessage(), e);
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	// describe the records updated by an incremental import, if there are any
+	private static String getUpdateSummary(ImportData importDataTask) {
+		
+		if(importDataTask.getUpdateCount() == 0) {
+			return "";
 		}
 		
-		// close the connection
+		return " and " + importDataTask.getUpdateCount() + " records updated";
+	}
+	
+	// record a database that wasn't imported, databases in archives are imported by several threads
+	private synchronized void recordFailure(File rhizomeFile, String reason) {
+		failures.put(rhizomeFile, reason);
+		getMetrics().increment("databases.failed");
+	}
+	
+	// record a database that was imported
+	private synchronized void recordImport(long recordCount) {
+		totalCount += recordCount;
+		importedCount++;
+		getMetrics().increment("databases.imported");
+	}
+	
+	// record a database that was skipped
+	private synchronized void recordSkipped() {
+		skippedCount++;
+		getMetrics().increment("databases.skipped");
+	}
+	
+	/*
+	 * import each database in the dataset that is created or changed, once it has
+	 * stopped changing, until the task is stopped
+	 */
+	private void watchDataset(DatasetWatcher watcher, ImportData importDataTask) throws TaskException {
+		
+		System.out.println("Watching for new or changed rhizome databases in:");
+		System.out.println(inputDir.getAbsolutePath());
+		
+		long watchImportedCount = 0;
+		long watchRecordCount = 0;
+		
 		try {
-			importDataTask.closeConnection();
+			while(true) {
+				
+				File rhizomeFile = watcher.take();
+				
+				// the database may have been replaced since it failed
+				failures.remove(rhizomeFile);
+				
+				int previousCount = importedCount;
+				long previousTotal = totalCount;
+				
+				importDatabases(Collections.singletonList(rhizomeFile), importDataTask);
+				
+				// don't hold the connection open while waiting, it may be closed by the server
+				importDataTask.closeConnection();
+				
+				watchImportedCount += importedCount - previousCount;
+				watchRecordCount += totalCount - previousTotal;
+				
+				if(reportFile != null) {
+					writeReport();
+				}
+				
+				System.out.println("Watch summary: " + watchImportedCount + " imports, " + watchRecordCount + " records added, " + failures.size() + " rhizome databases not imported");
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to watch the dataset:\n" + e.getMessage());
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while watching the dataset", e);
 		} catch (SQLException e) {
 			throw new TaskException("unable to close MySQL connection:\n" + e.getMessage());
 		}
 	}
 	
+	/*
+	 * claim devices from the lease table in small batches and import them, devices
+	 * claimed by other workers are retried until they have been imported by the
+	 * other worker or its lease expires and they can be claimed
+	 */
+	private void importDistributed(List<File> rhizomeFiles, ImportData importDataTask, String importLogTable) throws TaskException {
+		
+		int leaseDuration = config.getInt("import.lease.duration", LeaseTable.DEFAULT_LEASE_DURATION);
+		
+		if(leaseDuration < 3) {
+			throw new TaskException("the lease duration must be at least 3 seconds");
+		}
+		
+		LeaseTable leases = new LeaseTable(config, tableName + LEASE_SUFFIX, leaseDuration);
+		
+		// claim enough devices at once to keep the staging directory busy
+		int batchSize = 1;
+		
+		if(StringUtils.isEmpty(config.getString("import.stage.dir")) == false) {
+			batchSize += config.getInt("import.prefetch.depth", DEFAULT_PREFETCH_DEPTH);
+		}
+		
+		try {
+			leases.open();
+			
+			System.out.println("Importing as worker '" + leases.getWorkerId() + "'");
+			
+			ArrayList<File> remaining = new ArrayList<File>(rhizomeFiles);
+			
+			while(remaining.size() > 0) {
+				
+				ArrayList<File> claimedByOthers = new ArrayList<File>();
+				
+				while(remaining.size() > 0) {
+					
+					// claim the next batch of devices
+					ArrayList<File> batch = new ArrayList<File>();
+					
+					while(remaining.size() > 0 && batch.size() < batchSize) {
+						
+						File rhizomeFile = remaining.remove(0);
+						
+						if(leases.claim(rhizomeFile.getParentFile().getName()) == true) {
+							batch.add(rhizomeFile);
+						} else {
+							claimedByOthers.add(rhizomeFile);
+						}
+					}
+					
+					// another worker may have completed a device since the log was read
+					HashSet<String> completed = readImportLog(importLogTable);
+					
+					for(int i = batch.size() - 1; i >= 0; i--) {
+						
+						String tabletId = batch.get(i).getParentFile().getName();
+						
+						if(completed.contains(tabletId) == true) {
+							System.out.println("Skipping, imported by another worker:");
+							System.out.println(batch.remove(i).getAbsolutePath());
+							
+							leases.release(tabletId);
+							recordSkipped();
+						}
+					}
+					
+					importDatabases(batch, importDataTask);
+					
+					for(File rhizomeFile : batch) {
+						leases.release(rhizomeFile.getParentFile().getName());
+					}
+				}
+				
+				if(claimedByOthers.size() == 0) {
+					break;
+				}
+				
+				// wait for the other workers to complete their devices, or for their leases to expire
+				Thread.sleep((leaseDuration / 3) * 1000L);
+				
+				HashSet<String> completed = readImportLog(importLogTable);
+				
+				for(File rhizomeFile : claimedByOthers) {
+					if(completed.contains(rhizomeFile.getParentFile().getName()) == true) {
+						recordSkipped();
+					} else {
+						remaining.add(rhizomeFile);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to claim devices using the lease table:\n" + e.getMessage());
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while waiting for other workers", e);
+		} finally {
+			try {
+				leases.close();
+			} catch (SQLException e) {
+				throw new TaskException("unable to release the leases held by this worker:\n" + e.getMessage());
+			}
+		}
+	}
+	
+	// create the import log table if required, and read the devices that have been imported
+	private HashSet<String> readImportLog(String importLogTable) throws TaskException {
+		
+		HashSet<String> completed = new HashSet<String>();
+		
+		Connection connection = null;
+		
+		try {
+			connection = DatabaseUtils.getConnection(config);
+			
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+			
+			Statement statement = connection.createStatement();
+			
+			// several workers may try to create the table at once
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + importLogTable + " ("
+					+ "tablet_id VARCHAR(10) NOT NULL, "
+					+ "file_path VARCHAR(1024) NOT NULL, "
+					+ "record_count BIGINT NOT NULL, "
+					+ "import_time BIGINT NOT NULL, "
+					+ "import_duration BIGINT NOT NULL DEFAULT 0, "
+					+ "PRIMARY KEY(tablet_id))" + DatabaseUtils.getStorageBackend(config).getCharacterSet("utf8"));
+			
+			// logs written before the duration was recorded don't have the column
+			if(DatabaseUtils.doesColumnExist(connection, importLogTable, "import_duration") == false) {
+				try {
+					statement.executeUpdate("ALTER TABLE " + importLogTable + " ADD COLUMN import_duration BIGINT NOT NULL DEFAULT 0");
+				} catch (SQLException e) {
+					
+					// another worker may have added the column at the same time
+					if(DatabaseUtils.doesColumnExist(connection, importLogTable, "import_duration") == false) {
+						throw e;
+					}
+				}
+			}
+			
+			ResultSet resultSet = statement.executeQuery("SELECT tablet_id FROM " + importLogTable);
+			
+			while(resultSet.next() == true) {
+				completed.add(resultSet.getString(1));
+			}
+			
+			resultSet.close();
+			statement.close();
+			
+		} catch (SQLException e) {
+			throw new TaskException("unable to read the import log table '" + importLogTable + "':\n" + e.getMessage());
+		} finally {
+			try {
+				if(connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				throw new TaskException("unable to close MySQL connection:\n" + e.getMessage());
+			}
+		}
+		
+		return completed;
+	}
+	
+	// check the integrity of the databases in parallel, recording those that fail
+	private void checkDatabases(List<File> rhizomeFiles) throws TaskException {
+		
+		if(rhizomeFiles.size() == 0) {
+			return;
+		}
+		
+		System.out.println("Checking " + rhizomeFiles.size() + " rhizome databases");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, rhizomeFiles.size()));
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		
+		try {
+			for(final File rhizomeFile : rhizomeFiles) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() {
+						return checkDatabase(rhizomeFile);
+					}
+				}));
+			}
+			
+			for(int i = 0; i < rhizomeFiles.size(); i++) {
+				
+				String problem = results.get(i).get();
+				
+				if(problem != null) {
+					recordFailure(rhizomeFiles.get(i), problem);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while checking the rhizome databases", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to check the rhizome databases:\n" + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// run the quick check on a database, returning a description of the problem or null if there is none
+	private String checkDatabase(File rhizomeFile) {
+		
+		Connection connection = null;
+		long checkStart = System.nanoTime();
+		
+		try {
+			connection = RhizomeDatabase.getReadOnlyConnection(config, rhizomeFile);
+			
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery("PRAGMA quick_check");
+			
+			String result = null;
+			
+			if(resultSet.next() == true) {
+				result = resultSet.getString(1);
+			}
+			
+			resultSet.close();
+			statement.close();
+			
+			if("ok".equalsIgnoreCase(result) == false) {
+				return "failed the integrity check: " + result;
+			}
+			
+			return null;
+			
+		} catch (SQLException e) {
+			return e.getMessage();
+		} finally {
+			try {
+				if(connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// the check is complete so the failure to close is of no consequence
+			}
+			
+			getMetrics().recordTime("check.database", checkStart);
+		}
+	}
+	
+	// write the list of databases that weren't imported
+	private void writeReport() throws TaskException {
+		
+		CSVWriter writer = null;
+		String[] values = new String[3];
+		
+		try {
+			writer = new CSVWriter(new FileWriter(reportFile), ',');
+			
+			// output the header information
+			values[0] = "tablet_id";
+			values[1] = "file_path";
+			values[2] = "reason";
+			writer.writeNext(values);
+			
+			for(Map.Entry<File, String> failure : failures.entrySet()) {
+				values[0] = failure.getKey().getParentFile().getName();
+				values[1] = failure.getKey().getAbsolutePath();
+				values[2] = failure.getValue();
+				writer.writeNext(values);
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the report file: " + e.getMessage());
+		} finally {
+			try {
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the report file: \n" + e.getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * return the number of records inserted into the database
 	 * 
@@ -136,4 +1012,31 @@ public class BatchImport extends AbstractTask {
 	public long getTatalCount() {
 		return totalCount;
 	}
+	
+	/**
+	 * return the number of databases imported
+	 * 
+	 * @return the number of databases imported
+	 */
+	public int getImportedCount() {
+		return importedCount;
+	}
+	
+	/**
+	 * return the number of databases skipped as they were imported previously
+	 * 
+	 * @return the number of databases skipped
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+	
+	/**
+	 * return the databases that were quarantined or failed to import, with the reason for each
+	 * 
+	 * @return the databases that weren't imported
+	 */
+	public Map<File, String> getFailures() {
+		return failures;
+	}
 }
@@ -20,17 +20,27 @@
 package org.magdaaproject.analysis.rhizome.tasks;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.BundleCopies;
 import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.PartitionedBundleScan;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
 
+import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 
 /**
@@ -43,6 +53,9 @@ public class BundlesOverTime extends AbstractTask {
 	 */
 	private Configuration config;
 	private String tableName;
+	private String timeColumn;
+	private boolean parallel;
+	private int threadCount;
 	
 	private Connection connection = null;
 	
@@ -51,13 +64,18 @@ public class BundlesOverTime extends AbstractTask {
 	private String[] values = new String[4];
 	private String[] headers = {"file_id", "tablet_id", "timestamp", "count"};
 	
+	private long rowCount = 0;
+	
 	/**
 	 * create the class
 	 * @param config a Configuration object with details about the MySQL database
 	 * @param tableName the name of the table to use for the analysis
 	 * @param outputFile the name of the output file
+	 * @param correctedTimes if true use the insert times corrected for clock skew
+	 * @param parallel if true read the bundles in parallel partitions
+	 * @param threadCount the number of partitions read in parallel, or null for one per processor
 	 */
-	public BundlesOverTime(Configuration config, String tableName, File outputFile) {
+	public BundlesOverTime(Configuration config, String tableName, File outputFile, boolean correctedTimes, boolean parallel, Integer threadCount) {
 		
 		// validate the parameters
 		if(config == null) {
@@ -72,9 +90,26 @@ public class BundlesOverTime extends AbstractTask {
 			throw new IllegalArgumentException("outputFile is a required parameter");
 		}
 		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
 		this.config = config;
 		this.tableName = tableName;
 		this.outputFile = outputFile;
+		this.parallel = parallel;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
+		if(correctedTimes == true) {
+			timeColumn = ClockSkew.CORRECTED_TIME_COLUMN;
+		} else {
+			timeColumn = "file_insert_time";
+		}
 	}
 
 	/**
@@ -83,9 +118,21 @@ public class BundlesOverTime extends AbstractTask {
 	@Override
 	public void doTask() throws TaskException {
 		
+		TaskPhase phase = beginPhase("chart.write", tableName);
+		
+		try {
+			writeChart();
+		} finally {
+			phase.setRowCount(rowCount).end();
+		}
+	}
+	
+	// write the rows of the graph to the output file
+	private void writeChart() throws TaskException {
+		
 		// get a connection to the database
 		try {
-			connection = DatabaseUtils.getMysqlConnection(config);
+			connection = DatabaseUtils.getConnection(config);
 		} catch (SQLException e) {
 			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
 		}
@@ -99,16 +146,32 @@ public class BundlesOverTime extends AbstractTask {
 			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
 		}
 		
+		// check if the corrected times are available
+		try {
+			if(timeColumn.equals(ClockSkew.CORRECTED_TIME_COLUMN) == true && ClockSkew.hasCorrectedTimes(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't have corrected times, use the clock-skew task first");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		if(parallel == true) {
+			writeParallel();
+			return;
+		}
+		
 		// get the data
-		String sql = "SELECT file_id, tablet_id, file_insert_time FROM " + tableName + " WHERE file_insert_time IS NOT NULL ORDER BY file_id, file_insert_time ASC";
+		String sql = "SELECT file_id, tablet_id, " + timeColumn + " FROM " + tableName + " WHERE " + timeColumn + " IS NOT NULL ORDER BY file_id, " + timeColumn + " ASC";
 		Statement statement = null;
 		ResultSet resultSet = null;
 		
 		int fileCount = 0;
 		String currentFileId = "";
 		
+		long scanStart = System.nanoTime();
+		
 		try {
-			 statement = connection.createStatement();
+			 statement = DatabaseUtils.createStreamingStatement(config, connection);
 		} catch (SQLException e) {
 			throw new TaskException("unable to create statement '" + sql + "': " + e.getMessage());
 		}
@@ -131,11 +194,15 @@ public class BundlesOverTime extends AbstractTask {
 			throw new TaskException("unable to open output file '" + sql + "': " + e.getMessage());
 		}
 		
+		long rowsRead = 0;
+		
 		try {
 			
 			// loop through the data
 			while(resultSet.next() == true) {
 				
+				rowsRead++;
+				
 				if(currentFileId.equals(resultSet.getString(1)) == false) {
 					
 					// start a new count
@@ -147,6 +214,7 @@ public class BundlesOverTime extends AbstractTask {
 					values[3] = Integer.toString(fileCount);
 					
 					writer.writeNext(values);
+					rowCount++;
 					
 				} else {
 					// continue an existing count
@@ -155,6 +223,7 @@ public class BundlesOverTime extends AbstractTask {
 					values[3] = Integer.toString(fileCount);
 					
 					writer.writeNext(values);
+					rowCount++;
 				}
 				
 			}
@@ -174,10 +243,161 @@ public class BundlesOverTime extends AbstractTask {
 			} catch (IOException e) {
 				throw new TaskException("unable to close the output file: \n" + e.getMessage());
 			}
+			
+			getMetrics().recordTime("scan.bundles", scanStart);
+			getMetrics().add("rows.read", rowsRead);
 		}
 
 	}
 	
+	/*
+	 * read the bundles in parallel partitions, with each partition writing its
+	 * rows to a temporary file that is then merged in file id order, so that
+	 * the output is the same as the output of a single query
+	 */
+	private void writeParallel() throws TaskException {
+		
+		final PartitionedBundleScan scan = new PartitionedBundleScan(config, tableName, timeColumn, threadCount);
+		
+		// every partition that is created, so that the temporary files can be deleted if the scan fails
+		final List<ChartPartition> created = Collections.synchronizedList(new ArrayList<ChartPartition>());
+		
+		ChartPartition partitions = null;
+		long scanStart = System.nanoTime();
+		
+		try {
+			partitions = scan.scan(connection, new PartitionedBundleScan.Aggregator<ChartPartition>() {
+				
+				public ChartPartition createResult() throws IOException {
+					ChartPartition partition = new ChartPartition();
+					created.add(partition);
+					return partition;
+				}
+				
+				public void addBundle(ChartPartition result, BundleCopies copies) {
+					
+					String[] row = new String[4];
+					int fileCount = 0;
+					
+					result.rowsRead += copies.getCount();
+					
+					for(int i = 0; i < copies.getCount(); i++) {
+						
+						if(copies.getTime(i) == BundleCopies.UNKNOWN_TIME) {
+							continue;
+						}
+						
+						fileCount++;
+						
+						// the tablet is that of the first copy of the bundle
+						if(fileCount == 1) {
+							row[0] = copies.getFileId();
+							row[1] = scan.getDeviceId(copies.getDevice(i));
+						}
+						
+						row[2] = Long.toString(copies.getTime(i));
+						row[3] = Integer.toString(fileCount);
+						
+						result.writer.writeNext(row);
+					}
+				}
+				
+				public void finishPartition(ChartPartition result) throws IOException {
+					result.writer.close();
+				}
+				
+				public ChartPartition merge(ChartPartition first, ChartPartition second) {
+					first.files.addAll(second.files);
+					first.rowsRead += second.rowsRead;
+					return first;
+				}
+			});
+		} catch (SQLException e) {
+			throw new TaskException("unable to scan the table '" + tableName + "': " + e.getMessage());
+		} catch (Exception e) {
+			throw new TaskException("unable to read the bundles", e);
+		} finally {
+			// once the scan is complete the files are deleted after they are merged
+			if(partitions == null) {
+				for(ChartPartition partition : created) {
+					partition.delete();
+				}
+			}
+			
+			getMetrics().recordTime("scan.bundles", scanStart);
+			getMetrics().add("rows.read", partitions == null ? 0 : partitions.rowsRead);
+		}
+		
+		// merge the partitions in file id order
+		CSVWriter writer = null;
+		ArrayList<CSVReader> readers = new ArrayList<CSVReader>();
+		
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+			PriorityQueue<PartitionRow> queue = new PriorityQueue<PartitionRow>(partitions.files.size(), new Comparator<PartitionRow>() {
+				public int compare(PartitionRow a, PartitionRow b) {
+					// the same order as the case insensitive collation used by MySQL for the file id
+					int result = String.CASE_INSENSITIVE_ORDER.compare(a.row[0], b.row[0]);
+					
+					if(result == 0) {
+						result = a.row[0].compareTo(b.row[0]);
+					}
+					
+					return result;
+				}
+			});
+			
+			for(File file : partitions.files) {
+				CSVReader reader = new CSVReader(new FileReader(file));
+				readers.add(reader);
+				
+				String[] row = reader.readNext();
+				
+				if(row != null) {
+					queue.add(new PartitionRow(reader, row));
+				}
+			}
+			
+			// as the file ids in each partition are different, the rows for a bundle remain together
+			while(queue.isEmpty() == false) {
+				
+				PartitionRow next = queue.poll();
+				
+				writer.writeNext(next.row);
+				rowCount++;
+				
+				next.row = next.reader.readNext();
+				
+				if(next.row != null) {
+					queue.add(next);
+				}
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file: " + e.getMessage());
+		} finally {
+			try {
+				for(CSVReader reader : readers) {
+					reader.close();
+				}
+				
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			} finally {
+				for(File file : partitions.files) {
+					file.delete();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * close the database connection
 	 * 
@@ -189,4 +409,48 @@ public class BundlesOverTime extends AbstractTask {
 		}
 	}
 
+	/*
+	 * the temporary files written by one or more partitions
+	 */
+	private static class ChartPartition {
+		
+		private ArrayList<File> files = new ArrayList<File>();
+		private File file;
+		private CSVWriter writer;
+		private long rowsRead = 0;
+		
+		ChartPartition() throws IOException {
+			file = File.createTempFile("bundles-over-time", ".csv");
+			file.deleteOnExit();
+			
+			files.add(file);
+			writer = new CSVWriter(new FileWriter(file), ',');
+		}
+		
+		// close and delete the temporary file of this partition
+		void delete() {
+			
+			try {
+				writer.close();
+			} catch (IOException e) {
+				// the file is deleted regardless
+			}
+			
+			file.delete();
+		}
+	}
+	
+	/*
+	 * the next row to be merged from a partition
+	 */
+	private static class PartitionRow {
+		
+		private CSVReader reader;
+		private String[] row;
+		
+		PartitionRow(CSVReader reader, String[] row) {
+			this.reader = reader;
+			this.row = row;
+		}
+	}
 }
@@ -0,0 +1,694 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.StringUtils;
+
+/**
+ * estimate the offset of the clock of each device from bundles shared between
+ * devices, and store the insert times corrected for the offset in a new column
+ *
+ * for each ordered pair of devices the difference between the insert time on
+ * the origin device and the insert time on the receiving device is the
+ * transfer delay plus the difference between the two clocks, a low order
+ * statistic of these differences is used as the fastest transfer in each
+ * direction and, as with NTP, the offset is half the difference between the
+ * two directions, pairs observed in only one direction assume the fastest
+ * transfer took the typical time of the fastest transfers between other pairs
+ *
+ * the pairwise offsets are combined into one offset per device using
+ * iteratively reweighted least squares, so that inconsistent pairs have less
+ * influence on the result
+ */
+public class ClockSkew extends AbstractTask {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the name of the column used to store the corrected insert times
+	 */
+	public static final String CORRECTED_TIME_COLUMN = "file_insert_time_corrected";
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// fraction of the lowest differences for a pair discarded as outliers
+	private static final double TRIM_FRACTION = 0.01;
+	
+	// the number of lowest differences kept for each pair, limiting the trimmed outliers
+	private static final int KEPT_DIFFERENCES = 64;
+	
+	// relative weight of a pair observed in only one direction
+	private static final double ONE_WAY_WEIGHT = 0.1;
+	
+	// smallest residual, in milliseconds, that is downweighted by the solver
+	private static final double MIN_HUBER_LIMIT = 1000;
+	
+	private static final int REWEIGHT_ITERATIONS = 10;
+	private static final int SOLVER_ITERATIONS = 1000;
+	private static final double SOLVER_TOLERANCE = 0.5;
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private String reference;
+	private int threadCount;
+	
+	private Connection connection = null;
+	
+	private StringBuilder output = null;
+	
+	private String[] deviceIds;
+	
+	/**
+	 * create the class
+	 *
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param reference the id of the device with the reference clock, or null to use the best connected device
+	 * @param threadCount the number of threads to use, or null for one per processor
+	 */
+	public ClockSkew(Configuration config, String tableName, String reference, Integer threadCount) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.reference = reference;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
+		output = new StringBuilder("\nClock Skew Estimation for table: " + tableName + "\n");
+	}
+	
+	/**
+	 * undertake the estimation and correction
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		loadDevices();
+		
+		int deviceCount = deviceIds.length;
+		
+		if(deviceCount == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
+		
+		if(reference != null && Arrays.asList(deviceIds).contains(reference) == false) {
+			throw new TaskException("the reference device '" + reference + "' doesn't exist in the table");
+		}
+		
+		// gather the differences for each pair of devices, each thread scanning a partition of the bundles
+		PairDifferences differences = gatherDifferences();
+		
+		output.append("Total devices: " + deviceCount + "\n");
+		output.append("Total shared copy observations: " + differences.getTotalCount() + "\n");
+		
+		// estimate the offset of each device
+		double[] offsets = new double[deviceCount];
+		int[] references = new int[deviceCount];
+		int[] pairs = new int[deviceCount];
+		
+		solve(differences, offsets, references, pairs);
+		
+		// store the corrected times
+		updateCorrectedTimes(offsets);
+		
+		// output the offsets
+		output.append("\nDevice offsets, in milliseconds ahead of the reference clock:\n");
+		
+		for(int i = 0; i < deviceCount; i++) {
+			output.append(deviceIds[i] + ": ");
+			
+			if(references[i] == -1) {
+				output.append("unknown, no bundles shared with other devices\n");
+			} else if(references[i] == i) {
+				output.append("0 (reference clock)\n");
+			} else {
+				output.append(Math.round(offsets[i]) + " (relative to " + deviceIds[references[i]] + ", from " + pairs[i] + " device pairs)\n");
+			}
+		}
+		
+		output.append("\nCorrected insert times stored in column: " + CORRECTED_TIME_COLUMN + "\n");
+		
+		// print the results
+		System.out.println(output.toString());
+	}
+	
+	/*
+	 * load the list of devices, so that every thread uses the same index for a device
+	 */
+	private void loadDevices() throws TaskException {
+		
+		String sql = "SELECT DISTINCT tablet_id FROM " + tableName + " ORDER BY tablet_id";
+		
+		ArrayList<String> devices = new ArrayList<String>();
+		
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery(sql);
+			
+			while(resultSet.next() == true) {
+				devices.add(resultSet.getString(1));
+			}
+			
+			resultSet.close();
+			statement.close();
+		} catch (SQLException e) {
+			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
+		}
+		
+		deviceIds = devices.toArray(new String[devices.size()]);
+	}
+	
+	/*
+	 * stream the differences between the origin and each receiving copy of
+	 * every bundle, using one connection per thread with each thread reading
+	 * a separate partition of the bundles
+	 */
+	private PairDifferences gatherDifferences() throws TaskException {
+		
+		final HashMap<String, Integer> devices = new HashMap<String, Integer>();
+		
+		for(int i = 0; i < deviceIds.length; i++) {
+			devices.put(deviceIds[i], i);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<PairDifferences>> results = new ArrayList<Future<PairDifferences>>();
+		
+		try {
+			for(int i = 0; i < threadCount; i++) {
+				
+				final String sql = getDifferencesSql(i);
+				
+				results.add(executor.submit(new Callable<PairDifferences>() {
+					public PairDifferences call() throws SQLException {
+						
+						PairDifferences differences = new PairDifferences(deviceIds.length);
+						
+						Connection partitionConnection = DatabaseUtils.getConnection(config);
+						long scanStart = System.nanoTime();
+						
+						try {
+							Statement statement = DatabaseUtils.createStreamingStatement(config, partitionConnection);
+							ResultSet resultSet = statement.executeQuery(sql);
+							
+							while(resultSet.next() == true) {
+								differences.add(devices.get(resultSet.getString(1)), devices.get(resultSet.getString(3)), resultSet.getLong(4) - resultSet.getLong(2));
+							}
+							
+							resultSet.close();
+							statement.close();
+						} finally {
+							partitionConnection.close();
+							getMetrics().recordTime("scan.differences", scanStart);
+							getMetrics().add("rows.read", differences.totalCount);
+						}
+						
+						return differences;
+					}
+				}));
+			}
+			
+			// merge the differences from each partition
+			PairDifferences merged = new PairDifferences(deviceIds.length);
+			
+			for(Future<PairDifferences> result : results) {
+				merged.merge(result.get());
+			}
+			
+			return merged;
+			
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while gathering shared copies", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to gather shared copies:\n" + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// build the sql for one partition of the bundles
+	private String getDifferencesSql(int partition) {
+		
+		StringBuilder builder = new StringBuilder();
+		
+		builder.append("SELECT origin_copy.tablet_id, origin_copy.file_insert_time, received_copy.tablet_id, received_copy.file_insert_time ");
+		builder.append("FROM " + tableName + " AS origin_copy, " + tableName + " AS received_copy ");
+		builder.append("WHERE origin_copy.origin = '" + DatabaseUtils.DATABASE_CONST_YES + "' ");
+		builder.append("AND received_copy.file_id = origin_copy.file_id ");
+		builder.append("AND received_copy.tablet_id <> origin_copy.tablet_id ");
+		builder.append("AND origin_copy.file_insert_time IS NOT NULL ");
+		builder.append("AND received_copy.file_insert_time IS NOT NULL");
+		
+		if(threadCount > 1) {
+			builder.append(" AND CRC32(origin_copy.file_id) % " + threadCount + " = " + partition);
+		}
+		
+		return builder.toString();
+	}
+	
+	/*
+	 * estimate the offset of each device relative to the reference device of
+	 * its group of connected devices
+	 */
+	private void solve(PairDifferences differences, double[] offsets, int[] references, int[] pairs) {
+		
+		int deviceCount = deviceIds.length;
+		
+		// the typical fastest transfer, from the pairs observed in both directions
+		ArrayList<Double> fastest = new ArrayList<Double>();
+		
+		for(int a = 0; a < deviceCount; a++) {
+			for(int b = a + 1; b < deviceCount; b++) {
+				if(differences.getCount(a, b) > 0 && differences.getCount(b, a) > 0) {
+					fastest.add((differences.getLowDifference(a, b) + differences.getLowDifference(b, a)) / 2.0);
+				}
+			}
+		}
+		
+		double typicalDelay = 0;
+		
+		if(fastest.size() > 0) {
+			Collections.sort(fastest);
+			typicalDelay = Math.max(0, fastest.get(fastest.size() / 2));
+		}
+		
+		// build the list of pairwise offsets, with each estimate being the offset of b less the offset of a
+		ArrayList<Pair> edges = new ArrayList<Pair>();
+		
+		for(int a = 0; a < deviceCount; a++) {
+			for(int b = a + 1; b < deviceCount; b++) {
+				
+				long forwardCount = differences.getCount(a, b);
+				long reverseCount = differences.getCount(b, a);
+				
+				if(forwardCount > 0 && reverseCount > 0) {
+					// fastest transfer in each direction, assumed to take the same time
+					edges.add(new Pair(a, b, (differences.getLowDifference(a, b) - differences.getLowDifference(b, a)) / 2.0, Math.min(forwardCount, reverseCount)));
+				} else if(forwardCount > 0) {
+					edges.add(new Pair(a, b, differences.getLowDifference(a, b) - typicalDelay, forwardCount * ONE_WAY_WEIGHT));
+				} else if(reverseCount > 0) {
+					edges.add(new Pair(a, b, typicalDelay - differences.getLowDifference(b, a), reverseCount * ONE_WAY_WEIGHT));
+				}
+			}
+		}
+		
+		// the pairs each device is part of
+		ArrayList<ArrayList<Pair>> adjacent = new ArrayList<ArrayList<Pair>>();
+		double[] totalWeights = new double[deviceCount];
+		
+		for(int i = 0; i < deviceCount; i++) {
+			adjacent.add(new ArrayList<Pair>());
+		}
+		
+		for(Pair edge : edges) {
+			adjacent.get(edge.a).add(edge);
+			adjacent.get(edge.b).add(edge);
+			totalWeights[edge.a] += edge.weight;
+			totalWeights[edge.b] += edge.weight;
+		}
+		
+		for(int i = 0; i < deviceCount; i++) {
+			pairs[i] = adjacent.get(i).size();
+		}
+		
+		// group the devices that are connected by shared bundles, each group has its own reference
+		Arrays.fill(references, -1);
+		
+		int[] group = new int[deviceCount];
+		Arrays.fill(group, -1);
+		
+		for(int start = 0; start < deviceCount; start++) {
+			
+			if(group[start] != -1 || pairs[start] == 0) {
+				continue;
+			}
+			
+			// flood fill the group, choosing the requested or best connected device as the reference
+			ArrayList<Integer> members = new ArrayList<Integer>();
+			members.add(start);
+			group[start] = start;
+			
+			int best = start;
+			
+			for(int m = 0; m < members.size(); m++) {
+				
+				int device = members.get(m);
+				
+				if(deviceIds[device].equals(reference) == true || (deviceIds[best].equals(reference) == false && totalWeights[device] > totalWeights[best])) {
+					best = device;
+				}
+				
+				for(Pair edge : adjacent.get(device)) {
+					int other = edge.a == device ? edge.b : edge.a;
+					
+					if(group[other] == -1) {
+						group[other] = start;
+						members.add(other);
+					}
+				}
+			}
+			
+			for(int device : members) {
+				references[device] = best;
+			}
+		}
+		
+		if(edges.size() == 0) {
+			return;
+		}
+		
+		// iteratively reweighted least squares, with a huber weight for large residuals
+		double[] residuals = new double[edges.size()];
+		
+		for(int iteration = 0; iteration < REWEIGHT_ITERATIONS; iteration++) {
+			
+			gaussSeidel(adjacent, offsets, references);
+			
+			for(int k = 0; k < edges.size(); k++) {
+				Pair edge = edges.get(k);
+				residuals[k] = Math.abs(offsets[edge.b] - offsets[edge.a] - edge.estimate);
+			}
+			
+			// robust scale of the residuals from the median absolute residual
+			double[] sorted = residuals.clone();
+			Arrays.sort(sorted);
+			
+			double limit = Math.max(MIN_HUBER_LIMIT, 1.345 * 1.4826 * sorted[sorted.length / 2]);
+			
+			for(int k = 0; k < edges.size(); k++) {
+				Pair edge = edges.get(k);
+				edge.solverWeight = edge.weight * (residuals[k] <= limit ? 1.0 : limit / residuals[k]);
+			}
+		}
+	}
+	
+	/*
+	 * solve the weighted least squares problem by gauss seidel iteration,
+	 * holding the offset of each reference device at zero
+	 */
+	private void gaussSeidel(ArrayList<ArrayList<Pair>> adjacent, double[] offsets, int[] references) {
+		
+		for(int iteration = 0; iteration < SOLVER_ITERATIONS; iteration++) {
+			
+			double maxChange = 0;
+			
+			for(int device = 0; device < offsets.length; device++) {
+				
+				if(references[device] == -1 || references[device] == device) {
+					offsets[device] = 0;
+					continue;
+				}
+				
+				double sum = 0;
+				double total = 0;
+				
+				for(Pair edge : adjacent.get(device)) {
+					if(edge.b == device) {
+						sum += edge.solverWeight * (offsets[edge.a] + edge.estimate);
+					} else {
+						sum += edge.solverWeight * (offsets[edge.b] - edge.estimate);
+					}
+					total += edge.solverWeight;
+				}
+				
+				double updated = sum / total;
+				maxChange = Math.max(maxChange, Math.abs(updated - offsets[device]));
+				offsets[device] = updated;
+			}
+			
+			if(maxChange < SOLVER_TOLERANCE) {
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * add the corrected time column if required and populate it for every device
+	 */
+	private void updateCorrectedTimes(double[] offsets) throws TaskException {
+		
+		String sql = null;
+		
+		try {
+			if(DatabaseUtils.doesColumnExist(connection, tableName, CORRECTED_TIME_COLUMN) == false) {
+				
+				Statement statement = connection.createStatement();
+				
+				sql = "ALTER TABLE " + tableName + " ADD COLUMN " + CORRECTED_TIME_COLUMN + " BIGINT";
+				statement.executeUpdate(sql);
+				
+				sql = "CREATE INDEX " + tableName + "_" + CORRECTED_TIME_COLUMN + " ON " + tableName + "(" + CORRECTED_TIME_COLUMN + ")";
+				statement.executeUpdate(sql);
+				
+				statement.close();
+			}
+			
+			sql = "UPDATE " + tableName + " SET " + CORRECTED_TIME_COLUMN + " = file_insert_time - ? WHERE tablet_id = ?";
+			
+			PreparedStatement statement = connection.prepareStatement(sql);
+			
+			for(int i = 0; i < deviceIds.length; i++) {
+				statement.setLong(1, Math.round(offsets[i]));
+				statement.setString(2, deviceIds[i]);
+				
+				long updateStart = System.nanoTime();
+				int rows = statement.executeUpdate();
+				
+				getMetrics().recordTime("update.corrected", updateStart);
+				getMetrics().add("rows.written", rows);
+			}
+			
+			statement.close();
+			
+		} catch (SQLException e) {
+			throw new TaskException("unable to store the corrected times using '" + sql + "': " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * check to see if the corrected times have been stored in a table, the
+	 * column is created along with the table so the times are only known to
+	 * be available once a row has a corrected time
+	 *
+	 * @param connection a valid connection to the database
+	 * @param tableName the name of the table to check
+	 * @return true if the table has corrected times, false if it does not
+	 * @throws SQLException if something bad happens
+	 */
+	public static boolean hasCorrectedTimes(Connection connection, String tableName) throws SQLException {
+		
+		if(DatabaseUtils.doesColumnExist(connection, tableName, CORRECTED_TIME_COLUMN) == false) {
+			return false;
+		}
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet resultSet = statement.executeQuery("SELECT 1 FROM " + tableName + " WHERE " + CORRECTED_TIME_COLUMN + " IS NOT NULL LIMIT 1");
+			boolean corrected = resultSet.next();
+			
+			resultSet.close();
+			
+			return corrected;
+		} finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+	/*
+	 * the estimated offset between a pair of devices
+	 */
+	private static class Pair {
+		
+		private int a;
+		private int b;
+		private double estimate;
+		private double weight;
+		private double solverWeight;
+		
+		Pair(int a, int b, double estimate, double weight) {
+			this.a = a;
+			this.b = b;
+			this.estimate = estimate;
+			this.weight = weight;
+			this.solverWeight = weight;
+		}
+	}
+	
+	/*
+	 * the lowest differences observed for each ordered pair of devices
+	 */
+	private static class PairDifferences {
+		
+		private int deviceCount;
+		private long[][] lowest;
+		private int[] kept;
+		private long[] counts;
+		
+		private long totalCount = 0;
+		
+		PairDifferences(int deviceCount) {
+			this.deviceCount = deviceCount;
+			lowest = new long[deviceCount * deviceCount][];
+			kept = new int[deviceCount * deviceCount];
+			counts = new long[deviceCount * deviceCount];
+		}
+		
+		// record a difference, keeping only the lowest values
+		void add(int from, int to, long difference) {
+			
+			int pair = from * deviceCount + to;
+			
+			counts[pair]++;
+			totalCount++;
+			
+			keep(pair, difference);
+		}
+		
+		private void keep(int pair, long difference) {
+			
+			if(lowest[pair] == null) {
+				lowest[pair] = new long[KEPT_DIFFERENCES];
+			}
+			
+			long[] values = lowest[pair];
+			int size = kept[pair];
+			
+			if(size == KEPT_DIFFERENCES) {
+				if(difference >= values[size - 1]) {
+					return;
+				}
+				size--;
+			}
+			
+			// insert in ascending order
+			int i = size;
+			
+			while(i > 0 && values[i - 1] > difference) {
+				values[i] = values[i - 1];
+				i--;
+			}
+			
+			values[i] = difference;
+			kept[pair] = size + 1;
+		}
+		
+		// combine the differences from another partition
+		void merge(PairDifferences other) {
+			
+			for(int pair = 0; pair < counts.length; pair++) {
+				
+				counts[pair] += other.counts[pair];
+				
+				for(int i = 0; i < other.kept[pair]; i++) {
+					keep(pair, other.lowest[pair][i]);
+				}
+			}
+			
+			totalCount += other.totalCount;
+		}
+		
+		long getCount(int from, int to) {
+			return counts[from * deviceCount + to];
+		}
+		
+		long getTotalCount() {
+			return totalCount;
+		}
+		
+		// the low order statistic used as the fastest transfer, after discarding outliers
+		long getLowDifference(int from, int to) {
+			
+			int pair = from * deviceCount + to;
+			
+			int rank = (int) Math.min(KEPT_DIFFERENCES, Math.max(1, Math.ceil(counts[pair] * TRIM_FRACTION)));
+			
+			return lowest[pair][rank - 1];
+		}
+	}
+}
@@ -24,6 +24,7 @@ import java.sql.Statement;
 
 import org.apache.commons.configuration.Configuration;
 import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.StorageBackend;
 import org.magdaaproject.utils.StringUtils;
 
 import java.sql.Connection;
@@ -34,11 +35,22 @@ import java.sql.Connection;
  */
 public class CreateTable extends AbstractTask {
 	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the profiles of table that can be created, the basic profile stores the
+	 * columns required by the analysis tasks, the extended profile also stores
+	 * the version, service, sender, recipient and hash of each manifest
+	 */
+	public static final String[] TABLE_PROFILES = {"basic", "extended"};
+	
 	/*
 	 * private class level variables
 	 */
 	private Configuration config;
 	private String tableName;
+	private boolean extended;
 	
 	private Connection connection = null;
 	
@@ -47,8 +59,9 @@ public class CreateTable extends AbstractTask {
 	 * 
 	 * @param config a Configuration object with preferences
 	 * @param tableName the name of the table
+	 * @param profile one of the TABLE_PROFILES, or null for the basic profile
 	 */
-	public CreateTable(Configuration config, String tableName) {
+	public CreateTable(Configuration config, String tableName, String profile) {
 		
 		// validate the parameters
 		if(config == null) {
@@ -59,8 +72,14 @@ public class CreateTable extends AbstractTask {
 			throw new IllegalArgumentException("the table name is required");
 		}
 		
+		if(profile != null && StringUtils.isInArray(profile, TABLE_PROFILES) == false) {
+			throw new IllegalArgumentException("unrecognised table profile '" + profile + "'");
+		}
+		
 		this.config = config;
 		this.tableName = tableName;
+		
+		extended = TABLE_PROFILES[1].equals(profile);
 	}
 
 	/**
@@ -71,7 +90,7 @@ public class CreateTable extends AbstractTask {
 		
 		// get a connection to the database
 		try {
-			connection = DatabaseUtils.getMysqlConnection(config);
+			connection = DatabaseUtils.getConnection(config);
 		} catch (SQLException e) {
 			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
 		}
@@ -86,21 +105,36 @@ public class CreateTable extends AbstractTask {
 		}
 		
 		// create the table
+		StorageBackend backend = DatabaseUtils.getStorageBackend(config);
 		Statement createStatement;
 		try {
 			 createStatement = connection.createStatement();
 			 
 			 // create the table
 			 String sql = "CREATE TABLE " + tableName + " ("
-					 + "id BIGINT NOT NULL auto_increment, "
+					 + backend.getIdentityColumn("id") + ", "
 					 + "tablet_id VARCHAR(10) NOT NULL, "
 					 + "file_id VARCHAR(70) NOT NULL, "
 					 + "file_name VARCHAR(250) NOT NULL, "
 					 + "file_author_sid VARCHAR(70), "
 					 + "file_insert_time BIGINT, "
+					 + ClockSkew.CORRECTED_TIME_COLUMN + " BIGINT, "
 					 + "file_size BIGINT NOT NULL, "
-					 + "origin CHAR(1) NOT NULL DEFAULT '" + DatabaseUtils.DATABASE_CONST_NO + "', "
-					 + "PRIMARY KEY(id)) CHARACTER SET 'utf8'";
+					 + "origin CHAR(1) NOT NULL DEFAULT '" + DatabaseUtils.DATABASE_CONST_NO + "'";
+			 
+			 // the extended columns only ever contain hex strings and short names, so use
+			 // the single byte ascii character set to keep the rows narrow
+			 if(extended == true) {
+				 String ascii = backend.getCharacterSet("ascii");
+				 
+				 sql += ", file_version BIGINT, "
+						 + "file_service VARCHAR(20)" + ascii + ", "
+						 + "file_sender_sid CHAR(64)" + ascii + ", "
+						 + "file_recipient_sid CHAR(64)" + ascii + ", "
+						 + "file_hash CHAR(128)" + ascii;
+			 }
+			 
+			 sql += ")" + backend.getCharacterSet("utf8");
 			 
 			 createStatement.executeUpdate(sql);
 			 
@@ -117,6 +151,9 @@ public class CreateTable extends AbstractTask {
 			 sql = "CREATE INDEX " + tableName + "_file_insert_time" + " ON " + tableName + "(file_insert_time)";
 			 createStatement.executeUpdate(sql);
 			 
+			 sql = "CREATE INDEX " + tableName + "_" + ClockSkew.CORRECTED_TIME_COLUMN + " ON " + tableName + "(" + ClockSkew.CORRECTED_TIME_COLUMN + ")";
+			 createStatement.executeUpdate(sql);
+			 
 			 sql = "CREATE INDEX " + tableName + "_file_size" + " ON " + tableName + "(file_size)";
 			 createStatement.executeUpdate(sql);
 			 
@@ -126,6 +163,24 @@ public class CreateTable extends AbstractTask {
 			 sql = "CREATE INDEX " + tableName + "_origin" + " ON " + tableName + "(origin)";
 			 createStatement.executeUpdate(sql);
 			 
+			 if(extended == true) {
+				 sql = "CREATE INDEX " + tableName + "_file_service" + " ON " + tableName + "(file_service)";
+				 createStatement.executeUpdate(sql);
+				 
+				 sql = "CREATE INDEX " + tableName + "_file_sender_sid" + " ON " + tableName + "(file_sender_sid)";
+				 createStatement.executeUpdate(sql);
+				 
+				 sql = "CREATE INDEX " + tableName + "_file_recipient_sid" + " ON " + tableName + "(file_recipient_sid)";
+				 createStatement.executeUpdate(sql);
+			 }
+			 
+			 // a log or leases left by a previous table of the same name would cause its devices to be skipped
+			 sql = "DROP TABLE IF EXISTS " + tableName + BatchImport.IMPORT_LOG_SUFFIX;
+			 createStatement.executeUpdate(sql);
+			 
+			 sql = "DROP TABLE IF EXISTS " + tableName + BatchImport.LEASE_SUFFIX;
+			 createStatement.executeUpdate(sql);
+			 
 			 // play nice and tidy up
 			 createStatement.close();
 			 
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.DeviceBundleSets;
+import org.magdaaproject.utils.StringUtils;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * calculate the number of shared bundles, and the Jaccard index, for every pair of devices
+ */
+public class DeviceOverlap extends AbstractTask {
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File outputFile;
+	private int threadCount;
+	
+	private Connection connection = null;
+	
+	private String[] headers = {"device_a", "device_b", "bundles_a", "bundles_b", "shared", "jaccard"};
+	
+	/**
+	 * create the class
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param outputFile the name of the output file
+	 * @param threadCount the number of threads to use, or null for one per processor
+	 */
+	public DeviceOverlap(Configuration config, String tableName, File outputFile, Integer threadCount) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("outputFile is a required parameter");
+		}
+		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.outputFile = outputFile;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+	}
+	
+	/**
+	 * undertake the generation of the overlap matrix
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// load the bundles held by each device in a single pass
+		final DeviceBundleSets sets;
+		long scanStart = System.nanoTime();
+		
+		try {
+			sets = DeviceBundleSets.load(config, connection, tableName);
+		} catch (SQLException e) {
+			throw new TaskException("unable to load the bundles held by each device:\n" + e.getMessage());
+		}
+		
+		getMetrics().recordTime("scan.bundles", scanStart);
+		getMetrics().add("rows.read", sets.getRowCount());
+		
+		final int deviceCount = sets.getDeviceCount();
+		
+		final int[] bundleCounts = new int[deviceCount];
+		
+		for(int i = 0; i < deviceCount; i++) {
+			bundleCounts[i] = sets.getBundleCount(i);
+		}
+		
+		// calculate the upper triangle of the matrix, one row per unit of work
+		final int[][] shared = new int[deviceCount][deviceCount];
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		
+		for(int i = 0; i < deviceCount; i++) {
+			final int deviceA = i;
+			
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					for(int deviceB = deviceA; deviceB < deviceCount; deviceB++) {
+						shared[deviceA][deviceB] = sets.getSharedBundleCount(deviceA, deviceB);
+					}
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for(Future<Object> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while calculating the overlap matrix", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to calculate the overlap matrix", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// output the full matrix
+		CSVWriter writer = null;
+		String[] values = new String[headers.length];
+		
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+			int count;
+			int union;
+			
+			for(int a = 0; a < deviceCount; a++) {
+				for(int b = 0; b < deviceCount; b++) {
+					
+					// the matrix is symmetric
+					if(a <= b) {
+						count = shared[a][b];
+					} else {
+						count = shared[b][a];
+					}
+					
+					union = bundleCounts[a] + bundleCounts[b] - count;
+					
+					values[0] = sets.getDeviceId(a);
+					values[1] = sets.getDeviceId(b);
+					values[2] = Integer.toString(bundleCounts[a]);
+					values[3] = Integer.toString(bundleCounts[b]);
+					values[4] = Integer.toString(count);
+					
+					if(union == 0) {
+						values[5] = "0";
+					} else {
+						values[5] = Double.toString((double) count / union);
+					}
+					
+					writer.writeNext(values);
+				}
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file: " + e.getMessage());
+		} finally {
+			try {
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+}
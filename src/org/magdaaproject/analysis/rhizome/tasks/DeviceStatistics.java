@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.AggregateQuery;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * calculate the statistics of the bundles held by each device
+ *
+ * the counts are calculated by the database in a single pass grouped by
+ * device, and the median receive delays are calculated from the received
+ * copies of each device, which are read in parallel using the index of the
+ * tablet id
+ */
+public class DeviceStatistics extends AbstractTask {
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File outputFile;
+	private String timeColumn;
+	private int threadCount;
+	
+	private Connection connection = null;
+	
+	private String[] headers = {"tablet_id", "bundles_held", "bytes_held", "bundles_originated", "bundles_received", "median_receive_delay", "unique_to_device"};
+	
+	/**
+	 * create the class
+	 * @param config a Configuration object with details about the database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param outputFile the name of the output file
+	 * @param correctedTimes if true use the insert times corrected for clock skew
+	 * @param threadCount the number of threads to use, or null for one per processor
+	 */
+	public DeviceStatistics(Configuration config, String tableName, File outputFile, boolean correctedTimes, Integer threadCount) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("outputFile is a required parameter");
+		}
+		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.outputFile = outputFile;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
+		if(correctedTimes == true) {
+			timeColumn = ClockSkew.CORRECTED_TIME_COLUMN;
+		} else {
+			timeColumn = "file_insert_time";
+		}
+	}
+	
+	/**
+	 * undertake the calculation of the statistics of each device
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// check if the corrected times are available
+		try {
+			if(timeColumn.equals(ClockSkew.CORRECTED_TIME_COLUMN) == true && ClockSkew.hasCorrectedTimes(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't have corrected times, use the clock-skew task first");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// the counts for every device in a single pass
+		AggregateQuery query = new AggregateQuery(tableName).groupBy("tablet_id");
+		
+		query.add("bundles", "COUNT(file_id)");
+		query.add("bytes", "SUM(file_size)");
+		query.addCount("originated", "origin = '" + DatabaseUtils.DATABASE_CONST_YES + "'");
+		query.addCount("received", "origin <> '" + DatabaseUtils.DATABASE_CONST_YES + "'");
+		query.addCount("unique", "NOT EXISTS (SELECT 1 FROM " + tableName + " AS other_copy WHERE other_copy.file_id = " + tableName + ".file_id AND other_copy.tablet_id <> " + tableName + ".tablet_id)");
+		
+		Map<String, Map<String, String>> devices = null;
+		TaskPhase phase = beginPhase("device.statistics", tableName);
+		long queryStart = System.nanoTime();
+		
+		try {
+			devices = query.executeGroups(connection);
+		} catch (SQLException e) {
+			throw new TaskException("unable to execute statement '" + query.getSql() + "': " + e.getMessage());
+		} finally {
+			phase.setRowCount(devices == null ? 0 : devices.size()).end();
+			getMetrics().recordTime("query.device.statistics", queryStart);
+			getMetrics().add("rows.read", devices == null ? 0 : devices.size());
+		}
+		
+		if(devices.size() == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
+		
+		String[] deviceIds = devices.keySet().toArray(new String[devices.size()]);
+		Long[] medianDelays = getMedianDelays(deviceIds);
+		
+		// output the statistics of each device
+		CSVWriter writer = null;
+		String[] values = new String[headers.length];
+		
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+			for(int i = 0; i < deviceIds.length; i++) {
+				
+				Map<String, String> device = devices.get(deviceIds[i]);
+				
+				values[0] = deviceIds[i];
+				values[1] = device.get("bundles");
+				values[2] = device.get("bytes");
+				values[3] = device.get("originated");
+				values[4] = device.get("received");
+				values[5] = medianDelays[i] == null ? "" : Long.toString(medianDelays[i]);
+				values[6] = device.get("unique");
+				
+				writer.writeNext(values);
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file: " + e.getMessage());
+		} finally {
+			try {
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * calculate the median delay between the insert time of the origin copy and
+	 * the received copies of each device, the devices are shared between the
+	 * threads, each of which reuses its own connection
+	 */
+	private Long[] getMedianDelays(final String[] deviceIds) throws TaskException {
+		
+		final Long[] medianDelays = new Long[deviceIds.length];
+		final AtomicInteger nextDevice = new AtomicInteger(0);
+		
+		/*
+		 * the received copies on the device, along with the delay since the bundle was inserted on the origin device,
+		 * the origin of the origin copy is compared using an expression so that it is found using the index of the
+		 * file id rather than the much less selective index of the origin
+		 */
+		final String sql = "SELECT device_copy." + timeColumn + " - origin_copy." + timeColumn + " "
+				+ "FROM " + tableName + " AS device_copy, " + tableName + " AS origin_copy "
+				+ "WHERE device_copy.tablet_id = ? "
+				+ "AND device_copy.origin <> '" + DatabaseUtils.DATABASE_CONST_YES + "' "
+				+ "AND device_copy." + timeColumn + " IS NOT NULL "
+				+ "AND origin_copy.file_id = device_copy.file_id "
+				+ "AND UPPER(origin_copy.origin) = '" + DatabaseUtils.DATABASE_CONST_YES + "' "
+				+ "AND origin_copy." + timeColumn + " IS NOT NULL";
+		
+		int workers = Math.min(threadCount, deviceIds.length);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		
+		for(int i = 0; i < workers; i++) {
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws SQLException {
+					
+					Connection deviceConnection = DatabaseUtils.getConnection(config);
+					
+					try {
+						PreparedStatement statement = DatabaseUtils.prepareStreamingStatement(config, deviceConnection, sql);
+						
+						int device;
+						long[] delays = new long[1024];
+						
+						while((device = nextDevice.getAndIncrement()) < deviceIds.length) {
+							
+							TaskPhase phase = beginPhase("device.delay.scan", tableName).setDeviceId(deviceIds[device]);
+							long scanStart = System.nanoTime();
+							int count = 0;
+							
+							try {
+								statement.setString(1, deviceIds[device]);
+								
+								ResultSet resultSet = statement.executeQuery();
+								
+								while(resultSet.next() == true) {
+									
+									if(count == delays.length) {
+										delays = Arrays.copyOf(delays, count * 2);
+									}
+									
+									delays[count++] = resultSet.getLong(1);
+								}
+								
+								resultSet.close();
+							} finally {
+								phase.setRowCount(count).end();
+								getMetrics().recordTime("scan.device", scanStart);
+								getMetrics().add("rows.read", count);
+							}
+							
+							medianDelays[device] = median(delays, count);
+						}
+						
+						statement.close();
+					} finally {
+						deviceConnection.close();
+					}
+					
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for(Future<Object> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while calculating the receive delays", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to calculate the receive delays", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return medianDelays;
+	}
+	
+	// the median of the first values of an array, or null if there are none
+	private static Long median(long[] values, int count) {
+		
+		if(count == 0) {
+			return null;
+		}
+		
+		Arrays.sort(values, 0, count);
+		
+		long lower = values[(count - 1) / 2];
+		long upper = values[count / 2];
+		
+		return lower + (upper - lower) / 2;
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+}
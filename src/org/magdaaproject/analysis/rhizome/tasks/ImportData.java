@@ -20,36 +20,85 @@
 package org.magdaaproject.analysis.rhizome.tasks;
 
 import java.io.File;
-import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.apache.commons.configuration.Configuration;
 import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.RhizomeDatabase;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskMetrics;
+import org.magdaaproject.utils.TaskPhase;
 
 /**
  * class to undertake the task of importing rhizome data
  * into the working database
+ * 
+ * the columns of the manifests table are detected for each rhizome database,
+ * as older versions of rhizome don't store all of them, only those columns
+ * that are present in both the rhizome database and the destination table
+ * are read and imported
+ * 
+ * the data from each rhizome database is imported in a single transaction,
+ * so a failed import leaves no partial data behind
+ * 
+ * an incremental import only reads the manifests inserted on or after the
+ * latest insert time already imported from the device, updating any records
+ * for the same files in place, so that a database can be imported again as it
+ * grows without losing the origin or the corrected time of a record
  */
 public class ImportData extends AbstractTask {
 	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default number of rows sent to the destination database in a single batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// columns of the manifests table that are always required
+	private static final String[] REQUIRED_COLUMNS = {"id", "name", "author", "inserttime", "filesize"};
+	
+	// optional columns of the manifests table and the matching columns of the extended table
+	private static final String[][] OPTIONAL_COLUMNS = {
+		{"version", "file_version"},
+		{"service", "file_service"},
+		{"sender", "file_sender_sid"},
+		{"recipient", "file_recipient_sid"},
+		{"filehash", "file_hash"}
+	};
+	
 	/*
 	 * private class level variables
 	 */
 	private Configuration config;
 	private String tableName = null;
 	private File inputFile = null;
+	private String sourcePath = null;
 	private String tabletId = null;
 	private long insertCount = 0;
+	private long updateCount = 0;
+	private long startTime = 0;
+	private String importLogTable = null;
+	private boolean incremental = false;
 	
 	private Connection sourceConnection = null;
 	private Connection destConnection = null;
 	
+	// the optional columns, and the corrected time column, that exist in the destination table
+	private HashSet<String> destColumns = new HashSet<String>();
+	
 	/**
 	 * imports the data from a Rhizome database into the MySQL table
 	 * 
@@ -111,13 +160,30 @@ public class ImportData extends AbstractTask {
 	 * undertake the task of importing the data
 	 */
 	public void doTask() throws TaskException {
+		
+		TaskPhase phase = beginPhase("device.import", tableName).setDeviceId(tabletId);
+		
+		try {
+			importRecords();
+		} finally {
+			phase.setRowCount(insertCount + updateCount).end();
+		}
+	}
+	
+	// import the records of the rhizome database
+	private void importRecords() throws TaskException {
 
 		// get a connection to the source database
 		Statement sourceStatement = null;
 		ResultSet sourceResultSet = null;
 		
-		//reset the insert count
+		//reset the insert and update counts
 		insertCount = 0;
+		updateCount = 0;
+		startTime = System.currentTimeMillis();
+		
+		TaskMetrics metrics = getMetrics();
+		long callStart = System.nanoTime();
 		
 		if(sourceConnection != null) {
 			try {
@@ -129,70 +195,402 @@ public class ImportData extends AbstractTask {
 		}
 		
 		try {
-			sourceConnection = DriverManager.getConnection("jdbc:sqlite:" + inputFile.getCanonicalPath());
+			sourceConnection = RhizomeDatabase.getReadOnlyConnection(config, inputFile);
 			sourceStatement = sourceConnection.createStatement();
-			sourceStatement.setQueryTimeout(30);
+			
+			metrics.recordTime("connection.rhizome", callStart);
+			metrics.add("bytes.scanned", inputFile.length());
 		} catch (SQLException e) {
-			throw new TaskException("unable to open connection to the Rhizome database", e);
-		} catch (IOException e) {
-			throw new TaskException("unable to open connection to the Rhizome database", e);
+			throw new TaskException("unable to open connection to the Rhizome database:\n" + e.getMessage(), e);
 		}
 		
-		// get the data
+		// determine which of the optional columns this version of rhizome provides
+		HashSet<String> sourceColumns = new HashSet<String>();
+		
 		try {
-			sourceResultSet = sourceStatement.executeQuery("select id, name, author, inserttime, filesize from manifests;");
+			sourceResultSet = sourceStatement.executeQuery("PRAGMA table_info(manifests)");
+			
+			while(sourceResultSet.next() == true) {
+				sourceColumns.add(sourceResultSet.getString("name").toLowerCase());
+			}
+			
+			sourceResultSet.close();
 		} catch (SQLException e) {
-			throw new TaskException("unable to query the database", e);
+			throw new TaskException("unable to query the database: " + e.getMessage(), e);
+		}
+		
+		for(String column : REQUIRED_COLUMNS) {
+			if(sourceColumns.contains(column) == false) {
+				throw new TaskException("the manifests table doesn't contain the required '" + column + "' column");
+			}
 		}
 		
 		// get a connection to the destination database if required
+		boolean readProfile = false;
+		
 		if(destConnection == null) {
 			try {
-				destConnection = DatabaseUtils.getMysqlConnection(config);
+				callStart = System.nanoTime();
+				
+				destConnection = DatabaseUtils.getConnection(config);
+				destConnection.setAutoCommit(false);
+				
+				metrics.recordTime("connection.mysql", callStart);
 			} catch (SQLException e) {
 				throw new TaskException("unable to open connection to the MySQL database", e);
 			}
 			
-			// check if the table already exists
+			// the profile of the table is read once the connection is open
+			readProfile = true;
+		}
+		
+		// once the destination connection is open any failure rolls back the transaction, so that it isn't carried into the next import
+		try {
+			if(readProfile == true) {
+				readTableProfile();
+			}
+			
+			writeRecords(sourceStatement, sourceColumns);
+			
+		} catch (TaskException e) {
+			
+			insertCount = 0;
+			updateCount = 0;
+			
+			try {
+				destConnection.rollback();
+			} catch (SQLException ex) {
+				throw new TaskException(e.getMessage() + "\nand unable to roll back the import: " + ex.getMessage(), e);
+			}
+			
+			throw e;
+		}
+	}
+	
+	// check that the destination table exists and determine its profile
+	private void readTableProfile() throws TaskException {
+		
+		try {
+			if(DatabaseUtils.doesTableExist(destConnection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+			
+			// determine the profile of the table
+			destColumns.clear();
+			
+			for(String[] column : OPTIONAL_COLUMNS) {
+				if(DatabaseUtils.doesColumnExist(destConnection, tableName, column[1]) == true) {
+					destColumns.add(column[1]);
+				}
+			}
+			
+			if(DatabaseUtils.doesColumnExist(destConnection, tableName, ClockSkew.CORRECTED_TIME_COLUMN) == true) {
+				destColumns.add(ClockSkew.CORRECTED_TIME_COLUMN);
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+	}
+	
+	// write the records of the rhizome database to the destination table, in a single transaction
+	private void writeRecords(Statement sourceStatement, HashSet<String> sourceColumns) throws TaskException {
+		
+		ResultSet sourceResultSet = null;
+		
+		int batchSize = config.getInt("import.batch.size", DEFAULT_BATCH_SIZE);
+		
+		TaskMetrics metrics = getMetrics();
+		long callStart;
+		
+		// find the latest insert time already imported from the device, and the files already imported
+		Long sinceTime = null;
+		HashSet<String> existingFiles = null;
+		
+		if(incremental == true) {
 			try {
-				if(DatabaseUtils.doesTableExist(destConnection, tableName) == false) {
-					throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+				PreparedStatement sinceStatement = destConnection.prepareStatement("SELECT MAX(file_insert_time) FROM " + tableName + " WHERE tablet_id = ?");
+				sinceStatement.setString(1, tabletId);
+				
+				ResultSet sinceResultSet = sinceStatement.executeQuery();
+				
+				if(sinceResultSet.next() == true) {
+					sinceTime = sinceResultSet.getLong(1);
+					
+					if(sinceResultSet.wasNull() == true) {
+						sinceTime = null;
+					}
+				}
+				
+				sinceResultSet.close();
+				sinceStatement.close();
+				
+				if(sinceTime != null) {
+					
+					existingFiles = new HashSet<String>();
+					
+					PreparedStatement filesStatement = destConnection.prepareStatement("SELECT file_id FROM " + tableName + " WHERE tablet_id = ?");
+					filesStatement.setString(1, tabletId);
+					
+					ResultSet filesResultSet = filesStatement.executeQuery();
+					
+					while(filesResultSet.next() == true) {
+						existingFiles.add(filesResultSet.getString(1));
+					}
+					
+					filesResultSet.close();
+					filesStatement.close();
 				}
 			} catch (SQLException e) {
-				throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+				throw new TaskException("unable to find the records already imported:\n" + e.getMessage());
 			}
 		}
 		
-		String sql = "INSERT INTO " + tableName + " (tablet_id, file_id, file_name, file_author_sid, file_insert_time, file_size) VALUES (?,?,?,?,?,?)";
+		// project only the optional columns that are in both tables
+		ArrayList<String[]> columns = new ArrayList<String[]>();
+		
+		for(String[] column : OPTIONAL_COLUMNS) {
+			if(sourceColumns.contains(column[0]) == true && destColumns.contains(column[1]) == true) {
+				columns.add(column);
+			}
+		}
+		
+		StringBuilder select = new StringBuilder("select id, name, author, inserttime, filesize");
+		StringBuilder insert = new StringBuilder("INSERT INTO " + tableName + " (tablet_id, file_id, file_name, file_author_sid, file_insert_time, file_size");
+		StringBuilder values = new StringBuilder("?,?,?,?,?,?");
+		
+		/*
+		 * the existing record of a file is updated using the same parameters as the insert, after those of the
+		 * tablet id and file id, the corrected time is moved by the change in the insert time, and is assigned
+		 * first as MySQL assigns the columns in order
+		 */
+		boolean corrected = destColumns.contains(ClockSkew.CORRECTED_TIME_COLUMN);
+		StringBuilder update = new StringBuilder("UPDATE " + tableName + " SET ");
+		
+		if(corrected == true) {
+			update.append(ClockSkew.CORRECTED_TIME_COLUMN + " = " + ClockSkew.CORRECTED_TIME_COLUMN + " + ? - file_insert_time, ");
+		}
+		
+		update.append("file_name = ?, file_author_sid = ?, file_insert_time = ?, file_size = ?");
+		
+		for(String[] column : columns) {
+			select.append(", " + column[0]);
+			insert.append(", " + column[1]);
+			values.append(",?");
+			update.append(", " + column[1] + " = ?");
+		}
+		
+		select.append(" from manifests");
+		
+		// manifests inserted at the same time as the latest are read again, and update the existing records
+		if(sinceTime != null) {
+			select.append(" where inserttime >= " + sinceTime);
+		}
+		
+		select.append(";");
+		insert.append(") VALUES (" + values + ")");
+		update.append(" WHERE tablet_id = ? AND file_id = ?");
+		
+		// get the data
+		try {
+			callStart = System.nanoTime();
+			sourceResultSet = sourceStatement.executeQuery(select.toString());
+			metrics.recordTime("query.manifests", callStart);
+		} catch (SQLException e) {
+			throw new TaskException("unable to query the database: " + e.getMessage(), e);
+		}
 		
 		// define a prepared statement
 		PreparedStatement destStatement = null;
+		PreparedStatement updateStatement = null;
 		
 		try {
-			destStatement = destConnection.prepareStatement(sql);
+			destStatement = destConnection.prepareStatement(insert.toString());
+			
+			if(existingFiles != null) {
+				updateStatement = destConnection.prepareStatement(update.toString());
+			}
 		} catch (SQLException e) {
 			throw new TaskException("unable to create insert statement", e);
 		}
 		
-		// import the data
+		// the version is the only numeric optional column
+		boolean[] numeric = new boolean[columns.size()];
+		
+		for(int i = 0; i < columns.size(); i++) {
+			numeric[i] = columns.get(i)[0].equals("version");
+		}
+		
+		// import the data, the columns are read by position in the order they were
+		// selected, and the tablet id is bound once per batch as parameter values are
+		// kept between rows, although not all drivers keep them once a batch is executed
 		try {
+			destStatement.setString(1, tabletId);
+			
+			int optionalCount = columns.size();
+			int batchInserts = 0;
+			int batchUpdates = 0;
+			
+			// the offset of the parameters of the update from those of the insert
+			int updateOffset = (corrected == true ? 1 : 0) - 2;
+			String fileId;
+			
 			while (sourceResultSet.next() == true) {
 				
-				destStatement.setString(1, tabletId);
-				destStatement.setString(2, sourceResultSet.getString("id"));
-				destStatement.setString(3, sourceResultSet.getString("name"));
-				destStatement.setString(4, sourceResultSet.getString("author"));
-				destStatement.setLong(5, sourceResultSet.getLong("inserttime"));
-				destStatement.setLong(6, sourceResultSet.getLong("filesize"));
-				destStatement.executeUpdate();
+				fileId = sourceResultSet.getString(1);
+				
+				if(existingFiles != null && existingFiles.contains(fileId) == true) {
+					
+					// update the existing record for the same file, keeping its origin
+					if(corrected == true) {
+						updateStatement.setLong(1, sourceResultSet.getLong(4));
+					}
+					
+					setValues(updateStatement, updateOffset, sourceResultSet, numeric);
+					
+					updateStatement.setString(7 + optionalCount + updateOffset, tabletId);
+					updateStatement.setString(8 + optionalCount + updateOffset, fileId);
+					updateStatement.addBatch();
+					batchUpdates++;
+				} else {
+					destStatement.setString(2, fileId);
+					setValues(destStatement, 0, sourceResultSet, numeric);
+					destStatement.addBatch();
+					batchInserts++;
+				}
 				
-				insertCount++;
+				if(batchInserts + batchUpdates == batchSize) {
+					
+					executeBatch(destStatement, updateStatement, batchSize);
+					insertCount += batchInserts;
+					updateCount += batchUpdates;
+					batchInserts = 0;
+					batchUpdates = 0;
+					
+					destStatement.setString(1, tabletId);
+				}
+			}
+			
+			if(batchInserts + batchUpdates > 0) {
+				executeBatch(destStatement, updateStatement, batchInserts + batchUpdates);
+				insertCount += batchInserts;
+				updateCount += batchUpdates;
+			}
+			
+			destStatement.close();
+			
+			if(updateStatement != null) {
+				updateStatement.close();
 			}
+			
+			// record the import in the same transaction as the data
+			if(importLogTable != null) {
+				writeImportLog();
+			}
+			
+			callStart = System.nanoTime();
+			destConnection.commit();
+			metrics.recordTime("commit", callStart);
+			
+			// only the rows that were committed have been written
+			metrics.add("rows.written", insertCount + updateCount);
+			
 		} catch (SQLException e) {
 			throw new TaskException("error in inserting data: '" + e.getMessage());
 		}
 	}
 	
+	/*
+	 * bind the values of a manifest from the file name onwards, the parameters of the insert start with the file name
+	 * at 3, and those of the update are moved by the offset
+	 */
+	private static void setValues(PreparedStatement statement, int offset, ResultSet sourceResultSet, boolean[] numeric) throws SQLException {
+		
+		statement.setString(3 + offset, sourceResultSet.getString(2));
+		statement.setString(4 + offset, sourceResultSet.getString(3));
+		statement.setLong(5 + offset, sourceResultSet.getLong(4));
+		statement.setLong(6 + offset, sourceResultSet.getLong(5));
+		
+		long version;
+		
+		for(int i = 0; i < numeric.length; i++) {
+			
+			if(numeric[i] == true) {
+				version = sourceResultSet.getLong(6 + i);
+				
+				if(sourceResultSet.wasNull() == true) {
+					statement.setNull(7 + i + offset, Types.BIGINT);
+				} else {
+					statement.setLong(7 + i + offset, version);
+				}
+			} else {
+				statement.setString(7 + i + offset, sourceResultSet.getString(6 + i));
+			}
+		}
+	}
+	
+	// send a batch of rows, and the updates of the records they replace, recording the time taken
+	private void executeBatch(PreparedStatement destStatement, PreparedStatement updateStatement, int batchCount) throws SQLException {
+		
+		TaskMetrics metrics = getMetrics();
+		long callStart;
+		
+		if(updateStatement != null) {
+			callStart = System.nanoTime();
+			updateStatement.executeBatch();
+			metrics.recordTime("update.batch", callStart);
+		}
+		
+		callStart = System.nanoTime();
+		destStatement.executeBatch();
+		metrics.recordTime("insert.batch", callStart);
+		
+		metrics.add("rows.read", batchCount);
+	}
+	
+	/*
+	 * record the import in the log table, with the time taken to read and write the
+	 * data so that the throughput can be measured, an incremental import updates the
+	 * existing entry for the device, adding the records it inserted to the count so
+	 * that the count remains the number of records of the device
+	 */
+	private void writeImportLog() throws SQLException {
+		
+		PreparedStatement logStatement;
+		int updated = 0;
+		
+		if(incremental == true) {
+			logStatement = destConnection.prepareStatement("UPDATE " + importLogTable + " SET file_path = ?, record_count = record_count + ?, import_time = ?, import_duration = ? WHERE tablet_id = ?");
+			logStatement.setString(1, getSourcePath());
+			logStatement.setLong(2, insertCount);
+			logStatement.setLong(3, System.currentTimeMillis());
+			logStatement.setLong(4, System.currentTimeMillis() - startTime);
+			logStatement.setString(5, tabletId);
+			updated = logStatement.executeUpdate();
+			logStatement.close();
+		}
+		
+		if(updated == 0) {
+			logStatement = destConnection.prepareStatement("INSERT INTO " + importLogTable + " (tablet_id, file_path, record_count, import_time, import_duration) VALUES (?,?,?,?,?)");
+			logStatement.setString(1, tabletId);
+			logStatement.setString(2, getSourcePath());
+			logStatement.setLong(3, insertCount);
+			logStatement.setLong(4, System.currentTimeMillis());
+			logStatement.setLong(5, System.currentTimeMillis() - startTime);
+			logStatement.executeUpdate();
+			logStatement.close();
+		}
+	}
+	
+	// the path of the database recorded in the log, which may differ from the file read
+	private String getSourcePath() {
+		
+		if(sourcePath != null) {
+			return sourcePath;
+		}
+		
+		return inputFile.getAbsolutePath();
+	}
+	
 	/**
 	 * play nice and close any database related connections and resources
 	 * 
@@ -202,14 +600,50 @@ public class ImportData extends AbstractTask {
 		
 		if(sourceConnection != null) {
 			sourceConnection.close();
+			sourceConnection = null;
 		}
 		
 		if(destConnection != null) {
 			destConnection.close();
+			destConnection = null;
 		}
 		
 	}
 	
+	/**
+	 * record each successful import in a log table, as part of the same
+	 * transaction as the imported data
+	 * 
+	 * @param importLogTable the name of the log table, or null to not record imports
+	 */
+	public void setImportLog(String importLogTable) {
+		this.importLogTable = importLogTable;
+	}
+	
+	/**
+	 * import only the manifests inserted since the latest record already
+	 * imported from the device, replacing the records for the same files
+	 * 
+	 * @param incremental true for an incremental import
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	
+	/**
+	 * close the connection to the rhizome database, leaving the connection
+	 * to the MySQL database open for the next import
+	 * 
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeSourceConnection() throws SQLException {
+		
+		if(sourceConnection != null) {
+			sourceConnection.close();
+			sourceConnection = null;
+		}
+	}
+	
 	/**
 	 * return the number of records inserted into the database
 	 * 
@@ -219,6 +653,15 @@ public class ImportData extends AbstractTask {
 		return insertCount;
 	}
 	
+	/**
+	 * return the number of existing records updated by an incremental import
+	 * 
+	 * @return the number of records updated in the database
+	 */
+	public long getUpdateCount() {
+		return updateCount;
+	}
+	
 	/**
 	 * set the path to the input file
 	 * @param inputFile the path to the Rhizome database file
@@ -229,7 +672,18 @@ public class ImportData extends AbstractTask {
 			throw new IllegalArgumentException("the input file is required");
 		}
 		
-		this.inputFile = inputFile;	
+		this.inputFile = inputFile;
+		sourcePath = null;
+	}
+	
+	/**
+	 * set the path of the database recorded in the import log, when the input
+	 * file is a copy of the database, must be set after the input file
+	 * 
+	 * @param sourcePath the path to the original database
+	 */
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
 	}
 	
 	/**
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * calculate the data for a timeline of the total number of copies of bundles on the mesh
+ */
+public class MeshReplicas extends AbstractTask {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default width of a bucket, in seconds
+	 */
+	public static final long DEFAULT_BUCKET_WIDTH = 60;
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File outputFile;
+	private long bucketWidth;
+	
+	private Connection connection = null;
+	
+	private String[] values = new String[4];
+	private String[] headers = {"timestamp", "total_copies", "distinct_bundles", "average_copies"};
+	
+	private long rowCount = 0;
+	
+	/**
+	 * create the class
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param outputFile the name of the output file
+	 * @param bucketWidth the width of each bucket in seconds, or null for the default
+	 */
+	public MeshReplicas(Configuration config, String tableName, File outputFile, Long bucketWidth) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("outputFile is a required parameter");
+		}
+		
+		if(bucketWidth != null && bucketWidth < 1) {
+			throw new IllegalArgumentException("the bucket width must be at least one second");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.outputFile = outputFile;
+		
+		if(bucketWidth == null) {
+			this.bucketWidth = DEFAULT_BUCKET_WIDTH * 1000;
+		} else {
+			this.bucketWidth = bucketWidth * 1000;
+		}
+	}
+	
+	/**
+	 * undertake the generation of the csv file for this chart
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		TaskPhase phase = beginPhase("chart.write", tableName);
+		
+		try {
+			writeChart();
+		} finally {
+			phase.setRowCount(rowCount).end();
+		}
+	}
+	
+	// write the rows of the chart to the output file
+	private void writeChart() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		/*
+		 * get every insert event in time order, along with the first insert of each
+		 * bundle so that distinct bundles can be counted without remembering which
+		 * bundles have already been seen
+		 */
+		String sql = "SELECT event_time, first_copy FROM ("
+				+ "SELECT file_insert_time AS event_time, 0 AS first_copy FROM " + tableName + " WHERE file_insert_time IS NOT NULL "
+				+ "UNION ALL "
+				+ "SELECT MIN(file_insert_time), 1 FROM " + tableName + " WHERE file_insert_time IS NOT NULL GROUP BY file_id"
+				+ ") AS events ORDER BY event_time ASC, first_copy DESC";
+		
+		Statement statement = null;
+		ResultSet resultSet = null;
+		
+		long scanStart = System.nanoTime();
+		
+		try {
+			statement = DatabaseUtils.createStreamingStatement(config, connection);
+		} catch (SQLException e) {
+			throw new TaskException("unable to create statement '" + sql + "': " + e.getMessage());
+		}
+		
+		try {
+			resultSet = statement.executeQuery(sql);
+		} catch (SQLException e) {
+			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
+		}
+		
+		// open the output file
+		CSVWriter writer = null;
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to open output file '" + outputFile + "': " + e.getMessage());
+		}
+		
+		long rowsRead = 0;
+		
+		try {
+			
+			long totalCopies = 0;
+			long distinctBundles = 0;
+			long bucketStart = 0;
+			boolean inBucket = false;
+			
+			long eventTime;
+			
+			// sweep through the events, writing a row for each bucket with events
+			while(resultSet.next() == true) {
+				
+				rowsRead++;
+				
+				eventTime = resultSet.getLong(1);
+				
+				if(inBucket == true && eventTime >= bucketStart + bucketWidth) {
+					writeBucket(writer, bucketStart, totalCopies, distinctBundles);
+					inBucket = false;
+				}
+				
+				if(inBucket == false) {
+					bucketStart = eventTime - floorMod(eventTime, bucketWidth);
+					inBucket = true;
+				}
+				
+				if(resultSet.getInt(2) == 1) {
+					distinctBundles++;
+				} else {
+					totalCopies++;
+				}
+			}
+			
+			if(inBucket == true) {
+				writeBucket(writer, bucketStart, totalCopies, distinctBundles);
+			}
+			
+		} catch (SQLException e) {
+			throw new TaskException("unable to get results of sql query '" + sql + "': " + e.getMessage());
+		} finally {
+			try {
+				resultSet.close();
+				statement.close();
+			} catch (SQLException e) {
+				throw new TaskException("unable to clean up database resources: \n" + e.getMessage());
+			}
+			
+			try {
+				writer.close();
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			}
+			
+			getMetrics().recordTime("scan.events", scanStart);
+			getMetrics().add("rows.read", rowsRead);
+		}
+	}
+	
+	// output the values at the end of a bucket
+	private void writeBucket(CSVWriter writer, long bucketStart, long totalCopies, long distinctBundles) {
+		
+		values[0] = Long.toString(bucketStart);
+		values[1] = Long.toString(totalCopies);
+		values[2] = Long.toString(distinctBundles);
+		
+		if(distinctBundles == 0) {
+			values[3] = "0";
+		} else {
+			values[3] = Double.toString((double) totalCopies / distinctBundles);
+		}
+		
+		writer.writeNext(values);
+		rowCount++;
+	}
+	
+	// modulus which is always non-negative, for timestamps before the epoch
+	private static long floorMod(long value, long divisor) {
+		long mod = value % divisor;
+		return mod < 0 ? mod + divisor : mod;
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+}
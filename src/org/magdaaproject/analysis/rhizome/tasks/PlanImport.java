@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.HiddenFileFilter;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.DatasetArchive;
+import org.magdaaproject.utils.DatasetDirectoryWalker;
+import org.magdaaproject.utils.MysqlStorageBackend;
+import org.magdaaproject.utils.RhizomeDatabase;
+import org.magdaaproject.utils.StringUtils;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * plan a batch import without importing any data
+ *
+ * the number of manifests and the number of pages in each rhizome database
+ * are read in parallel, and combined with the throughput measured from the
+ * imports in the import log, and the size of the rows already in the table, to
+ * predict the number of records, the size of the table and the time taken by
+ * the batch import, a thread count and batch size for the import are also
+ * recommended
+ *
+ * devices already in the import log are not read as they would be skipped
+ */
+public class PlanImport extends AbstractTask {
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// limits on the recommended batch size
+	private static final int MIN_BATCH_SIZE = 100;
+	private static final int MAX_BATCH_SIZE = 10000;
+	
+	// size in bytes of a row in a batched insert when no rows have been imported to measure
+	private static final long ESTIMATED_ROW_SIZE = 256;
+	
+	// the default maximum packet size of older MySQL servers, used if the server can't be asked
+	private static final long DEFAULT_MAX_PACKET = 1024 * 1024;
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File inputDir;
+	private File outputFile;
+	private int threadCount;
+	
+	private String[] headers = {"tablet_id", "file_path", "status", "manifests", "pages", "page_size"};
+	
+	/*
+	 * the details of a single rhizome database
+	 */
+	private static class DevicePlan {
+		File rhizomeFile;
+		String tabletId;
+		boolean imported = false;
+		long manifests = 0;
+		long pages = 0;
+		long pageSize = 0;
+		String problem = null;
+	}
+	
+	/**
+	 * plan the import of a dataset
+	 *
+	 * @param config a Configuration object with preferences
+	 * @param tableName the name of the table for the deployment
+	 * @param inputDir the path to the parent directory of the dataset
+	 * @param outputFile the path to a report of each rhizome database, or null for no report
+	 * @param threadCount the number of threads used to read the databases, or null for one per processor
+	 */
+	public PlanImport(Configuration config, String tableName, File inputDir, File outputFile, Integer threadCount) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(inputDir == null) {
+			throw new IllegalArgumentException("the input parent directory is required");
+		}
+		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the number of threads must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.inputDir = inputDir;
+		this.outputFile = outputFile;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+	}
+	
+	/**
+	 * undertake the task of planning the import
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a list of rhizome files, and archives of device directories, the same way as the batch import
+		DatasetDirectoryWalker rhizomeFileFinder = new DatasetDirectoryWalker(
+			HiddenFileFilter.VISIBLE,
+			FileFilterUtils.or(FileFilterUtils.nameFileFilter("rhizome.db"), DatasetArchive.ARCHIVE_FILTER)
+		);
+		
+		ArrayList<File> rhizomeFiles = new ArrayList<File>();
+		ArrayList<File> archives = new ArrayList<File>();
+		
+		try {
+			for(File file : rhizomeFileFinder.getFileList(inputDir)) {
+				if(DatasetArchive.isArchive(file) == true) {
+					archives.add(file);
+				} else {
+					rhizomeFiles.add(file);
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to gather a list of rhizome databases: \n" + e.getMessage());
+		}
+		
+		if(rhizomeFiles.size() == 0 && archives.size() == 0) {
+			throw new TaskException("unable to locate any rhizome database files");
+		}
+		
+		// the history of previous imports, and the size of the rows already imported
+		HashSet<String> completed = new HashSet<String>();
+		long importedRecords = 0;
+		long importDuration = 0;
+		long tableRows = 0;
+		long tableBytes = 0;
+		long averageRowSize = 0;
+		long maxPacket = DEFAULT_MAX_PACKET;
+		
+		Connection connection = null;
+		
+		try {
+			connection = DatabaseUtils.getConnection(config);
+			
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+			
+			Statement statement = connection.createStatement();
+			String importLogTable = tableName + BatchImport.IMPORT_LOG_SUFFIX;
+			
+			if(DatabaseUtils.doesTableExist(connection, importLogTable) == true) {
+				
+				ResultSet resultSet = statement.executeQuery("SELECT tablet_id FROM " + importLogTable);
+				
+				while(resultSet.next() == true) {
+					completed.add(resultSet.getString(1));
+				}
+				
+				resultSet.close();
+				
+				// only imports that recorded their duration can be used to measure the throughput
+				if(DatabaseUtils.doesColumnExist(connection, importLogTable, "import_duration") == true) {
+					resultSet = statement.executeQuery("SELECT SUM(record_count), SUM(import_duration) FROM " + importLogTable + " WHERE import_duration > 0");
+					
+					if(resultSet.next() == true) {
+						importedRecords = resultSet.getLong(1);
+						importDuration = resultSet.getLong(2);
+					}
+					
+					resultSet.close();
+				}
+			}
+			
+			// the size of the table and the packet limit are only available from MySQL
+			if(DatabaseUtils.getStorageBackend(config) instanceof MysqlStorageBackend) {
+				try {
+					ResultSet resultSet = statement.executeQuery("SHOW TABLE STATUS LIKE '" + tableName + "'");
+				
+					if(resultSet.next() == true) {
+						tableRows = resultSet.getLong("Rows");
+						tableBytes = resultSet.getLong("Data_length") + resultSet.getLong("Index_length");
+						averageRowSize = resultSet.getLong("Avg_row_length");
+					}
+				
+					resultSet.close();
+				
+					resultSet = statement.executeQuery("SELECT @@max_allowed_packet");
+				
+					if(resultSet.next() == true) {
+						maxPacket = resultSet.getLong(1);
+					}
+				
+					resultSet.close();
+				} catch (SQLException e) {
+					System.err.println("WARNING: unable to read the size of the table: " + e.getMessage());
+				}
+			}
+			
+			statement.close();
+			
+		} catch (SQLException e) {
+			throw new TaskException("unable to read the previous imports:\n" + e.getMessage());
+		} finally {
+			try {
+				if(connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				throw new TaskException("unable to close MySQL connection:\n" + e.getMessage());
+			}
+		}
+		
+		// read the databases, and archives, in parallel
+		List<DevicePlan> plans = surveyDataset(rhizomeFiles, archives, completed);
+		
+		// total the databases that would be imported
+		int pendingCount = 0;
+		int importedCount = 0;
+		int problemCount = 0;
+		long pendingManifests = 0;
+		long pendingBytes = 0;
+		long largestManifests = 0;
+		
+		HashSet<File> pendingUnits = new HashSet<File>();
+		
+		for(DevicePlan plan : plans) {
+			if(plan.imported == true) {
+				importedCount++;
+			} else if(plan.problem != null) {
+				problemCount++;
+			} else {
+				pendingCount++;
+				pendingManifests += plan.manifests;
+				pendingBytes += plan.pages * plan.pageSize;
+				largestManifests = Math.max(largestManifests, plan.manifests);
+				
+				// each directory database is checked by a thread of its own, and each archive is read by one
+				pendingUnits.add(getWorkUnit(plan.rhizomeFile, archives));
+			}
+		}
+		
+		// the threads are used to check the databases and read the archives
+		int recommendedThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), pendingUnits.size()));
+		
+		// each batch must fit within the packet limit of the server once rewritten as a single statement
+		long rowSize = averageRowSize > 0 ? averageRowSize : ESTIMATED_ROW_SIZE;
+		long recommendedBatch = maxPacket / (2 * rowSize);
+		
+		// a batch larger than the largest database is never filled
+		if(largestManifests > 0) {
+			recommendedBatch = Math.min(recommendedBatch, ((largestManifests + MIN_BATCH_SIZE - 1) / MIN_BATCH_SIZE) * MIN_BATCH_SIZE);
+		}
+		
+		recommendedBatch = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, recommendedBatch));
+		
+		// output the plan
+		StringBuilder output = new StringBuilder();
+		
+		output.append("Rhizome databases to import: " + pendingCount + "\n");
+		output.append("Rhizome databases already imported: " + importedCount + "\n");
+		output.append("Rhizome databases that can't be read: " + problemCount + "\n");
+		output.append("Dataset archives: " + archives.size() + "\n");
+		output.append("Size of the rhizome databases to import: " + FileUtils.byteCountToDisplaySize(pendingBytes) + "\n");
+		output.append("Predicted records: " + pendingManifests + "\n");
+		
+		if(tableRows > 0) {
+			long predictedBytes = Math.round((double) tableBytes / tableRows * pendingManifests);
+			output.append("Predicted growth of the table: " + FileUtils.byteCountToDisplaySize(predictedBytes) + "\n");
+			output.append("Predicted size of the table, including indexes: " + FileUtils.byteCountToDisplaySize(tableBytes + predictedBytes) + "\n");
+		} else {
+			output.append("Predicted size of the table: unknown until some records have been imported\n");
+		}
+		
+		if(importedRecords > 0 && importDuration > 0) {
+			double recordsPerSecond = importedRecords * 1000.0 / importDuration;
+			long seconds = Math.round(pendingManifests / recordsPerSecond);
+			
+			output.append("Measured throughput: " + Math.round(recordsPerSecond) + " records per second\n");
+			output.append("Predicted import duration: " + formatDuration(seconds) + "\n");
+		} else {
+			output.append("Predicted import duration: unknown until a batch import has been run\n");
+		}
+		
+		output.append("Recommended threads: " + recommendedThreads + " (-threads " + recommendedThreads + ")\n");
+		output.append("Recommended batch size: " + recommendedBatch + " (import.batch.size = " + recommendedBatch + ")\n");
+		
+		System.out.print(output.toString());
+		
+		if(outputFile != null) {
+			writeReport(plans);
+		}
+	}
+	
+	// read the databases in parallel, an archive is read by a single thread as its databases must be read in order
+	private List<DevicePlan> surveyDataset(List<File> rhizomeFiles, List<File> archives, final HashSet<String> completed) throws TaskException {
+		
+		List<DevicePlan> plans = new ArrayList<DevicePlan>();
+		
+		int workCount = rhizomeFiles.size() + archives.size();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, workCount));
+		List<Future<List<DevicePlan>>> results = new ArrayList<Future<List<DevicePlan>>>();
+		
+		// the databases in archives are copied to the staging directory if there is one
+		final File tempDirectory;
+		
+		if(StringUtils.isEmpty(config.getString("import.stage.dir")) == false) {
+			tempDirectory = new File(config.getString("import.stage.dir"));
+		} else {
+			tempDirectory = null;
+		}
+		
+		try {
+			for(final File rhizomeFile : rhizomeFiles) {
+				results.add(executor.submit(new Callable<List<DevicePlan>>() {
+					public List<DevicePlan> call() {
+						
+						DevicePlan plan = new DevicePlan();
+						plan.rhizomeFile = rhizomeFile;
+						plan.tabletId = rhizomeFile.getParentFile().getName();
+						
+						if(completed.contains(plan.tabletId) == true) {
+							plan.imported = true;
+						} else {
+							surveyDatabase(plan, rhizomeFile);
+						}
+						
+						List<DevicePlan> plans = new ArrayList<DevicePlan>();
+						plans.add(plan);
+						return plans;
+					}
+				}));
+			}
+			
+			for(final File archive : archives) {
+				results.add(executor.submit(new Callable<List<DevicePlan>>() {
+					public List<DevicePlan> call() throws IOException {
+						
+						final List<DevicePlan> plans = new ArrayList<DevicePlan>();
+						
+						DatasetArchive.readEntries(archive, new DatasetArchive.EntryHandler() {
+							public void handleEntry(String name, InputStream input) throws IOException {
+								
+								// match the databases the batch import would find
+								if(DatasetArchive.isVisibleFile(name, "/rhizome.db") == false) {
+									return;
+								}
+								
+								DevicePlan plan = new DevicePlan();
+								plan.rhizomeFile = new File(archive, name);
+								plan.tabletId = plan.rhizomeFile.getParentFile().getName();
+								plans.add(plan);
+								
+								if(completed.contains(plan.tabletId) == true) {
+									plan.imported = true;
+									return;
+								}
+								
+								File tempFile = DatasetArchive.copyToTempFile(input, name, tempDirectory);
+								
+								try {
+									surveyDatabase(plan, tempFile);
+								} finally {
+									tempFile.delete();
+								}
+							}
+						});
+						
+						if(plans.size() == 0) {
+							System.err.println("WARNING: no rhizome databases were found in the archive:");
+							System.err.println(archive.getAbsolutePath());
+						}
+						
+						return plans;
+					}
+				}));
+			}
+			
+			for(Future<List<DevicePlan>> result : results) {
+				plans.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while reading the rhizome databases", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to read the rhizome databases:\n" + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return plans;
+	}
+	
+	// read the number of manifests and pages in a database, recording any problem
+	private void surveyDatabase(DevicePlan plan, File databaseFile) {
+		
+		Connection connection = null;
+		long surveyStart = System.nanoTime();
+		
+		try {
+			connection = RhizomeDatabase.getReadOnlyConnection(config, databaseFile);
+			
+			Statement statement = connection.createStatement();
+			
+			ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM manifests");
+			resultSet.next();
+			plan.manifests = resultSet.getLong(1);
+			resultSet.close();
+			
+			resultSet = statement.executeQuery("PRAGMA page_count");
+			resultSet.next();
+			plan.pages = resultSet.getLong(1);
+			resultSet.close();
+			
+			resultSet = statement.executeQuery("PRAGMA page_size");
+			resultSet.next();
+			plan.pageSize = resultSet.getLong(1);
+			resultSet.close();
+			
+			statement.close();
+			
+			getMetrics().increment("databases.read");
+			getMetrics().add("rows.counted", plan.manifests);
+			
+		} catch (SQLException e) {
+			
+			// describe the database in the archive rather than a temporary copy
+			plan.problem = String.valueOf(e.getMessage()).replace(databaseFile.getAbsolutePath(), plan.rhizomeFile.getAbsolutePath());
+			
+		} finally {
+			try {
+				if(connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// the database has been read so the failure to close is of no consequence
+			}
+			
+			getMetrics().recordTime("survey.database", surveyStart);
+		}
+	}
+	
+	// the unit of work of the batch import that includes a database, either the database itself or its archive
+	private static File getWorkUnit(File rhizomeFile, List<File> archives) {
+		
+		for(File archive : archives) {
+			if(rhizomeFile.getPath().startsWith(archive.getPath() + File.separator) == true) {
+				return archive;
+			}
+		}
+		
+		return rhizomeFile;
+	}
+	
+	// format a number of seconds as hours, minutes and seconds
+	private static String formatDuration(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+	
+	// write the details of each database
+	private void writeReport(List<DevicePlan> plans) throws TaskException {
+		
+		CSVWriter writer = null;
+		String[] values = new String[headers.length];
+		
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+			for(DevicePlan plan : plans) {
+				values[0] = plan.tabletId;
+				values[1] = plan.rhizomeFile.getAbsolutePath();
+				
+				if(plan.imported == true) {
+					values[2] = "imported";
+				} else if(plan.problem != null) {
+					values[2] = plan.problem;
+				} else {
+					values[2] = "pending";
+				}
+				
+				values[3] = Long.toString(plan.manifests);
+				values[4] = Long.toString(plan.pages);
+				values[5] = Long.toString(plan.pageSize);
+				writer.writeNext(values);
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the report file: " + e.getMessage());
+		} finally {
+			try {
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the report file: \n" + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.BundleCopies;
+import org.magdaaproject.utils.BundleCopyScanner;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.GraphWriter;
+import org.magdaaproject.utils.StringUtils;
+
+/**
+ * a class to undertake the task of generating a network graph of the
+ * propagation of every bundle across the mesh
+ *
+ * as the sender of a bundle is not stored in Rhizome, the propagation tree of
+ * each bundle is inferred by grouping copies into clusters using a sync window,
+ * the edges of every tree are either aggregated into a single weighted graph
+ * or streamed to the output file as one edge per copy of each bundle
+ */
+public class PropagationGraph extends AbstractTask {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default sync window, in seconds
+	 */
+	public static final long DEFAULT_SYNC_WINDOW = 30;
+	
+	/**
+	 * list of valid edge types
+	 */
+	public static final String[] EDGE_TYPES = {"aggregate", "bundle"};
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File outputFile;
+	private long syncWindowPeriod;
+	private boolean edgePerBundle;
+	
+	private Connection connection = null;
+	
+	private long bundleCount = 0;
+	private long edgeCount = 0;
+	
+	/**
+	 * create the class
+	 *
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param outputFile the name of the output file, the extension determines the format
+	 * @param syncWindow the sync window in seconds, or null for the default
+	 * @param edgeType one of the EDGE_TYPES, or null for aggregated edges
+	 */
+	public PropagationGraph(Configuration config, String tableName, File outputFile, Long syncWindow, String edgeType) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("outputFile is a required parameter");
+		}
+		
+		if(GraphWriter.isSupported(outputFile) == false) {
+			throw new IllegalArgumentException("the outputFile must have a .dot, .gv, .graphml or .gexf extension");
+		}
+		
+		if(edgeType != null && StringUtils.isInArray(edgeType, EDGE_TYPES) == false) {
+			throw new IllegalArgumentException("unrecognised edge type '" + edgeType + "'");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.outputFile = outputFile;
+		
+		if(syncWindow == null) {
+			this.syncWindowPeriod = DEFAULT_SYNC_WINDOW * 1000;
+		} else {
+			this.syncWindowPeriod = syncWindow * 1000;
+		}
+		
+		this.edgePerBundle = "bundle".equals(edgeType);
+	}
+	
+	/**
+	 * undertake the task of generating the graph
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// open the output file
+		GraphWriter graphWriter = null;
+		
+		try {
+			graphWriter = GraphWriter.open(outputFile);
+		} catch (IOException e) {
+			throw new TaskException("unable to create the output file:\n" + e.getMessage());
+		}
+		
+		try {
+			writeGraph(graphWriter);
+		} finally {
+			try {
+				graphWriter.close();
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * write the nodes and edges of the graph
+	 */
+	private void writeGraph(final GraphWriter graphWriter) throws TaskException {
+		
+		final BundleCopyScanner scanner = new BundleCopyScanner();
+		
+		// write the nodes first, so that edges can be streamed as they are found
+		String sql = "SELECT tablet_id, SUM(CASE WHEN origin = '" + DatabaseUtils.DATABASE_CONST_YES + "' THEN 1 ELSE 0 END) FROM " + tableName + " GROUP BY tablet_id ORDER BY tablet_id";
+		Statement statement = null;
+		ResultSet resultSet = null;
+		
+		try {
+			statement = connection.createStatement();
+			resultSet = statement.executeQuery(sql);
+			
+			while(resultSet.next() == true) {
+				scanner.getDevice(resultSet.getString(1));
+				graphWriter.writeNode(resultSet.getString(1), resultSet.getLong(2));
+			}
+			
+		} catch (SQLException e) {
+			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file:\n" + e.getMessage());
+		} finally {
+			try {
+				if(resultSet != null) {
+					resultSet.close();
+				}
+				
+				if(statement != null) {
+					statement.close();
+				}
+			} catch (SQLException e) {
+				throw new TaskException("unable to clean up database resources: \n" + e.getMessage());
+			}
+		}
+		
+		// build the propagation tree of every bundle in one ordered scan
+		final EdgeWeights weights = new EdgeWeights();
+		long scanStart = System.nanoTime();
+		
+		try {
+			scanner.scan(config, connection, tableName, new BundleCopyScanner.Handler() {
+				
+				private int[] parents = null;
+				
+				public void handleBundle(BundleCopies copies) throws IOException {
+					
+					parents = copies.getParents(syncWindowPeriod, parents);
+					
+					for(int i = 0; i < copies.getCount(); i++) {
+						if(parents[i] != -1) {
+							if(edgePerBundle == true) {
+								graphWriter.writeEdge(scanner.getDeviceId(copies.getDevice(parents[i])), scanner.getDeviceId(copies.getDevice(i)), 1, copies.getFileId(), copies.getTime(i));
+								edgeCount++;
+							} else {
+								weights.addEdge(copies.getDevice(parents[i]), copies.getDevice(i));
+							}
+						}
+					}
+				}
+			});
+		} catch (SQLException e) {
+			throw new TaskException("unable to scan the table '" + tableName + "': " + e.getMessage());
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file:\n" + e.getMessage());
+		} catch (Exception e) {
+			throw new TaskException("unable to build the propagation graph", e);
+		}
+		
+		getMetrics().recordTime("scan.bundles", scanStart);
+		getMetrics().add("rows.read", scanner.getRowCount());
+		
+		bundleCount = scanner.getBundleCount();
+		
+		if(edgePerBundle == true) {
+			return;
+		}
+		
+		// output the aggregated edges
+		try {
+			for(int from = 0; from < scanner.getDeviceCount(); from++) {
+				for(int to = 0; to < scanner.getDeviceCount(); to++) {
+					
+					long weight = weights.getWeight(from, to);
+					
+					if(weight > 0) {
+						graphWriter.writeEdge(scanner.getDeviceId(from), scanner.getDeviceId(to), weight, null, 0);
+						edgeCount++;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file:\n" + e.getMessage());
+		}
+	}
+	
+	/**
+	 * return the number of bundles included in the graph
+	 *
+	 * @return the number of bundles
+	 */
+	public long getBundleCount() {
+		return bundleCount;
+	}
+	
+	/**
+	 * return the number of distinct edges in the graph
+	 *
+	 * @return the number of edges
+	 */
+	public long getEdgeCount() {
+		return edgeCount;
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+	/*
+	 * a growable matrix of edge weights between devices
+	 */
+	private static class EdgeWeights {
+		
+		private long[][] weights = new long[0][0];
+		
+		void addEdge(int from, int to) {
+			ensureCapacity(Math.max(from, to) + 1);
+			weights[from][to]++;
+		}
+		
+		long getWeight(int from, int to) {
+			if(from >= weights.length || to >= weights.length) {
+				return 0;
+			}
+			return weights[from][to];
+		}
+		
+		private void ensureCapacity(int size) {
+			
+			if(size <= weights.length) {
+				return;
+			}
+			
+			size = Math.max(size, weights.length * 2);
+			
+			long[][] grown = new long[size][];
+			
+			for(int i = 0; i < size; i++) {
+				if(i < weights.length) {
+					grown[i] = Arrays.copyOf(weights[i], size);
+				} else {
+					grown[i] = new long[size];
+				}
+			}
+			
+			weights = grown;
+		}
+	}
+}
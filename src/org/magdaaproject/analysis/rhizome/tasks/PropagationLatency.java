@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.BundleCopies;
+import org.magdaaproject.utils.BundleCopyScanner;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.LogHistogram;
+import org.magdaaproject.utils.StringUtils;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * calculate the distribution of the delay between a bundle appearing on one
+ * device and appearing on another, for every ordered pair of devices
+ */
+public class PropagationLatency extends AbstractTask {
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private File outputFile;
+	
+	private Connection connection = null;
+	
+	private String[] headers = {"device_a", "device_b", "bundles", "median_delay", "p90_delay"};
+	
+	/*
+	 * histogram of delays for each ordered pair of devices, allocated as required
+	 */
+	private LogHistogram[][] histograms = new LogHistogram[0][0];
+	
+	/**
+	 * create the class
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param outputFile the name of the output file
+	 */
+	public PropagationLatency(Configuration config, String tableName, File outputFile) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("outputFile is a required parameter");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.outputFile = outputFile;
+	}
+	
+	/**
+	 * undertake the generation of the latency matrix
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// accumulate the delays in one ordered pass
+		BundleCopyScanner scanner = new BundleCopyScanner();
+		long scanStart = System.nanoTime();
+		
+		try {
+			scanner.scan(config, connection, tableName, new BundleCopyScanner.Handler() {
+				public void handleBundle(BundleCopies copies) {
+					
+					// copies are in insert time order, so every later copy appeared after every earlier copy
+					for(int i = 0; i < copies.getCount(); i++) {
+						for(int j = i + 1; j < copies.getCount(); j++) {
+							if(copies.getDevice(i) != copies.getDevice(j)) {
+								getHistogram(copies.getDevice(i), copies.getDevice(j)).record(copies.getTime(j) - copies.getTime(i));
+							}
+						}
+					}
+				}
+			});
+		} catch (SQLException e) {
+			throw new TaskException("unable to scan the table '" + tableName + "': " + e.getMessage());
+		} catch (Exception e) {
+			throw new TaskException("unable to calculate the latency matrix", e);
+		}
+		
+		getMetrics().recordTime("scan.bundles", scanStart);
+		getMetrics().add("rows.read", scanner.getRowCount());
+		
+		// output the matrix, one row for each ordered pair of devices
+		CSVWriter writer = null;
+		String[] values = new String[headers.length];
+		
+		try {
+			writer = new CSVWriter(new FileWriter(outputFile), ',');
+			
+			// output the header information
+			writer.writeNext(headers);
+			
+			for(int a = 0; a < scanner.getDeviceCount(); a++) {
+				for(int b = 0; b < scanner.getDeviceCount(); b++) {
+					
+					if(a == b) {
+						continue;
+					}
+					
+					values[0] = scanner.getDeviceId(a);
+					values[1] = scanner.getDeviceId(b);
+					
+					LogHistogram histogram = null;
+					
+					if(a < histograms.length && b < histograms.length) {
+						histogram = histograms[a][b];
+					}
+					
+					if(histogram == null) {
+						values[2] = "0";
+						values[3] = "";
+						values[4] = "";
+					} else {
+						values[2] = Long.toString(histogram.getCount());
+						values[3] = Long.toString(histogram.getValueAtQuantile(0.5));
+						values[4] = Long.toString(histogram.getValueAtQuantile(0.9));
+					}
+					
+					writer.writeNext(values);
+				}
+			}
+			
+		} catch (IOException e) {
+			throw new TaskException("unable to write the output file: " + e.getMessage());
+		} finally {
+			try {
+				if(writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				throw new TaskException("unable to close the output file: \n" + e.getMessage());
+			}
+		}
+	}
+	
+	// get the histogram for an ordered pair of devices, growing the matrix as required
+	private LogHistogram getHistogram(int from, int to) {
+		
+		int size = Math.max(from, to) + 1;
+		
+		if(size > histograms.length) {
+			
+			size = Math.max(size, histograms.length * 2);
+			
+			LogHistogram[][] grown = new LogHistogram[size][];
+			
+			for(int i = 0; i < size; i++) {
+				if(i < histograms.length) {
+					grown[i] = Arrays.copyOf(histograms[i], size);
+				} else {
+					grown[i] = new LogHistogram[size];
+				}
+			}
+			
+			histograms = grown;
+		}
+		
+		if(histograms[from][to] == null) {
+			histograms[from][to] = new LogHistogram();
+		}
+		
+		return histograms[from][to];
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+}
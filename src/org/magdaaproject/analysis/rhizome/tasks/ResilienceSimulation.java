@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.analysis.rhizome.tasks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.Configuration;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.DeviceBundleSets;
+import org.magdaaproject.utils.StringUtils;
+
+/**
+ * simulate the loss of one or more devices and determine how many bundles
+ * would no longer have a surviving copy anywhere on the mesh
+ */
+public class ResilienceSimulation extends AbstractTask {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default maximum number of devices removed in a scenario
+	 */
+	public static final int DEFAULT_MAX_REMOVALS = 2;
+	
+	/**
+	 * the default number of scenarios evaluated when exhaustive evaluation is impractical
+	 */
+	public static final int DEFAULT_SAMPLE_COUNT = 100000;
+	
+	/**
+	 * the number of worst case scenarios reported for each number of removed devices
+	 */
+	public static final int WORST_CASE_COUNT = 10;
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private int maxRemovals;
+	private int sampleCount;
+	private int threadCount;
+	
+	private Connection connection = null;
+	
+	private StringBuilder output = null;
+	
+	/*
+	 * the copy distribution, each distinct set of devices holding a bundle is
+	 * stored once as a mask along with the number of bundles held by exactly that set
+	 *
+	 * masks are ordered by the number of holders so only those sets that can be
+	 * completely removed in a scenario need to be evaluated
+	 */
+	private int words;
+	private long[] masks;
+	private long[] maskCounts;
+	private int[] holderLimits;
+	
+	/**
+	 * create the class
+	 *
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to use for the analysis
+	 * @param maxRemovals the maximum number of devices removed in a scenario, or null for the default
+	 * @param sampleCount the number of scenarios sampled when exhaustive evaluation is impractical, or null for the default
+	 * @param threadCount the number of threads to use, or null for one per processor
+	 */
+	public ResilienceSimulation(Configuration config, String tableName, Integer maxRemovals, Integer sampleCount, Integer threadCount) {
+		
+		// validate the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("config is a required parameter");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(maxRemovals != null && maxRemovals < 1) {
+			throw new IllegalArgumentException("the maximum number of removed devices must be at least 1");
+		}
+		
+		if(sampleCount != null && sampleCount < 1) {
+			throw new IllegalArgumentException("the number of samples must be at least 1");
+		}
+		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		
+		if(maxRemovals == null) {
+			this.maxRemovals = DEFAULT_MAX_REMOVALS;
+		} else {
+			this.maxRemovals = maxRemovals;
+		}
+		
+		if(sampleCount == null) {
+			this.sampleCount = DEFAULT_SAMPLE_COUNT;
+		} else {
+			this.sampleCount = sampleCount;
+		}
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
+		output = new StringBuilder("\nResilience Simulation for table: " + tableName + "\n");
+	}
+	
+	/**
+	 * undertake the simulation
+	 */
+	@Override
+	public void doTask() throws TaskException {
+		
+		// get a connection to the database
+		try {
+			connection = DatabaseUtils.getConnection(config);
+		} catch (SQLException e) {
+			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
+		}
+		
+		// check if the table already exists
+		try {
+			if(DatabaseUtils.doesTableExist(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't exist");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
+		// load the copy distribution once
+		DeviceBundleSets sets;
+		long scanStart = System.nanoTime();
+		
+		try {
+			sets = DeviceBundleSets.load(config, connection, tableName);
+		} catch (SQLException e) {
+			throw new TaskException("unable to load the bundles held by each device:\n" + e.getMessage());
+		}
+		
+		getMetrics().recordTime("scan.bundles", scanStart);
+		getMetrics().add("rows.read", sets.getRowCount());
+		
+		int deviceCount = sets.getDeviceCount();
+		
+		if(deviceCount == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
+		
+		buildCopyDistribution(sets);
+		
+		output.append("Total devices: " + deviceCount + "\n");
+		output.append("Total unique files on the mesh: " + sets.getBundleCount() + "\n");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		
+		try {
+			for(int removals = 1; removals <= Math.min(maxRemovals, deviceCount); removals++) {
+				simulate(executor, sets, removals);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// print the results
+		System.out.println(output.toString());
+	}
+	
+	/*
+	 * transpose the per device bitsets into the set of devices holding each bundle
+	 * and collapse bundles with the same set of holders together
+	 */
+	private void buildCopyDistribution(DeviceBundleSets sets) {
+		
+		int deviceCount = sets.getDeviceCount();
+		int bundleCount = sets.getBundleCount();
+		
+		words = (deviceCount + 63) >>> 6;
+		
+		HashMap<MaskKey, long[]> distinctMasks = new HashMap<MaskKey, long[]>();
+		
+		long[] mask = new long[words];
+		
+		for(int bundle = 0; bundle < bundleCount; bundle++) {
+			
+			Arrays.fill(mask, 0L);
+			
+			int word = bundle >>> 6;
+			long bit = 1L << bundle;
+			
+			for(int device = 0; device < deviceCount; device++) {
+				if((sets.getBundles(device)[word] & bit) != 0) {
+					mask[device >>> 6] |= 1L << device;
+				}
+			}
+			
+			MaskKey key = new MaskKey(mask);
+			long[] count = distinctMasks.get(key);
+			
+			if(count == null) {
+				key = new MaskKey(mask.clone());
+				count = new long[1];
+				distinctMasks.put(key, count);
+			}
+			
+			count[0]++;
+		}
+		
+		// order the masks by the number of holders
+		List<Map.Entry<MaskKey, long[]>> entries = new ArrayList<Map.Entry<MaskKey, long[]>>(distinctMasks.entrySet());
+		
+		Collections.sort(entries, new Comparator<Map.Entry<MaskKey, long[]>>() {
+			public int compare(Map.Entry<MaskKey, long[]> a, Map.Entry<MaskKey, long[]> b) {
+				return a.getKey().holders - b.getKey().holders;
+			}
+		});
+		
+		masks = new long[entries.size() * words];
+		maskCounts = new long[entries.size()];
+		holderLimits = new int[deviceCount + 1];
+		
+		for(int i = 0; i < entries.size(); i++) {
+			System.arraycopy(entries.get(i).getKey().mask, 0, masks, i * words, words);
+			maskCounts[i] = entries.get(i).getValue()[0];
+		}
+		
+		// for each number of holders, the index of the first mask with more holders
+		int index = 0;
+		
+		for(int holders = 0; holders <= deviceCount; holders++) {
+			while(index < entries.size() && entries.get(index).getKey().holders <= holders) {
+				index++;
+			}
+			holderLimits[holders] = index;
+		}
+	}
+	
+	/*
+	 * evaluate all scenarios with the specified number of removed devices
+	 */
+	private void simulate(ExecutorService executor, DeviceBundleSets sets, final int removals) throws TaskException {
+		
+		final int deviceCount = sets.getDeviceCount();
+		final long[][] binomials = binomialTable(deviceCount, removals);
+		final long combinations = binomials[deviceCount][removals];
+		final boolean exhaustive = combinations <= sampleCount;
+		final long scenarios = exhaustive ? combinations : sampleCount;
+		
+		List<Future<Simulator>> results = new ArrayList<Future<Simulator>>();
+		
+		long start = System.nanoTime();
+		
+		long chunk = (scenarios + threadCount - 1) / threadCount;
+		
+		for(int i = 0; i < threadCount; i++) {
+			
+			final long first = i * chunk;
+			final long last = Math.min(scenarios, first + chunk);
+			final long seed = 31L * removals + i;
+			
+			if(first >= last) {
+				break;
+			}
+			
+			results.add(executor.submit(new Callable<Simulator>() {
+				public Simulator call() {
+					Simulator simulator = new Simulator(deviceCount, removals);
+					
+					if(exhaustive == true) {
+						simulator.evaluateRange(binomials, first, last);
+					} else {
+						simulator.evaluateSample(new Random(seed), last - first);
+					}
+					
+					return simulator;
+				}
+			}));
+		}
+		
+		// merge the results from each thread
+		PriorityQueue<Scenario> worst = new PriorityQueue<Scenario>();
+		long totalLost = 0;
+		long evaluated = 0;
+		
+		try {
+			for(Future<Simulator> result : results) {
+				Simulator simulator = result.get();
+				
+				totalLost += simulator.totalLost;
+				evaluated += simulator.evaluated;
+				
+				for(Scenario scenario : simulator.worst) {
+					addScenario(worst, scenario);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while simulating device removal", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to simulate device removal", e.getCause());
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1000000000d;
+		
+		// output the results for this number of removed devices
+		List<Scenario> ordered = new ArrayList<Scenario>(worst);
+		Collections.sort(ordered, Collections.reverseOrder());
+		
+		output.append("\nScenarios with " + removals + " device(s) removed: " + evaluated);
+		
+		if(exhaustive == true) {
+			output.append(" (exhaustive)\n");
+		} else {
+			output.append(" (sampled from " + (combinations == Long.MAX_VALUE ? "more than " + Long.MAX_VALUE : Long.toString(combinations)) + ")\n");
+		}
+		
+		output.append("Scenarios evaluated per second: " + Math.round(evaluated / Math.max(seconds, 1e-9)) + "\n");
+		output.append("Average number of files without a surviving copy: " + ((double) totalLost / evaluated) + "\n");
+		output.append("Worst case scenarios:\n");
+		
+		for(Scenario scenario : ordered) {
+			StringBuilder devices = new StringBuilder();
+			
+			for(int device : scenario.devices) {
+				if(devices.length() > 0) {
+					devices.append(", ");
+				}
+				devices.append(sets.getDeviceId(device));
+			}
+			
+			output.append("  " + scenario.lost + " files lost when removing: " + devices + "\n");
+		}
+	}
+	
+	// add a scenario to a bounded list of worst case scenarios
+	private static void addScenario(PriorityQueue<Scenario> worst, Scenario scenario) {
+		
+		// sampling may evaluate the same scenario more than once
+		if(worst.contains(scenario) == true) {
+			return;
+		}
+		
+		if(worst.size() < WORST_CASE_COUNT) {
+			worst.add(scenario);
+		} else if(worst.peek().compareTo(scenario) < 0) {
+			worst.poll();
+			worst.add(scenario);
+		}
+	}
+	
+	/*
+	 * build a table of binomial coefficients, capped at Long.MAX_VALUE
+	 */
+	private static long[][] binomialTable(int n, int k) {
+		
+		long[][] table = new long[n + 1][k + 1];
+		
+		for(int i = 0; i <= n; i++) {
+			table[i][0] = 1;
+			
+			for(int j = 1; j <= Math.min(i, k); j++) {
+				long value = table[i - 1][j - 1] + table[i - 1][j];
+				
+				// detect overflow
+				if(value < 0 || table[i - 1][j - 1] == Long.MAX_VALUE || table[i - 1][j] == Long.MAX_VALUE) {
+					value = Long.MAX_VALUE;
+				}
+				
+				table[i][j] = value;
+			}
+		}
+		
+		return table;
+	}
+	
+	/*
+	 * evaluates scenarios on a single thread
+	 */
+	private class Simulator {
+		
+		private int deviceCount;
+		private int removals;
+		
+		private int[] devices;
+		private long[] removed;
+		
+		private long totalLost = 0;
+		private long evaluated = 0;
+		private PriorityQueue<Scenario> worst = new PriorityQueue<Scenario>();
+		
+		Simulator(int deviceCount, int removals) {
+			this.deviceCount = deviceCount;
+			this.removals = removals;
+			this.devices = new int[removals];
+			this.removed = new long[words];
+		}
+		
+		// evaluate a range of combinations in lexicographic order
+		void evaluateRange(long[][] binomials, long first, long last) {
+			
+			// find the first combination of the range
+			long rank = first;
+			int next = 0;
+			
+			for(int i = 0; i < removals; i++) {
+				while(binomials[deviceCount - next - 1][removals - i - 1] <= rank) {
+					rank -= binomials[deviceCount - next - 1][removals - i - 1];
+					next++;
+				}
+				devices[i] = next++;
+			}
+			
+			for(long i = first; i < last; i++) {
+				
+				evaluate();
+				
+				// move to the next combination
+				int position = removals - 1;
+				
+				while(position >= 0 && devices[position] == deviceCount - removals + position) {
+					position--;
+				}
+				
+				if(position < 0) {
+					break;
+				}
+				
+				devices[position]++;
+				
+				for(int j = position + 1; j < removals; j++) {
+					devices[j] = devices[j - 1] + 1;
+				}
+			}
+		}
+		
+		// evaluate a number of randomly selected combinations
+		void evaluateSample(Random random, long count) {
+			
+			int[] pool = new int[deviceCount];
+			
+			for(int i = 0; i < deviceCount; i++) {
+				pool[i] = i;
+			}
+			
+			for(long i = 0; i < count; i++) {
+				
+				// partial Fisher-Yates shuffle
+				for(int j = 0; j < removals; j++) {
+					int swap = j + random.nextInt(deviceCount - j);
+					int tmp = pool[j];
+					pool[j] = pool[swap];
+					pool[swap] = tmp;
+					devices[j] = pool[j];
+				}
+				
+				Arrays.sort(devices);
+				
+				evaluate();
+			}
+		}
+		
+		// evaluate the current combination
+		private void evaluate() {
+			
+			Arrays.fill(removed, 0L);
+			
+			for(int device : devices) {
+				removed[device >>> 6] |= 1L << device;
+			}
+			
+			long lost = 0;
+			int limit = holderLimits[removals];
+			
+			// a bundle is lost if every device holding it has been removed
+			for(int i = 0; i < limit; i++) {
+				
+				int offset = i * words;
+				boolean survived = false;
+				
+				for(int w = 0; w < words; w++) {
+					if((masks[offset + w] & ~removed[w]) != 0) {
+						survived = true;
+						break;
+					}
+				}
+				
+				if(survived == false) {
+					lost += maskCounts[i];
+				}
+			}
+			
+			totalLost += lost;
+			evaluated++;
+			
+			if(worst.size() < WORST_CASE_COUNT || worst.peek().lost < lost) {
+				addScenario(worst, new Scenario(devices.clone(), lost));
+			}
+		}
+	}
+	
+	/*
+	 * a single device removal scenario
+	 */
+	private static class Scenario implements Comparable<Scenario> {
+		
+		private int[] devices;
+		private long lost;
+		
+		Scenario(int[] devices, long lost) {
+			this.devices = devices;
+			this.lost = lost;
+		}
+		
+		public int compareTo(Scenario other) {
+			if(lost != other.lost) {
+				return lost < other.lost ? -1 : 1;
+			}
+			
+			// prefer the lexicographically smaller set of devices for stable output
+			for(int i = 0; i < devices.length; i++) {
+				if(devices[i] != other.devices[i]) {
+					return devices[i] > other.devices[i] ? -1 : 1;
+				}
+			}
+			
+			return 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(devices);
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Scenario && Arrays.equals(devices, ((Scenario) other).devices);
+		}
+	}
+	
+	/*
+	 * a hash map key for a set of devices
+	 */
+	private static class MaskKey {
+		
+		private long[] mask;
+		private int holders;
+		private int hash;
+		
+		MaskKey(long[] mask) {
+			this.mask = mask;
+			this.hash = Arrays.hashCode(mask);
+			
+			for(long word : mask) {
+				holders += Long.bitCount(word);
+			}
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof MaskKey && Arrays.equals(mask, ((MaskKey) other).mask);
+		}
+	}
+	
+	/**
+	 * close the database connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void closeConnection() throws SQLException {
+		if(connection != null) {
+			connection.close();
+		}
+	}
+	
+}
@@ -19,16 +19,33 @@
  */
 package org.magdaaproject.analysis.rhizome.tasks;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
+import org.magdaaproject.utils.AggregateQuery;
+import org.magdaaproject.utils.BundleCopies;
 import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.HyperLogLog;
+import org.magdaaproject.utils.LogHistogram;
+import org.magdaaproject.utils.PartitionedBundleScan;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
 
 /**
  * a class to undertake the generation of statistics
@@ -40,6 +57,10 @@ public class StatisticalAnalysis extends AbstractTask {
 	 */
 	private Configuration config;
 	private String tableName;
+	private String timeColumn;
+	private boolean approximate;
+	private boolean parallel;
+	private int threadCount;
 	
 	private Connection connection = null;
 	
@@ -50,8 +71,12 @@ public class StatisticalAnalysis extends AbstractTask {
 	 * 
 	 * @param config
 	 * @param tableName
+	 * @param correctedTimes if true use the insert times corrected for clock skew
+	 * @param approximate if true estimate the statistics in a single pass using sketches
+	 * @param parallel if true calculate the exact statistics in parallel partitions of the bundles
+	 * @param threadCount the number of threads to use when estimating or in parallel, or null for one per processor
 	 */
-	public StatisticalAnalysis(Configuration config, String tableName) {
+	public StatisticalAnalysis(Configuration config, String tableName, boolean correctedTimes, boolean approximate, boolean parallel, Integer threadCount) {
 		
 		// validate the parameters
 		if(config == null) {
@@ -62,8 +87,30 @@ public class StatisticalAnalysis extends AbstractTask {
 			throw new IllegalArgumentException("the table name is required");
 		}
 		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the thread count must be at least 1");
+		}
+		
+		if(approximate == true && parallel == true) {
+			throw new IllegalArgumentException("the approximate and parallel statistics cannot be combined");
+		}
+		
 		this.config = config;
 		this.tableName = tableName;
+		this.approximate = approximate;
+		this.parallel = parallel;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
+		if(correctedTimes == true) {
+			timeColumn = ClockSkew.CORRECTED_TIME_COLUMN;
+		} else {
+			timeColumn = "file_insert_time";
+		}
 		
 		output = new StringBuilder("\nStatistical Analysis for table: " + tableName + "\n");
 	}
@@ -76,7 +123,7 @@ public class StatisticalAnalysis extends AbstractTask {
 		
 		// get a connection to the database
 		try {
-			connection = DatabaseUtils.getMysqlConnection(config);
+			connection = DatabaseUtils.getConnection(config);
 		} catch (SQLException e) {
 			throw new TaskException("unable to connect to the database:\n" + e.getMessage());
 		}
@@ -90,227 +137,511 @@ public class StatisticalAnalysis extends AbstractTask {
 			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
 		}
 		
+		// check if the corrected times are available
+		try {
+			if(timeColumn.equals(ClockSkew.CORRECTED_TIME_COLUMN) == true && ClockSkew.hasCorrectedTimes(connection, tableName) == false) {
+				throw new TaskException("the specified table '" + tableName + "' doesn't have corrected times, use the clock-skew task first");
+			}
+		} catch (SQLException e) {
+			throw new TaskException("unable to communicate with the the database:\n" + e.getMessage());
+		}
+		
 		/*
 		 * gather the statistics
 		 */
+		if(approximate == true) {
+			
+			gatherApproximateStatistics();
+			
+			// print the statistics
+			System.out.println(output.toString());
+			
+			return;
+		}
 		
-		// total number of files in Rhizome
-		output.append("Total unique files on the mesh: " + getTotalUniqueFileCount());
-		output.append("Total bundles on the mesh: " + getTotalBundleCount());
-		output.append("Total unique data size on the mesh: " + getTotalUniqueDataSize());
-		output.append("Total data size (including duplicates) on the mesh: " + getTotalDataSize());
-		output.append("Average file size: " + getAverageFileSize());
-		output.append("Average number of bundles per device: " + getAverageBundlesPerDevice());
-		output.append("Total number of files without resilient copies: " + getFilesWithoutResilientCopies());
-		output.append("Total number of files with resilient copies: " + getFilesWithResilientCopies());
-		output.append("Maximum resilient copy count: " + getMaxResilientCopyCount());
-		output.append("Minimum resilient copy count: " + getMinResilientCopyCount());
-		output.append("Approximate Maximum time delay before first resilient copy: " + getMaxTimeDelayBeforeFirstCopy());
-		output.append("Approximate Minimum time delay before first resilient copy: " + getMinTimeDelayBeforeFirstCopy());
-		output.append("Total number of files not on the laptop: " + getFilesNotOnLaptop());
+		if(parallel == true) {
+			
+			gatherParallelStatistics();
+			
+			// print the statistics
+			System.out.println(output.toString());
+			
+			return;
+		}
+		
+		// the statistics of the bundles, the files and the delays are each calculated by a single query
+		Map<String, String> bundles = getStatistics("bundles", getBundleQuery());
+		
+		if(Long.parseLong(bundles.get("bundles")) == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
+		
+		Map<String, String> files = getStatistics("files", getFileQuery());
+		Map<String, String> delays = getStatistics("delays", getDelayQuery());
+		
+		output.append("Total unique files on the mesh: " + files.get("files") + "\n");
+		output.append("Total bundles on the mesh: " + bundles.get("bundles") + "\n");
+		output.append("Total unique data size on the mesh: " + FileUtils.byteCountToDisplaySize(Long.parseLong(files.get("unique_size"))) + "\n");
+		output.append("Total data size (including duplicates) on the mesh: " + FileUtils.byteCountToDisplaySize(Long.parseLong(bundles.get("total_size"))) + "\n");
+		output.append("Average file size: " + FileUtils.byteCountToDisplaySize(Math.round(Double.parseDouble(files.get("average_size")))) + "\n");
+		output.append("Average number of bundles per device: " + average(Long.parseLong(bundles.get("bundles")), Long.parseLong(bundles.get("devices"))).toPlainString() + "\n");
+		output.append("Total number of files without resilient copies: " + files.get("without_resilient_copies") + "\n");
+		output.append("Total number of files with resilient copies: " + files.get("with_resilient_copies") + "\n");
+		output.append("Maximum resilient copy count: " + files.get("max_copies") + "\n");
+		output.append("Minimum resilient copy count: " + files.get("min_resilient_copies") + "\n");
+		output.append("Approximate Maximum time delay before first resilient copy: " + formatDelay(delays.get("max_delay")));
+		output.append("Approximate Minimum time delay before first resilient copy: " + formatDelay(delays.get("min_delay")));
+		output.append("Total number of files not on the laptop: " + bundles.get("not_on_laptop") + "\n");
 		
 		// print the statistics
 		System.out.println(output.toString());
 
 	}
 	
-	// method to get the total file count
-	private String getTotalUniqueFileCount() throws TaskException {
-		return executeSql("SELECT COUNT(DISTINCT file_id) FROM " + tableName) + "\n";
-	}
-	
-	private String getTotalBundleCount() throws TaskException {
-		return executeSql("SELECT COUNT(file_id) FROM " + tableName) + "\n";
-	}
-	
-	// method to get the total unique data size
-	private String getTotalUniqueDataSize() throws TaskException {
-		String totalFileSize = executeSql("SELECT SUM(file_size) FROM (SELECT file_id, file_size FROM " + tableName + " GROUP BY file_id) as TABLE_01");
+	// the statistics of the bundles, which are the rows of the table
+	private AggregateQuery getBundleQuery() {
 		
-		totalFileSize = FileUtils.byteCountToDisplaySize(Long.parseLong(totalFileSize));
+		AggregateQuery query = new AggregateQuery(tableName);
 		
-		return totalFileSize + "\n";
-	}
-	
-	// method to get the total data size including duplicate copies
-	private String getTotalDataSize() throws TaskException {
+		query.add("bundles", "COUNT(file_id)");
+		query.add("total_size", "SUM(file_size)");
+		query.add("devices", "COUNT(DISTINCT tablet_id)");
+		query.addCount("not_on_laptop", "file_id NOT IN (SELECT file_id FROM " + tableName + " WHERE tablet_id = 'laptop')");
 		
-		String totalFileSize = executeSql("SELECT SUM(file_size) FROM " + tableName);
-		
-		totalFileSize = FileUtils.byteCountToDisplaySize(Long.parseLong(totalFileSize));
-		
-		return totalFileSize + "\n";
+		return query;
 	}
 	
-	// method to get the average file size
-	private String getAverageFileSize() throws TaskException {
+	// the statistics of the files, which are the bundles grouped by file id
+	private AggregateQuery getFileQuery() {
 		
-		String averageFileSize = executeSql("SELECT AVG(file_size) FROM (SELECT file_id, file_size FROM " + tableName + " GROUP BY file_id) AS table_01");
+		AggregateQuery query = AggregateQuery.fromSubquery("SELECT file_id, file_size, COUNT(file_id) AS copies FROM " + tableName + " GROUP BY file_id", "table_01");
 		
-		averageFileSize = FileUtils.byteCountToDisplaySize(Math.round(Double.parseDouble(averageFileSize)));
+		query.add("files", "COUNT(*)");
+		query.add("unique_size", "SUM(file_size)");
+		query.add("average_size", "AVG(file_size)");
+		query.addCount("without_resilient_copies", "copies = 1");
+		query.addCount("with_resilient_copies", "copies > 1");
+		query.add("max_copies", "MAX(copies)");
+		query.add("min_resilient_copies", "MIN(CASE WHEN copies > 1 THEN copies END)");
 		
-		return averageFileSize + "\n";
+		return query;
 	}
 	
-	// method to get the average number of bundles per tablet
-	private String getAverageBundlesPerDevice() throws TaskException {
+	// the statistics of the time delay between the origin copy of each file and the first copy
+	private AggregateQuery getDelayQuery() {
 		
-		String value = executeSql("SELECT AVG(file_ids) FROM (SELECT tablet_id, COUNT(file_id) as FILE_IDS FROM " + tableName + " GROUP BY tablet_id) AS table_01;");
-		
-		return value + "\n";
-	}
-	
-	// number of files without a resilient copy
-	private String getFilesWithoutResilientCopies() throws TaskException {
-		int value = executeSqlForRowCount("SELECT file_id, COUNT(file_id) FROM " + tableName + " GROUP BY file_id HAVING COUNT(file_id) = 1");
-		return Integer.toString(value) + "\n";
-	}
-	
-	// number of files with a resilient copy
-	private String getFilesWithResilientCopies() throws TaskException {
-		int value = executeSqlForRowCount("SELECT file_id, COUNT(file_id) FROM " + tableName + " GROUP BY file_id HAVING COUNT(file_id) > 1");
-		return Integer.toString(value) + "\n";
-	}
-	
-	// maximum number of resilient copies
-	private String getMaxResilientCopyCount() throws TaskException {
-		return executeSql("SELECT MAX(file_id_count) FROM (SELECT file_id, COUNT(file_id) AS file_id_count FROM " + tableName + " GROUP BY file_id) as TABLE_01;") + "\n";
-	}
-	
-	// minimum number of resilient copies
-	private String getMinResilientCopyCount() throws TaskException {
-		return executeSql("SELECT MIN(file_id_count) FROM (SELECT file_id, COUNT(file_id) AS file_id_count FROM " + tableName + " GROUP BY file_id HAVING COUNT(file_id) > 1) as TABLE_01;") + "\n";
-				
-	}
-	
-	// maximum time delay before first copy
-	private String getMaxTimeDelayBeforeFirstCopy() throws TaskException {
 		StringBuilder builder = new StringBuilder();
 		
-		builder.append("SELECT MAX(time_difference) ");
-		builder.append("FROM (SELECT " + tableName + ".file_id, MIN(" + tableName + ".file_insert_time), table_01.file_insert_time, MIN(" + tableName + ".file_insert_time) - table_01.file_insert_time AS time_difference ");
-		builder.append("FROM " + tableName + ", (SELECT file_id, file_insert_time FROM " + tableName + " WHERE origin = 'y' AND file_insert_time IS NOT NULL) AS table_01 ");
+		builder.append("SELECT " + tableName + ".file_id, MIN(" + tableName + "." + timeColumn + ") - table_01." + timeColumn + " AS time_difference ");
+		builder.append("FROM " + tableName + ", (SELECT file_id, " + timeColumn + " FROM " + tableName + " WHERE origin = '" + DatabaseUtils.DATABASE_CONST_YES + "' AND " + timeColumn + " IS NOT NULL) AS table_01 ");
 		builder.append("WHERE table_01.file_id = " + tableName + ".file_id ");
-		builder.append("AND table_01.file_insert_time <> " + tableName + ".file_insert_time ");
-		builder.append("AND " + tableName + ".file_insert_time IS NOT NULL ");
-		builder.append("GROUP BY " + tableName + ".file_id) as table_02");
+		builder.append("AND table_01." + timeColumn + " <> " + tableName + "." + timeColumn + " ");
+		builder.append("AND " + tableName + "." + timeColumn + " IS NOT NULL ");
+		builder.append("GROUP BY " + tableName + ".file_id");
 		
-		return DurationFormatUtils.formatDuration(Long.parseLong(executeSql(builder.toString())), "H:m:s") + " (H:m:s)\n";
-	}
-	
-	// minimum time delay before first copy
-	private String getMinTimeDelayBeforeFirstCopy() throws TaskException {
-		StringBuilder builder = new StringBuilder();
+		AggregateQuery query = AggregateQuery.fromSubquery(builder.toString(), "table_02");
 		
-		builder.append("SELECT MIN(time_difference) ");
-		builder.append("FROM (SELECT " + tableName + ".file_id, MIN(" + tableName + ".file_insert_time), table_01.file_insert_time, MIN(" + tableName + ".file_insert_time) - table_01.file_insert_time AS time_difference ");
-		builder.append("FROM " + tableName + ", (SELECT file_id, file_insert_time FROM " + tableName + " WHERE origin = 'y' AND file_insert_time IS NOT NULL) AS table_01 ");
-		builder.append("WHERE table_01.file_id = " + tableName + ".file_id ");
-		builder.append("AND table_01.file_insert_time <> " + tableName + ".file_insert_time ");
-		builder.append("AND " + tableName + ".file_insert_time IS NOT NULL ");
-		builder.append("GROUP BY " + tableName + ".file_id) as table_02 ");
-		builder.append("WHERE time_difference > 0");
+		query.add("max_delay", "MAX(time_difference)");
+		query.add("min_delay", "MIN(CASE WHEN time_difference > 0 THEN time_difference END)");
 		
-		return DurationFormatUtils.formatDuration(Long.parseLong(executeSql(builder.toString())), "H:m:s") + " (H:m:s)\n";
+		return query;
 	}
 	
-	// number of files not on the laptop
-	private String getFilesNotOnLaptop() throws TaskException {
-		return executeSql("SELECT COUNT(file_id) FROM " + tableName + " WHERE file_id NOT IN (SELECT file_id FROM " + tableName + " WHERE tablet_id = 'laptop')") + "\n";
-	}
 	/*
-	 * sql execute methods
+	 * estimate the statistics in a single pass over the table, with one
+	 * stream for each device and the sketches for each device merged
 	 */
-	
-	// method to execute an SQL and return the single return value
-	private String executeSql(String sql) throws TaskException {
-		
-		if(StringUtils.isEmpty(sql) == true) {
-			throw new IllegalArgumentException("the sql parameter is required");
-		}
+	private void gatherApproximateStatistics() throws TaskException {
 		
-		String returnValue = null;
-		Statement statement = null;
+		// get the list of devices
+		final ArrayList<String> devices = new ArrayList<String>();
+		String sql = "SELECT DISTINCT tablet_id FROM " + tableName + " ORDER BY tablet_id";
 		
 		try {
-			 statement = connection.createStatement();
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery(sql);
+			
+			while(resultSet.next() == true) {
+				devices.add(resultSet.getString(1));
+			}
+			
+			resultSet.close();
+			statement.close();
 		} catch (SQLException e) {
-			throw new TaskException("unable to create statement '" + sql + "': " + e.getMessage());
+			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
 		}
 		
-		ResultSet resultSet = null;
+		if(devices.size() == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
 		
-		try {
-			resultSet = statement.executeQuery(sql);
-		} catch (SQLException e) {
-			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
+		// every copy on the device, along with the delay since the bundle was inserted on the origin device
+		final String deviceSql = "SELECT device_copy.file_id, device_copy.file_size, device_copy.origin, device_copy." + timeColumn + " - origin_copy." + timeColumn + " "
+				+ "FROM " + tableName + " AS device_copy LEFT JOIN " + tableName + " AS origin_copy "
+				+ "ON origin_copy.file_id = device_copy.file_id AND origin_copy.origin = '" + DatabaseUtils.DATABASE_CONST_YES + "' "
+				+ "WHERE device_copy.tablet_id = ?";
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, devices.size()));
+		List<Future<Sketches>> results = new ArrayList<Future<Sketches>>();
+		
+		for(final String device : devices) {
+			results.add(executor.submit(new Callable<Sketches>() {
+				public Sketches call() throws SQLException {
+					
+					Sketches sketches = new Sketches();
+					
+					Connection deviceConnection = DatabaseUtils.getConnection(config);
+					TaskPhase phase = beginPhase("statistics.device.scan", tableName).setDeviceId(device);
+					long scanStart = System.nanoTime();
+					
+					try {
+						PreparedStatement statement = DatabaseUtils.prepareStreamingStatement(config, deviceConnection, deviceSql);
+						statement.setString(1, device);
+						
+						ResultSet resultSet = statement.executeQuery();
+						
+						while(resultSet.next() == true) {
+							
+							// the delay is null if the origin of the bundle is not known
+							Long delay = resultSet.getLong(4);
+							
+							if(resultSet.wasNull() == true) {
+								delay = null;
+							}
+							
+							sketches.add(resultSet.getString(1), resultSet.getLong(2), DatabaseUtils.DATABASE_CONST_YES.equalsIgnoreCase(resultSet.getString(3)), delay);
+						}
+						
+						resultSet.close();
+						statement.close();
+					} finally {
+						deviceConnection.close();
+						phase.setRowCount(sketches.rows).end();
+						getMetrics().recordTime("scan.device", scanStart);
+						getMetrics().add("rows.read", sketches.rows);
+					}
+					
+					return sketches;
+				}
+			}));
 		}
 		
+		// merge the sketches for each device
+		Sketches total = new Sketches();
+		Sketches laptop = null;
+		
+		StringBuilder perDevice = new StringBuilder();
+		
 		try {
-			if(resultSet.next()) {
-				returnValue = resultSet.getString(1);
+			for(int i = 0; i < devices.size(); i++) {
+				
+				Sketches sketches = results.get(i).get();
+				
+				total.merge(sketches);
 				
-				// play nice and tidy up
-				resultSet.close();
-				statement.close();
+				if(devices.get(i).equals("laptop") == true) {
+					laptop = sketches;
+				}
+				
+				perDevice.append("  " + devices.get(i) + ": " + sketches.bundles.cardinality() + "\n");
 			}
-		} catch (SQLException e) {
-			throw new TaskException("unable to get results of sql query '" + sql + "': " + e.getMessage());
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while estimating the statistics", e);
+		} catch (ExecutionException e) {
+			throw new TaskException("unable to estimate the statistics:\n" + e.getCause().getMessage(), e.getCause());
 		} finally {
-			try {
-				resultSet.close();
-				statement.close();
-			} catch (SQLException e) {
-				throw new TaskException("unable to clean up database resources: \n" + e.getMessage());
-			}
+			executor.shutdownNow();
 		}
 		
-		return returnValue;
+		long uniqueFiles = total.bundles.cardinality();
+		double countError = total.bundles.getRelativeError();
+		double quantileError = LogHistogram.getRelativeError();
+		
+		output.append("Statistics estimated in a single pass, distinct counts have a standard error of " + percent(countError) + " and percentiles are within " + percent(quantileError) + "\n");
+		output.append("Sizes are taken from the copy on the origin device, and delays are from the origin device to every other copy\n\n");
 		
+		output.append("Approximate total unique files on the mesh: " + uniqueFiles + "\n");
+		output.append("Total bundles on the mesh: " + total.rows + "\n");
+		
+		if(total.sizes.getCount() > 0) {
+			double averageSize = (double) total.originSize / total.sizes.getCount();
+			
+			output.append("Approximate total unique data size on the mesh: " + FileUtils.byteCountToDisplaySize(Math.round(averageSize * uniqueFiles)) + "\n");
+			output.append("Total data size (including duplicates) on the mesh: " + FileUtils.byteCountToDisplaySize(total.totalSize) + "\n");
+			output.append("Average file size: " + FileUtils.byteCountToDisplaySize(Math.round(averageSize)) + "\n");
+			output.append("Approximate median file size: " + FileUtils.byteCountToDisplaySize(total.sizes.getValueAtQuantile(0.5)) + "\n");
+			output.append("Approximate 90th percentile file size: " + FileUtils.byteCountToDisplaySize(total.sizes.getValueAtQuantile(0.9)) + "\n");
+			output.append("Maximum file size: " + FileUtils.byteCountToDisplaySize(total.sizes.getMax()) + "\n");
+		} else {
+			output.append("Total data size (including duplicates) on the mesh: " + FileUtils.byteCountToDisplaySize(total.totalSize) + "\n");
+			output.append("File sizes: unknown, no origin copies have been identified\n");
+		}
+		
+		output.append("Average number of bundles per device: " + ((double) total.rows / devices.size()) + "\n");
+		
+		if(total.delays.getCount() > 0) {
+			output.append("Approximate median time delay before a copy: " + formatDelay(total.delays.getValueAtQuantile(0.5)));
+			output.append("Approximate 90th percentile time delay before a copy: " + formatDelay(total.delays.getValueAtQuantile(0.9)));
+			output.append("Approximate 99th percentile time delay before a copy: " + formatDelay(total.delays.getValueAtQuantile(0.99)));
+			output.append("Maximum time delay before a copy: " + formatDelay(total.delays.getMax()));
+			output.append("Copies inserted before the origin copy, due to clock skew: " + total.negativeDelays + "\n");
+		}
+		
+		if(laptop != null) {
+			// the laptop holds a subset of the files, so the difference of the two estimates
+			output.append("Approximate total number of files not on the laptop: " + Math.max(0, uniqueFiles - laptop.bundles.cardinality()) + " (within " + Math.round(2 * countError * uniqueFiles) + ")\n");
+		}
+		
+		output.append("Approximate unique files on each device:\n");
+		output.append(perDevice);
 	}
 	
-	// method to execute an SQL and return the single return value
-	private int executeSqlForRowCount(String sql) throws TaskException {
+	/*
+	 * calculate the exact statistics in the jvm, with the bundles divided into
+	 * partitions that are read and aggregated in parallel, the output is the
+	 * same as the output of the sql queries
+	 */
+	private void gatherParallelStatistics() throws TaskException {
 		
-		if(StringUtils.isEmpty(sql) == true) {
-			throw new IllegalArgumentException("the sql parameter is required");
-		}
+		final PartitionedBundleScan scan = new PartitionedBundleScan(config, tableName, timeColumn, threadCount);
+		
+		ExactStatistics statistics = null;
 		
-		int returnValue = 0;
-		Statement statement = null;
+		TaskPhase phase = beginPhase("statistics.scan", tableName);
+		long scanStart = System.nanoTime();
 		
 		try {
-			 statement = connection.createStatement();
+			statistics = scan.scan(connection, new PartitionedBundleScan.Aggregator<ExactStatistics>() {
+				
+				public ExactStatistics createResult() {
+					return new ExactStatistics();
+				}
+				
+				public void addBundle(ExactStatistics result, BundleCopies copies) {
+					result.add(copies, scan.getDevice("laptop"));
+				}
+				
+				public void finishPartition(ExactStatistics result) {
+					// nothing to do
+				}
+				
+				public ExactStatistics merge(ExactStatistics first, ExactStatistics second) {
+					first.merge(second);
+					return first;
+				}
+			});
 		} catch (SQLException e) {
-			throw new TaskException("unable to create statement '" + sql + "': " + e.getMessage());
+			throw new TaskException("unable to scan the table '" + tableName + "': " + e.getMessage());
+		} catch (Exception e) {
+			throw new TaskException("unable to calculate the statistics", e);
+		} finally {
+			phase.setRowCount(statistics == null ? 0 : statistics.rows).end();
+			getMetrics().recordTime("scan.bundles", scanStart);
+			getMetrics().add("rows.read", statistics == null ? 0 : statistics.rows);
 		}
 		
-		ResultSet resultSet = null;
+		if(statistics.files == 0) {
+			throw new TaskException("the specified table '" + tableName + "' doesn't contain any bundles");
+		}
 		
-		try {
-			resultSet = statement.executeQuery(sql);
-		} catch (SQLException e) {
-			throw new TaskException("unable to execute statement '" + sql + "': " + e.getMessage());
+		output.append("Total unique files on the mesh: " + statistics.files + "\n");
+		output.append("Total bundles on the mesh: " + statistics.rows + "\n");
+		output.append("Total unique data size on the mesh: " + FileUtils.byteCountToDisplaySize(statistics.uniqueSize) + "\n");
+		output.append("Total data size (including duplicates) on the mesh: " + FileUtils.byteCountToDisplaySize(statistics.totalSize) + "\n");
+		output.append("Average file size: " + FileUtils.byteCountToDisplaySize(Math.round(average(statistics.uniqueSize, statistics.files).doubleValue())) + "\n");
+		output.append("Average number of bundles per device: " + average(statistics.rows, scan.getDeviceCount()).toPlainString() + "\n");
+		output.append("Total number of files without resilient copies: " + statistics.withoutResilientCopies + "\n");
+		output.append("Total number of files with resilient copies: " + statistics.withResilientCopies + "\n");
+		output.append("Maximum resilient copy count: " + statistics.maxCopies + "\n");
+		output.append("Minimum resilient copy count: " + (statistics.withResilientCopies == 0 ? null : Long.toString(statistics.minResilientCopies)) + "\n");
+		output.append("Approximate Maximum time delay before first resilient copy: " + (statistics.maxDelay == Long.MIN_VALUE ? "unknown\n" : formatDelay(statistics.maxDelay)));
+		output.append("Approximate Minimum time delay before first resilient copy: " + (statistics.minPositiveDelay == Long.MAX_VALUE ? "unknown\n" : formatDelay(statistics.minPositiveDelay)));
+		output.append("Total number of files not on the laptop: " + statistics.rowsNotOnLaptop + "\n");
+	}
+	
+	// average to four decimal places, the same as the AVG function in MySQL
+	private static BigDecimal average(long total, long count) {
+		return new BigDecimal(total).divide(new BigDecimal(count), 4, RoundingMode.HALF_UP);
+	}
+	
+	// format a delay returned by a query for output
+	private static String formatDelay(String delay) {
+		
+		if(delay == null) {
+			return "unknown\n";
 		}
 		
+		return formatDelay(Long.parseLong(delay));
+	}
+	
+	// format a delay for output
+	private static String formatDelay(long delay) {
+		return DurationFormatUtils.formatDuration(delay, "H:m:s") + " (H:m:s)\n";
+	}
+	
+	// format a relative error as a percentage
+	private static String percent(double error) {
+		return String.format("%.1f%%", error * 100);
+	}
+	
+	// calculate the statistics of an aggregate query, as a phase of the task
+	private Map<String, String> getStatistics(String statistics, AggregateQuery query) throws TaskException {
+		
+		TaskPhase phase = beginPhase("statistic." + statistics, tableName);
+		long queryStart = System.nanoTime();
+		Map<String, String> values = null;
+		
 		try {
+			values = query.execute(connection);
 			
-			resultSet.last();
-			returnValue = resultSet.getRow();
-
+			if(values.isEmpty() == true) {
+				throw new TaskException("unable to get results of sql query '" + query.getSql() + "'");
+			}
+			
+			return values;
 		} catch (SQLException e) {
-			throw new TaskException("unable to get results of sql query '" + sql + "': " + e.getMessage());
+			throw new TaskException("unable to execute statement '" + query.getSql() + "': " + e.getMessage());
 		} finally {
-			try {
-				resultSet.close();
-				statement.close();
-			} catch (SQLException e) {
-				throw new TaskException("unable to clean up database resources: \n" + e.getMessage());
+			phase.setRowCount(values == null ? 0 : 1).end();
+			getMetrics().recordTime("query.statistic." + statistics, queryStart);
+			getMetrics().add("rows.read", values == null ? 0 : 1);
+		}
+	}
+	
+	/*
+	 * exact statistics for the bundles in one or more partitions
+	 */
+	private static class ExactStatistics {
+		
+		private long files = 0;
+		private long rows = 0;
+		private long uniqueSize = 0;
+		private long totalSize = 0;
+		private long withoutResilientCopies = 0;
+		private long withResilientCopies = 0;
+		private long maxCopies = 0;
+		private long minResilientCopies = Long.MAX_VALUE;
+		private long maxDelay = Long.MIN_VALUE;
+		private long minPositiveDelay = Long.MAX_VALUE;
+		private long rowsNotOnLaptop = 0;
+		
+		// add the copies of a bundle
+		void add(BundleCopies copies, int laptop) {
+			
+			int count = copies.getCount();
+			
+			files++;
+			rows += count;
+			uniqueSize += copies.getSize(0);
+			
+			boolean onLaptop = false;
+			
+			for(int i = 0; i < count; i++) {
+				totalSize += copies.getSize(i);
+				
+				if(copies.getDevice(i) == laptop) {
+					onLaptop = true;
+				}
+			}
+			
+			if(onLaptop == false) {
+				rowsNotOnLaptop += count;
+			}
+			
+			if(count == 1) {
+				withoutResilientCopies++;
+			} else {
+				withResilientCopies++;
+				minResilientCopies = Math.min(minResilientCopies, count);
+			}
+			
+			maxCopies = Math.max(maxCopies, count);
+			
+			// delay from the origin copy to the earliest copy with a different insert time
+			int origin = copies.getOrigin();
+			
+			if(origin == -1 || copies.getTime(origin) == BundleCopies.UNKNOWN_TIME) {
+				return;
+			}
+			
+			long originTime = copies.getTime(origin);
+			
+			for(int i = 0; i < count; i++) {
+				long time = copies.getTime(i);
+				
+				if(time != BundleCopies.UNKNOWN_TIME && time != originTime) {
+					
+					long delay = time - originTime;
+					
+					maxDelay = Math.max(maxDelay, delay);
+					
+					if(delay > 0) {
+						minPositiveDelay = Math.min(minPositiveDelay, delay);
+					}
+					
+					// copies are in insert time order, so this is the earliest
+					break;
+				}
 			}
 		}
 		
-		return returnValue;
+		void merge(ExactStatistics other) {
+			files += other.files;
+			rows += other.rows;
+			uniqueSize += other.uniqueSize;
+			totalSize += other.totalSize;
+			withoutResilientCopies += other.withoutResilientCopies;
+			withResilientCopies += other.withResilientCopies;
+			maxCopies = Math.max(maxCopies, other.maxCopies);
+			minResilientCopies = Math.min(minResilientCopies, other.minResilientCopies);
+			maxDelay = Math.max(maxDelay, other.maxDelay);
+			minPositiveDelay = Math.min(minPositiveDelay, other.minPositiveDelay);
+			rowsNotOnLaptop += other.rowsNotOnLaptop;
+		}
+	}
+	
+	/*
+	 * mergeable sketches of the copies held by one or more devices
+	 */
+	private static class Sketches {
 		
+		private HyperLogLog bundles = new HyperLogLog();
+		private LogHistogram sizes = new LogHistogram();
+		private LogHistogram delays = new LogHistogram();
+		
+		private long rows = 0;
+		private long totalSize = 0;
+		private long originSize = 0;
+		private long negativeDelays = 0;
+		
+		// add a copy of a bundle, the delay is null if not known
+		void add(String fileId, long fileSize, boolean isOrigin, Long delay) {
+			
+			bundles.offer(fileId);
+			rows++;
+			totalSize += fileSize;
+			
+			if(isOrigin == true) {
+				// each bundle has one origin copy, so this is the distribution of unique files
+				sizes.record(fileSize);
+				originSize += fileSize;
+			} else if(delay != null) {
+				if(delay < 0) {
+					negativeDelays++;
+				}
+				delays.record(delay);
+			}
+		}
+		
+		void merge(Sketches other) {
+			bundles.merge(other.bundles);
+			sizes.merge(other.sizes);
+			delays.merge(other.delays);
+			rows += other.rows;
+			totalSize += other.totalSize;
+			originSize += other.originSize;
+			negativeDelays += other.negativeDelays;
+		}
 	}
 	
 	/**
@@ -21,21 +21,34 @@ package org.magdaaproject.analysis.rhizome.tasks;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.HiddenFileFilter;
 import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.DatasetArchive;
 import org.magdaaproject.utils.DatasetDirectoryWalker;
 import org.magdaaproject.utils.StringUtils;
+import org.magdaaproject.utils.TaskPhase;
 
 /**
  * class to update the origin column of the data table
+ * 
+ * the survey files may also be stored in zip or tar.gz archives of device
+ * directories within the dataset, only the names of the files are required so
+ * the archives are read in parallel and nothing is extracted
  */
 public class UpdateOrigin extends AbstractTask {
 	
@@ -45,6 +58,7 @@ public class UpdateOrigin extends AbstractTask {
 	private Configuration config;
 	private String tableName;
 	private File inputDir;
+	private int threadCount;
 	
 	private long totalCount;
 	private Connection connection = null;
@@ -57,9 +71,9 @@ public class UpdateOrigin extends AbstractTask {
 	 * @param config a Configuration object with preferences
 	 * @param tableName the name of the table for the deployment
 	 * @param inputDir the path to the parent directory of the dataset
-	 * @param tabletId the unique id of the tablet
+	 * @param threadCount the number of threads used to read archives, or null for one per processor
 	 */
-	public UpdateOrigin(Configuration config, String tableName, File inputDir) {
+	public UpdateOrigin(Configuration config, String tableName, File inputDir, Integer threadCount) {
 		
 		// validate the parameters
 		if(config == null) {
@@ -74,9 +88,20 @@ public class UpdateOrigin extends AbstractTask {
 			throw new IllegalArgumentException("the input parent directory is required");
 		}
 		
+		if(threadCount != null && threadCount < 1) {
+			throw new IllegalArgumentException("the number of threads must be at least 1");
+		}
+		
 		this.config = config;
 		this.tableName = tableName;
 		this.inputDir = inputDir;
+		
+		if(threadCount == null) {
+			this.threadCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.threadCount = threadCount;
+		}
+		
 		totalCount = 0;
 	}
 	
@@ -90,15 +115,28 @@ public class UpdateOrigin extends AbstractTask {
 		// get a list of rhizome files to process
 		DatasetDirectoryWalker rhizomeFileFinder = new DatasetDirectoryWalker(
 			HiddenFileFilter.VISIBLE,
-			FileFilterUtils.suffixFileFilter(".xml")
+			FileFilterUtils.or(FileFilterUtils.suffixFileFilter(".xml"), DatasetArchive.ARCHIVE_FILTER)
 		);
 		
-		ArrayList<File> surveyFiles = null;
+		ArrayList<File> surveyFiles = new ArrayList<File>();
+		ArrayList<File> archives = new ArrayList<File>();
+		
+		TaskPhase phase = beginPhase("dataset.scan", tableName);
 		
 		try {
-			surveyFiles = rhizomeFileFinder.getFileList(inputDir);
+			for(File file : rhizomeFileFinder.getFileList(inputDir)) {
+				if(DatasetArchive.isArchive(file) == true) {
+					archives.add(file);
+				} else {
+					surveyFiles.add(file);
+				}
+			}
+			
+			surveyFiles.addAll(getArchivedSurveyFiles(archives));
 		} catch (IOException e) {
 			throw new TaskException("unable to gather a list of rhizome databases: \n" + e.getMessage());
+		} finally {
+			phase.setRowCount(surveyFiles.size()).end();
 		}
 		
 		if(surveyFiles.size() == 0) { 
@@ -113,7 +151,7 @@ public class UpdateOrigin extends AbstractTask {
 		// get a connection to the destination database if required
 		if(connection == null) {
 			try {
-				connection = DatabaseUtils.getMysqlConnection(config);
+				connection = DatabaseUtils.getConnection(config);
 			} catch (SQLException e) {
 				throw new TaskException("unable to open connection to the MySQL database", e);
 			}
@@ -139,6 +177,8 @@ public class UpdateOrigin extends AbstractTask {
 			throw new TaskException("unable to create update statement", e);
 		}
 		
+		phase = beginPhase("origin.update", tableName);
+		
 		// loop through the list of files
 		try {
 			for(File surveyFile: surveyFiles) {
@@ -151,10 +191,13 @@ public class UpdateOrigin extends AbstractTask {
 				statement.setString(2, tabletId);
 				statement.setString(3, fileName);
 				
+				long updateStart = System.nanoTime();
 				updateCount = statement.executeUpdate();
+				getMetrics().recordTime("update.origin", updateStart);
 				
 				if(updateCount == 1) {
 					totalCount++;
+					getMetrics().increment("rows.written");
 				} else {
 					System.err.println("Found file not in rhizome:");
 					System.err.println(surveyFile.getAbsolutePath());
@@ -162,9 +205,14 @@ public class UpdateOrigin extends AbstractTask {
 			}
 		} catch (SQLException e) {
 			throw new TaskException("unable to update record for file '" + fileName + "' and tabletid '" + tabletId + "':\n" + e.getMessage(), e);
+		} finally {
+			phase.setRowCount(totalCount).end();
 		}
 		
 		ArrayList<String> recordsToDelete = new ArrayList<String>(); 
+		int deleteCount = 0;
+		
+		phase = beginPhase("orphan.purge", tableName);
 		
 		// delete entries for erroneous files
 		try {
@@ -192,6 +240,7 @@ public class UpdateOrigin extends AbstractTask {
 				updateCount = statement.executeUpdate();
 				
 				if(updateCount > 0) {
+					deleteCount += updateCount;
 					System.out.println("Deleted erroneous record: '" + recordToDelete + "'");
 				} else {
 					System.out.println("Unable to delete erroneouns record: '" + recordToDelete + "'");
@@ -200,10 +249,64 @@ public class UpdateOrigin extends AbstractTask {
 			}
 		}	catch (SQLException e) {
 			throw new TaskException("unable to delete erronous records:\n" + e.getMessage(), e);
+		} finally {
+			phase.setRowCount(deleteCount).end();
 		}
 
 	}
 	
+	/*
+	 * list the survey files in the archives, reading several archives at once, the
+	 * path of each file is the path of the archive followed by the path within the archive
+	 */
+	private List<File> getArchivedSurveyFiles(List<File> archives) throws TaskException {
+		
+		ArrayList<File> surveyFiles = new ArrayList<File>();
+		
+		if(archives.size() == 0) {
+			return surveyFiles;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, archives.size()));
+		List<Future<List<File>>> results = new ArrayList<Future<List<File>>>();
+		
+		try {
+			for(final File archive : archives) {
+				results.add(executor.submit(new Callable<List<File>>() {
+					public List<File> call() throws IOException {
+						
+						final ArrayList<File> archivedFiles = new ArrayList<File>();
+						
+						// the contents of the files aren't read
+						DatasetArchive.readEntries(archive, new DatasetArchive.EntryHandler() {
+							public void handleEntry(String name, InputStream input) {
+								if(DatasetArchive.isVisibleFile(name, ".xml") == true) {
+									archivedFiles.add(new File(archive, name));
+								}
+							}
+						});
+						
+						return archivedFiles;
+					}
+				}));
+			}
+			
+			for(int i = 0; i < archives.size(); i++) {
+				try {
+					surveyFiles.addAll(results.get(i).get());
+				} catch (ExecutionException e) {
+					throw new TaskException("unable to read the archive '" + archives.get(i).getAbsolutePath() + "':\n" + e.getCause().getMessage(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new TaskException("interrupted while reading the archives", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return surveyFiles;
+	}
+	
 	/**
 	 * return the number of records inserted into the database
 	 * 
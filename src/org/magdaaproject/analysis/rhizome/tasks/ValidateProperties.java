@@ -24,6 +24,8 @@ import java.util.List;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConversionException;
+import org.magdaaproject.utils.DatabaseUtils;
+import org.magdaaproject.utils.StorageBackend;
 
 /**
  * class representing a task to validate the properties file
@@ -33,11 +35,17 @@ public class ValidateProperties extends AbstractTask {
 	/*
 	 * private class level constants
 	 */
-	private final String[] requiredProperties = {
-			"db.host",
-			"db.database",
-			"db.user",
-			"db.password"};
+	private final String[] optionalNumberProperties = {
+			"analysis.memory",
+			"import.prefetch.depth",
+			"import.batch.size",
+			"rhizome.cache.size",
+			"rhizome.mmap.size",
+			"import.lease.duration",
+			"import.watch.quiet",
+			"analysis.slow.threshold",
+			"db.cache.size",
+			"db.mmap.size"};
 	
 	/*
 	 * private class level variables
@@ -68,8 +76,17 @@ public class ValidateProperties extends AbstractTask {
 		
 		String tmp = null;
 		
+		// the required properties depend on the storage backend
+		StorageBackend backend = null;
+		
+		try {
+			backend = DatabaseUtils.getStorageBackend(config);
+		} catch (IllegalArgumentException e) {
+			throw new TaskException(e.getMessage());
+		}
+		
 		// convert the array of properties into a list
-		List<String> properties = Arrays.asList(requiredProperties);
+		List<String> properties = Arrays.asList(backend.getRequiredProperties());
 		
 		// loop over the list of properties to ensure each one exists
 		for (String property: properties) {
@@ -85,6 +102,18 @@ public class ValidateProperties extends AbstractTask {
 			}
 		}
 		
+		// check that any optional numeric properties are positive numbers
+		for (String property: optionalNumberProperties) {
+			try {
+				if(config.containsKey(property) == true && config.getLong(property) < 1) {
+					throw new TaskException("The value for property '" + property + "' must be at least 1");
+				}
+			}
+			catch (ConversionException e) {
+				throw new TaskException("Unable to read the value for property '" + property + "'");
+			}
+		}
+		
 	}
 
 }
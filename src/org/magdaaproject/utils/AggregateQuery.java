@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a query that calculates a number of aggregate values over the same rows in
+ * a single statement, so that the counting and aggregation is undertaken by
+ * the database and the rows are read once for all of the values
+ *
+ * the rows are those of a table, optionally restricted by a condition, or
+ * those of a subquery, which is used to calculate aggregates of groups such
+ * as the number of files with more than one copy, the rows can also be
+ * grouped by a column so that the aggregates of every group, such as every
+ * device, are calculated in a single pass
+ */
+public class AggregateQuery {
+	
+	/*
+	 * private class level variables
+	 */
+	private String source;
+	private String condition = null;
+	private String groupColumn = null;
+	
+	private List<String> names = new ArrayList<String>();
+	private List<String> expressions = new ArrayList<String>();
+	
+	/**
+	 * construct a new query over the rows of a table
+	 * 
+	 * @param tableName the name of the table
+	 */
+	public AggregateQuery(String tableName) {
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		this.source = tableName;
+	}
+	
+	/**
+	 * construct a new query over the rows of a subquery
+	 * 
+	 * @param subquery the sql of the subquery
+	 * @param alias the alias of the subquery, used to refer to its columns
+	 * @return the new query
+	 */
+	public static AggregateQuery fromSubquery(String subquery, String alias) {
+		
+		if(StringUtils.isEmpty(subquery) == true || StringUtils.isEmpty(alias) == true) {
+			throw new IllegalArgumentException("the subquery and alias are required");
+		}
+		
+		return new AggregateQuery("(" + subquery + ") AS " + alias);
+	}
+	
+	/**
+	 * restrict the rows that are aggregated
+	 * 
+	 * @param condition the sql condition that the rows must match
+	 * @return this query
+	 */
+	public AggregateQuery where(String condition) {
+		
+		if(StringUtils.isEmpty(condition) == true) {
+			throw new IllegalArgumentException("the condition is required");
+		}
+		
+		this.condition = condition;
+		return this;
+	}
+	
+	/**
+	 * group the rows, so that the aggregates are calculated for each group
+	 * 
+	 * @param column the column used to group the rows
+	 * @return this query
+	 */
+	public AggregateQuery groupBy(String column) {
+		
+		if(StringUtils.isEmpty(column) == true) {
+			throw new IllegalArgumentException("the column is required");
+		}
+		
+		this.groupColumn = column;
+		return this;
+	}
+	
+	/**
+	 * add an aggregate value to the query
+	 * 
+	 * @param name the name used to get the value from the results
+	 * @param expression the sql of the aggregate, for example COUNT(file_id)
+	 * @return this query
+	 */
+	public AggregateQuery add(String name, String expression) {
+		
+		if(StringUtils.isEmpty(name) == true || StringUtils.isEmpty(expression) == true) {
+			throw new IllegalArgumentException("the name and expression are required");
+		}
+		
+		if(names.contains(name) == true) {
+			throw new IllegalArgumentException("the aggregate '" + name + "' has already been added");
+		}
+		
+		names.add(name);
+		expressions.add(expression);
+		return this;
+	}
+	
+	/**
+	 * add an aggregate which counts the rows that match a condition
+	 * 
+	 * @param name the name used to get the value from the results
+	 * @param condition the sql condition that the rows must match
+	 * @return this query
+	 */
+	public AggregateQuery addCount(String name, String condition) {
+		return add(name, "COUNT(CASE WHEN " + condition + " THEN 1 END)");
+	}
+	
+	/**
+	 * get the sql of the query
+	 * 
+	 * @return the sql of the query
+	 */
+	public String getSql() {
+		
+		if(names.isEmpty() == true) {
+			throw new IllegalStateException("at least one aggregate is required");
+		}
+		
+		StringBuilder sql = new StringBuilder("SELECT ");
+		
+		if(groupColumn != null) {
+			sql.append(groupColumn).append(", ");
+		}
+		
+		for(int i = 0; i < expressions.size(); i++) {
+			
+			if(i > 0) {
+				sql.append(", ");
+			}
+			
+			sql.append(expressions.get(i));
+		}
+		
+		sql.append(" FROM ").append(source);
+		
+		if(condition != null) {
+			sql.append(" WHERE ").append(condition);
+		}
+		
+		if(groupColumn != null) {
+			sql.append(" GROUP BY ").append(groupColumn).append(" ORDER BY ").append(groupColumn);
+		}
+		
+		return sql.toString();
+	}
+	
+	/**
+	 * execute the query, the value of an aggregate other than a count is null
+	 * if there were no rows
+	 * 
+	 * @param connection a connection to the database
+	 * @return the values of the aggregates, by name
+	 * @throws SQLException if the query cannot be executed
+	 */
+	public Map<String, String> execute(Connection connection) throws SQLException {
+		
+		if(groupColumn != null) {
+			throw new IllegalStateException("the aggregates of a grouped query are returned by executeGroups");
+		}
+		
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet resultSet = statement.executeQuery(getSql());
+			
+			// an aggregate query without grouping always returns a single row
+			if(resultSet.next() == true) {
+				for(int i = 0; i < names.size(); i++) {
+					values.put(names.get(i), resultSet.getString(i + 1));
+				}
+			}
+			
+			resultSet.close();
+		} finally {
+			statement.close();
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * execute a grouped query
+	 * 
+	 * @param connection a connection to the database
+	 * @return the values of the aggregates of each group, by the value of the group column in order, and then by name
+	 * @throws SQLException if the query cannot be executed
+	 */
+	public Map<String, Map<String, String>> executeGroups(Connection connection) throws SQLException {
+		
+		if(groupColumn == null) {
+			throw new IllegalStateException("the query isn't grouped");
+		}
+		
+		Map<String, Map<String, String>> groups = new LinkedHashMap<String, Map<String, String>>();
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet resultSet = statement.executeQuery(getSql());
+			
+			while(resultSet.next() == true) {
+				
+				Map<String, String> values = new LinkedHashMap<String, String>();
+				
+				for(int i = 0; i < names.size(); i++) {
+					values.put(names.get(i), resultSet.getString(i + 2));
+				}
+				
+				groups.put(resultSet.getString(1), values);
+			}
+			
+			resultSet.close();
+		} finally {
+			statement.close();
+		}
+		
+		return groups;
+	}
+}
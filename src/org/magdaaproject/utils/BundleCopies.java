@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.util.Arrays;
+
+/**
+ * the copies of a single bundle held across the mesh, ordered by insert time
+ *
+ * devices are identified by the index assigned to them by the scanner that
+ * produced the copies, instances are reused from one bundle to the next
+ */
+public class BundleCopies {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the time of a copy with an unknown insert time
+	 */
+	public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+	
+	/*
+	 * private class level variables
+	 */
+	private String fileId = null;
+	private int count = 0;
+	private int[] devices = new int[16];
+	private long[] times = new long[16];
+	private long[] sizes = new long[16];
+	private int origin = -1;
+	
+	/**
+	 * start a new bundle, discarding the copies of the previous bundle
+	 *
+	 * @param fileId the id of the bundle
+	 */
+	public void reset(String fileId) {
+		this.fileId = fileId;
+		count = 0;
+		origin = -1;
+	}
+	
+	/**
+	 * add a copy of the bundle, copies must be added in insert time order
+	 *
+	 * @param device the index of the device holding the copy
+	 * @param time the insert time of the copy
+	 * @param isOrigin true if the device is the origin of the bundle
+	 */
+	public void add(int device, long time, boolean isOrigin) {
+		add(device, time, isOrigin, 0);
+	}
+	
+	/**
+	 * add a copy of the bundle, copies must be added in insert time order
+	 *
+	 * @param device the index of the device holding the copy
+	 * @param time the insert time of the copy, or UNKNOWN_TIME if not known
+	 * @param isOrigin true if the device is the origin of the bundle
+	 * @param size the size of the copy
+	 */
+	public void add(int device, long time, boolean isOrigin, long size) {
+		
+		if(count == devices.length) {
+			devices = Arrays.copyOf(devices, count * 2);
+			times = Arrays.copyOf(times, count * 2);
+			sizes = Arrays.copyOf(sizes, count * 2);
+		}
+		
+		if(isOrigin == true && origin == -1) {
+			origin = count;
+		}
+		
+		devices[count] = device;
+		times[count] = time;
+		sizes[count] = size;
+		count++;
+	}
+	
+	/**
+	 * return the id of the bundle
+	 *
+	 * @return the id of the bundle
+	 */
+	public String getFileId() {
+		return fileId;
+	}
+	
+	/**
+	 * return the number of copies of the bundle
+	 *
+	 * @return the number of copies
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * return the device holding a copy
+	 *
+	 * @param copy the index of the copy
+	 * @return the index of the device
+	 */
+	public int getDevice(int copy) {
+		return devices[copy];
+	}
+	
+	/**
+	 * return the insert time of a copy
+	 *
+	 * @param copy the index of the copy
+	 * @return the insert time of the copy, or UNKNOWN_TIME if not known
+	 */
+	public long getTime(int copy) {
+		return times[copy];
+	}
+	
+	/**
+	 * return the size of a copy
+	 *
+	 * @param copy the index of the copy
+	 * @return the size of the copy, or zero if not known
+	 */
+	public long getSize(int copy) {
+		return sizes[copy];
+	}
+	
+	/**
+	 * return the copy held by the origin device
+	 *
+	 * @return the index of the origin copy, or -1 if the origin is not known
+	 */
+	public int getOrigin() {
+		return origin;
+	}
+	
+	/**
+	 * return the copy that is the root of the propagation tree, this is the
+	 * origin copy if known otherwise the earliest copy
+	 *
+	 * @return the index of the root copy
+	 */
+	public int getRoot() {
+		if(origin == -1) {
+			return 0;
+		} else {
+			return origin;
+		}
+	}
+	
+	/**
+	 * determine the copy that each copy of the bundle was most likely received from
+	 *
+	 * copies inserted within the sync window of the start of a cluster are
+	 * grouped into the same cluster, and every copy in a cluster is deemed to
+	 * have been received from the earliest copy in the previous cluster, with
+	 * the first cluster being received from the root
+	 *
+	 * @param syncWindow the length of the sync window, in milliseconds
+	 * @param parents an array with room for at least one entry per copy, the root copy is given a parent of -1
+	 * @return the parents array, a new array is allocated if the supplied array is too small
+	 */
+	public int[] getParents(long syncWindow, int[] parents) {
+		
+		if(parents == null || parents.length < count) {
+			parents = new int[Math.max(count, devices.length)];
+		}
+		
+		int root = getRoot();
+		int source = root;
+		int clusterFirst = -1;
+		long clusterStart = times[root];
+		
+		for(int i = 0; i < count; i++) {
+			
+			if(i == root) {
+				parents[i] = -1;
+				continue;
+			}
+			
+			if(times[i] >= clusterStart + syncWindow) {
+				// start a new cluster, received from the previous cluster
+				if(clusterFirst != -1) {
+					source = clusterFirst;
+				}
+				
+				clusterFirst = i;
+				clusterStart = times[i];
+			} else if(clusterFirst == -1) {
+				clusterFirst = i;
+			}
+			
+			parents[i] = source;
+		}
+		
+		return parents;
+	}
+}
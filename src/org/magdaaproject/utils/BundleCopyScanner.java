@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * scan the copies of every bundle in a table in a single ordered pass,
+ * passing the copies of each bundle in turn to a handler
+ */
+public class BundleCopyScanner {
+	
+	/**
+	 * receives the copies of each bundle during a scan
+	 */
+	public interface Handler {
+		
+		/**
+		 * handle the copies of a single bundle
+		 *
+		 * the copies object is reused for the next bundle once this method returns
+		 *
+		 * @param copies the copies of the bundle, ordered by insert time
+		 * @throws Exception if something bad happens, the scan is abandoned
+		 */
+		public void handleBundle(BundleCopies copies) throws Exception;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private HashMap<String, Integer> devices = new HashMap<String, Integer>();
+	private ArrayList<String> deviceIds = new ArrayList<String>();
+	
+	private long rowCount = 0;
+	private long bundleCount = 0;
+	
+	/**
+	 * scan the copies of every bundle with a known insert time
+	 *
+	 * @param config a Configuration object with details about the database
+	 * @param connection a valid connection to the database
+	 * @param tableName the name of the table for the deployment
+	 * @param handler the handler to receive the copies of each bundle
+	 * @throws SQLException if a database error occurs
+	 * @throws Exception if the handler throws an exception
+	 */
+	public void scan(Configuration config, Connection connection, String tableName, Handler handler) throws Exception {
+		
+		if(connection == null) {
+			throw new IllegalArgumentException("the connection parameter is required");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(handler == null) {
+			throw new IllegalArgumentException("the handler parameter is required");
+		}
+		
+		String sql = "SELECT file_id, tablet_id, file_insert_time, origin FROM " + tableName + " WHERE file_insert_time IS NOT NULL ORDER BY file_id, file_insert_time ASC";
+		
+		Statement statement = DatabaseUtils.createStreamingStatement(config, connection);
+		ResultSet resultSet = null;
+		
+		BundleCopies copies = new BundleCopies();
+		
+		try {
+			resultSet = statement.executeQuery(sql);
+			
+			String fileId;
+			
+			while(resultSet.next() == true) {
+				
+				fileId = resultSet.getString(1);
+				
+				if(fileId.equals(copies.getFileId()) == false) {
+					
+					// pass on the completed bundle
+					if(copies.getCount() > 0) {
+						handler.handleBundle(copies);
+						bundleCount++;
+					}
+					
+					copies.reset(fileId);
+				}
+				
+				copies.add(getDevice(resultSet.getString(2)), resultSet.getLong(3), DatabaseUtils.DATABASE_CONST_YES.equalsIgnoreCase(resultSet.getString(4)));
+				rowCount++;
+			}
+			
+			// pass on the final bundle
+			if(copies.getCount() > 0) {
+				handler.handleBundle(copies);
+				bundleCount++;
+			}
+		} finally {
+			if(resultSet != null) {
+				resultSet.close();
+			}
+			statement.close();
+		}
+	}
+	
+	/**
+	 * return the index of a device, assigning a new index if necessary
+	 *
+	 * @param tabletId the id of the device
+	 * @return the index of the device
+	 */
+	public int getDevice(String tabletId) {
+		
+		Integer device = devices.get(tabletId);
+		
+		if(device == null) {
+			device = deviceIds.size();
+			devices.put(tabletId, device);
+			deviceIds.add(tabletId);
+		}
+		
+		return device;
+	}
+	
+	/**
+	 * return the number of devices seen so far
+	 *
+	 * @return the number of devices
+	 */
+	public int getDeviceCount() {
+		return deviceIds.size();
+	}
+	
+	/**
+	 * return the id of a device
+	 *
+	 * @param device the index of the device
+	 * @return the tablet id of the device
+	 */
+	public String getDeviceId(int device) {
+		return deviceIds.get(device);
+	}
+	
+	/**
+	 * return the number of rows read by the scan
+	 *
+	 * @return the number of rows read
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * return the number of bundles passed to the handler
+	 *
+	 * @return the number of bundles
+	 */
+	public long getBundleCount() {
+		return bundleCount;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * copy a list of sqlite databases to a local staging directory in the
+ * background, so that a database can be read from fast local storage while
+ * the next databases are being copied
+ *
+ * the copies are made one at a time, in the order of the list, and no more
+ * than the prefetch depth are made ahead of the database being read, any
+ * rollback journal or write ahead log alongside a database is copied with it
+ */
+public class DatabaseStager {
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// suffixes of the files sqlite may keep alongside a database
+	private static final String[] COMPANION_SUFFIXES = {"-journal", "-wal"};
+	
+	/*
+	 * private class level variables
+	 */
+	private List<File> files;
+	private File stageDirectory;
+	private int depth;
+	
+	private ExecutorService executor;
+	private ArrayList<Future<File>> copies = new ArrayList<Future<File>>();
+	
+	/**
+	 * prepare to stage a list of databases
+	 *
+	 * @param files the databases to stage, in the order they will be read
+	 * @param parentDirectory the directory in which to create the staging directory, or null for the default temporary directory
+	 * @param depth the number of databases to copy ahead of the database being read
+	 * @throws IOException if the staging directory cannot be created
+	 */
+	public DatabaseStager(List<File> files, File parentDirectory, int depth) throws IOException {
+		
+		if(files == null) {
+			throw new IllegalArgumentException("the list of files is required");
+		}
+		
+		if(depth < 1) {
+			throw new IllegalArgumentException("the prefetch depth must be at least 1");
+		}
+		
+		this.files = files;
+		this.depth = depth;
+		
+		// use a directory of our own so that staged copies never collide
+		stageDirectory = File.createTempFile("rhizome-stage", "", parentDirectory);
+		
+		if(stageDirectory.delete() == false || stageDirectory.mkdir() == false) {
+			throw new IOException("unable to create the staging directory '" + stageDirectory.getAbsolutePath() + "'");
+		}
+		
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "database-stager");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * return the staged copy of a database, waiting for the copy to complete
+	 * if required, and start copying the databases that follow it
+	 *
+	 * @param index the index of the database in the list
+	 * @return the staged copy of the database
+	 * @throws IOException if the database cannot be copied
+	 */
+	public File getStagedFile(int index) throws IOException {
+		
+		// queue the copies up to the prefetch depth
+		while(copies.size() <= index + depth && copies.size() < files.size()) {
+			
+			final File source = files.get(copies.size());
+			final File target = new File(stageDirectory, copies.size() + "-" + source.getName());
+			
+			copies.add(executor.submit(new Callable<File>() {
+				public File call() throws IOException {
+					
+					copyFile(source, target);
+					
+					for(String suffix : COMPANION_SUFFIXES) {
+						File companion = new File(source.getPath() + suffix);
+						
+						if(companion.isFile() == true) {
+							copyFile(companion, new File(target.getPath() + suffix));
+						}
+					}
+					
+					return target;
+				}
+			}));
+		}
+		
+		try {
+			return copies.get(index).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while staging '" + files.get(index).getAbsolutePath() + "'", e);
+		} catch (ExecutionException e) {
+			throw new IOException("unable to stage '" + files.get(index).getAbsolutePath() + "': " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+	
+	/**
+	 * return the number of copies that have been queued but are not yet complete
+	 *
+	 * @return the number of copies waiting or in progress
+	 */
+	public int getQueueDepth() {
+		
+		int depth = 0;
+		
+		for(Future<File> copy : copies) {
+			if(copy.isDone() == false) {
+				depth++;
+			}
+		}
+		
+		return depth;
+	}
+	
+	/**
+	 * delete the staged copy of a database once it has been read
+	 *
+	 * @param index the index of the database in the list
+	 */
+	public void release(int index) {
+		
+		File target = new File(stageDirectory, index + "-" + files.get(index).getName());
+		
+		target.delete();
+		
+		for(String suffix : COMPANION_SUFFIXES) {
+			new File(target.getPath() + suffix).delete();
+		}
+	}
+	
+	/**
+	 * stop any copies in progress and delete the staging directory
+	 */
+	public void close() {
+		
+		for(Future<File> copy : copies) {
+			copy.cancel(true);
+		}
+		
+		executor.shutdownNow();
+		
+		// wait for the copy in progress to stop before deleting its target
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		File[] staged = stageDirectory.listFiles();
+		
+		if(staged != null) {
+			for(File file : staged) {
+				file.delete();
+			}
+		}
+		
+		stageDirectory.delete();
+	}
+	
+	// copy a file using channel transfers, which avoid copying the data through the java heap
+	private static void copyFile(File source, File target) throws IOException {
+		
+		FileInputStream input = new FileInputStream(source);
+		
+		try {
+			FileOutputStream output = new FileOutputStream(target);
+			
+			try {
+				FileChannel inputChannel = input.getChannel();
+				FileChannel outputChannel = output.getChannel();
+				
+				long size = inputChannel.size();
+				long position = 0;
+				
+				// a single transfer may copy fewer bytes than requested
+				while(position < size) {
+					
+					if(Thread.currentThread().isInterrupted() == true) {
+						throw new IOException("the copy was cancelled");
+					}
+					
+					long count = inputChannel.transferTo(position, size - position, outputChannel);
+					
+					// nothing is transferred once the end of the file is reached, so the file has shrunk since the copy started
+					if(count == 0) {
+						throw new IOException("the file was truncated while it was copied");
+					}
+					
+					position += count;
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -21,13 +21,13 @@ package org.magdaaproject.utils;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 import org.apache.commons.configuration.Configuration;
 
-import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
-
 /**
  * Various utility methods for accessing the database
  */
@@ -40,29 +40,53 @@ public class DatabaseUtils {
 	public static final String DATABASE_CONST_NO  = "N";
 	
 	/**
-	 * get a connection to the MySQL database
+	 * get the backend used to store the data, as set by the db.backend property,
+	 * which defaults to mysql
 	 * 
 	 * @param config a Configuration object with database connection details
-	 * @return a connection to the database
-	 * 
-	 * @throws SQLException if something bad happens
+	 * @return the storage backend
 	 */
-	public static Connection getMysqlConnection(Configuration config) throws SQLException {
+	public static StorageBackend getStorageBackend(Configuration config) {
 		
 		// check on the parameters
 		if(config == null) {
 			throw new IllegalArgumentException("the config parameter is required");
 		}
 		
-		// get a connection to the data
-		MysqlDataSource datasource = new MysqlDataSource();
+		String backend = config.getString("db.backend", "mysql");
+		
+		if(backend.equalsIgnoreCase("mysql") == true) {
+			return new MysqlStorageBackend(config);
+		}
 		
-		datasource.setServerName(config.getString("db.host"));
-		datasource.setDatabaseName(config.getString("db.database"));
-		datasource.setUser(config.getString("db.user"));
-		datasource.setPassword(config.getString("db.password"));
+		if(backend.equalsIgnoreCase("sqlite") == true) {
+			return new SqliteStorageBackend(config);
+		}
 		
-		return datasource.getConnection();
+		// another implementation, named by its class
+		try {
+			return Class.forName(backend).asSubclass(StorageBackend.class).getConstructor(Configuration.class).newInstance(config);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("unknown storage backend '" + backend + "'");
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("the class '" + backend + "' isn't a storage backend");
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("unable to create the storage backend '" + backend + "': " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * get a connection to the database used to store the data, the statements
+	 * executed on the connection are profiled if the StatementProfiler has been
+	 * started
+	 * 
+	 * @param config a Configuration object with database connection details
+	 * @return a connection to the database
+	 * 
+	 * @throws SQLException if something bad happens
+	 */
+	public static Connection getConnection(Configuration config) throws SQLException {
+		return StatementProfiler.profile(getStorageBackend(config).getConnection());
 	}
 	
 	/**
@@ -92,4 +116,60 @@ public class DatabaseUtils {
 		return tableExists;
 	}
 
+	/**
+	 * check to see if a column exists in a table
+	 * 
+	 * @param connection a valid connection to the database
+	 * @param tableName the name of the table to check
+	 * @param columnName the name of the column to check
+	 * @return true if the column exists, false if it does not
+	 * @throws SQLException if something bad happens
+	 */
+	public static boolean doesColumnExist(Connection connection, String tableName, String columnName) throws SQLException {
+		
+		boolean columnExists = false;
+		
+		DatabaseMetaData metaData = connection.getMetaData();
+		ResultSet columnsList = metaData.getColumns(null, null, tableName, columnName);
+		
+		if(columnsList.next()) {
+			columnExists = true;
+		}
+		
+		columnsList.close();
+		
+		return columnExists;
+	}
+	
+	/**
+	 * create a statement that streams the rows of a result set one at a time
+	 * rather than buffering the entire result set in memory
+	 *
+	 * only one streaming result set can be open on a connection at a time
+	 *
+	 * @param config a Configuration object with database connection details
+	 * @param connection a valid connection to the database
+	 * @return a forward only, read only statement
+	 * @throws SQLException if something bad happens
+	 */
+	public static Statement createStreamingStatement(Configuration config, Connection connection) throws SQLException {
+		return getStorageBackend(config).createScanStatement(connection);
+	}
+	
+	/**
+	 * prepare a statement that streams the rows of a result set one at a time
+	 * rather than buffering the entire result set in memory
+	 *
+	 * only one streaming result set can be open on a connection at a time
+	 *
+	 * @param config a Configuration object with database connection details
+	 * @param connection a valid connection to the database
+	 * @param sql the query
+	 * @return a forward only, read only prepared statement
+	 * @throws SQLException if something bad happens
+	 */
+	public static PreparedStatement prepareStreamingStatement(Configuration config, Connection connection, String sql) throws SQLException {
+		return getStorageBackend(config).prepareScanStatement(connection, sql);
+	}
+	
 }
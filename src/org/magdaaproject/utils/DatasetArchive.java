@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+
+/**
+ * read the files of a dataset from a zip or tar.gz archive of device
+ * directories, without extracting the archive to disk
+ *
+ * the entries of a zip archive are read from its central directory, so the
+ * names of the entries are available without decompressing any data, a tar.gz
+ * archive has no index so it is read from start to end, with the data of
+ * entries that aren't wanted skipped rather than written anywhere
+ */
+public class DatasetArchive {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the suffixes of the supported archives
+	 */
+	public static final String[] ARCHIVE_SUFFIXES = {".zip", ".tar.gz", ".tgz"};
+	
+	/**
+	 * a filter which accepts the supported archives
+	 */
+	public static final IOFileFilter ARCHIVE_FILTER = new SuffixFileFilter(ARCHIVE_SUFFIXES, IOCase.INSENSITIVE);
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int TAR_BLOCK_SIZE = 512;
+	
+	/**
+	 * the handler for the entries of an archive
+	 */
+	public interface EntryHandler {
+		
+		/**
+		 * handle a file in an archive, the stream is only valid until the
+		 * method returns and need not be read
+		 *
+		 * @param name the path of the file within the archive, using / as the separator and without a leading ./ or /
+		 * @param input a stream of the contents of the file
+		 * @throws IOException if something bad happens
+		 */
+		public void handleEntry(String name, InputStream input) throws IOException;
+	}
+	
+	/**
+	 * check if a file is a supported archive
+	 *
+	 * @param file the file to check
+	 * @return true if the file is a supported archive
+	 */
+	public static boolean isArchive(File file) {
+		return file.isFile() == true && ARCHIVE_FILTER.accept(file);
+	}
+	
+	/**
+	 * check if an entry of an archive is a file that the dataset walker would
+	 * find, which is a file with the given suffix that isn't hidden and isn't
+	 * in a hidden directory
+	 *
+	 * @param name the path of the file within the archive, as passed to the handler
+	 * @param suffix the suffix of the file name, for example /rhizome.db or .xml
+	 * @return true if the entry is a visible file with the suffix
+	 */
+	public static boolean isVisibleFile(String name, String suffix) {
+		
+		if(("/" + name).endsWith(suffix) == false) {
+			return false;
+		}
+		
+		// a segment of . is the current directory rather than a hidden file
+		for(String segment : name.split("/")) {
+			if(segment.startsWith(".") == true && segment.equals(".") == false) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * pass each file in an archive to the handler, in the order they are stored in the archive
+	 *
+	 * @param archive the archive to read
+	 * @param handler the handler for the files
+	 * @throws IOException if the archive cannot be read, or the handler fails
+	 */
+	public static void readEntries(File archive, EntryHandler handler) throws IOException {
+		
+		if(archive == null || handler == null) {
+			throw new IllegalArgumentException("the archive and handler are required");
+		}
+		
+		if(archive.getName().toLowerCase().endsWith(".zip") == true) {
+			readZipEntries(archive, handler);
+		} else {
+			readTarEntries(archive, handler);
+		}
+	}
+	
+	/**
+	 * copy the contents of a file in an archive to a temporary file
+	 *
+	 * @param input the stream passed to the handler
+	 * @param name the path of the file within the archive
+	 * @param directory the directory for the temporary file, or null for the default temporary directory
+	 * @return the temporary file, which must be deleted by the caller
+	 * @throws IOException if the file cannot be copied
+	 */
+	public static File copyToTempFile(InputStream input, String name, File directory) throws IOException {
+		
+		File tempFile = File.createTempFile("rhizome-archive", "-" + new File(name).getName(), directory);
+		
+		OutputStream output = new FileOutputStream(tempFile);
+		
+		try {
+			IOUtils.copyLarge(input, output);
+		} catch (IOException e) {
+			output.close();
+			tempFile.delete();
+			throw e;
+		} finally {
+			output.close();
+		}
+		
+		return tempFile;
+	}
+	
+	// read the entries of a zip archive using its central directory
+	private static void readZipEntries(File archive, EntryHandler handler) throws IOException {
+		
+		ZipFile zipFile = new ZipFile(archive);
+		
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			
+			while(entries.hasMoreElements() == true) {
+				
+				ZipEntry entry = entries.nextElement();
+				
+				if(entry.isDirectory() == true) {
+					continue;
+				}
+				
+				// the data is only decompressed if the handler reads it
+				InputStream input = zipFile.getInputStream(entry);
+				
+				try {
+					handler.handleEntry(normaliseName(entry.getName()), input);
+				} finally {
+					input.close();
+				}
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+	
+	/*
+	 * read the entries of a gzip compressed tar archive, the ustar format and the
+	 * gnu and pax extensions for long names are supported
+	 */
+	private static void readTarEntries(File archive, EntryHandler handler) throws IOException {
+		
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(archive), 64 * 1024)));
+		
+		try {
+			byte[] header = new byte[TAR_BLOCK_SIZE];
+			String longName = null;
+			
+			while(true) {
+				
+				try {
+					input.readFully(header);
+				} catch (EOFException e) {
+					break;
+				}
+				
+				// the archive ends with empty blocks
+				if(isEmptyBlock(header) == true) {
+					break;
+				}
+				
+				long size = parseOctal(header, 124, 12);
+				char type = (char) header[156];
+				
+				String name = longName;
+				longName = null;
+				
+				if(name == null) {
+					name = parseString(header, 0, 100);
+					
+					// the posix ustar format splits long names between the prefix and the name, the older gnu format uses the field for other things
+					if(parseString(header, 257, 6).equals("ustar") == true && header[262] == 0) {
+						String prefix = parseString(header, 345, 155);
+						
+						if(prefix.length() > 0) {
+							name = prefix + "/" + name;
+						}
+					}
+				}
+				
+				EntryInputStream entryInput = new EntryInputStream(input, size);
+				
+				if(type == 'L') {
+					
+					// the data is the name of the next entry
+					longName = parseString(IOUtils.toByteArray(entryInput), 0, (int) size);
+					
+				} else if(type == 'x') {
+					
+					// a pax header may replace the name of the next entry
+					longName = parsePaxPath(IOUtils.toByteArray(entryInput));
+					
+				} else if(type == '0' || type == '\0' || type == '7') {
+					handler.handleEntry(normaliseName(name), entryInput);
+				}
+				
+				// skip what the handler didn't read, and the padding to the end of the block
+				IOUtils.skipFully(input, entryInput.getRemaining());
+				
+				long padding = (TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE;
+				IOUtils.skipFully(input, padding);
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	// remove the leading ./ and / that tools such as tar add to the names of the entries
+	private static String normaliseName(String name) {
+		
+		while(true) {
+			if(name.startsWith("./") == true) {
+				name = name.substring(2);
+			} else if(name.startsWith("/") == true) {
+				name = name.substring(1);
+			} else {
+				return name;
+			}
+		}
+	}
+	
+	// check if a tar block contains only zeros
+	private static boolean isEmptyBlock(byte[] block) {
+		
+		for(byte value : block) {
+			if(value != 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	// parse a null terminated string from a tar header
+	private static String parseString(byte[] buffer, int offset, int length) {
+		
+		int end = offset;
+		
+		while(end < offset + length && end < buffer.length && buffer[end] != 0) {
+			end++;
+		}
+		
+		try {
+			return new String(buffer, offset, end - offset, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// parse a number from a tar header, stored in octal or, for large files, in base 256
+	private static long parseOctal(byte[] buffer, int offset, int length) throws IOException {
+		
+		long value = 0;
+		
+		if((buffer[offset] & 0x80) != 0) {
+			for(int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (buffer[i] & 0xff);
+			}
+			
+			return value;
+		}
+		
+		for(int i = offset; i < offset + length; i++) {
+			
+			byte digit = buffer[i];
+			
+			if(digit == 0 || digit == ' ') {
+				if(value > 0) {
+					break;
+				}
+				
+				continue;
+			}
+			
+			if(digit < '0' || digit > '7') {
+				throw new IOException("the archive is corrupt or is not a tar archive");
+			}
+			
+			value = (value << 3) + (digit - '0');
+		}
+		
+		return value;
+	}
+	
+	// find the path in the records of a pax extended header, each of the form "length key=value\n"
+	private static String parsePaxPath(byte[] data) throws IOException {
+		
+		String records = new String(data, "UTF-8");
+		String path = null;
+		
+		for(String record : records.split("\n")) {
+			
+			int start = record.indexOf(' ');
+			
+			if(start != -1 && record.startsWith("path=", start + 1) == true) {
+				path = record.substring(start + 6);
+			}
+		}
+		
+		return path;
+	}
+	
+	/*
+	 * a stream of the data of a single tar entry, which doesn't close the
+	 * underlying stream
+	 */
+	private static class EntryInputStream extends FilterInputStream {
+		
+		private long remaining;
+		
+		public EntryInputStream(InputStream input, long size) {
+			super(input);
+			remaining = size;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			if(remaining <= 0) {
+				return -1;
+			}
+			
+			int value = super.read();
+			
+			if(value == -1) {
+				throw new EOFException("the archive is truncated");
+			}
+			
+			remaining--;
+			return value;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			
+			if(remaining <= 0) {
+				return -1;
+			}
+			
+			int count = super.read(buffer, offset, (int) Math.min(length, remaining));
+			
+			if(count == -1) {
+				throw new EOFException("the archive is truncated");
+			}
+			
+			remaining -= count;
+			return count;
+		}
+		
+		@Override
+		public long skip(long count) throws IOException {
+			
+			long skipped = super.skip(Math.min(count, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return 0;
+		}
+		
+		public long getRemaining() {
+			return remaining;
+		}
+		
+		@Override
+		public void close() {
+			// the underlying stream is still required for the next entry
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
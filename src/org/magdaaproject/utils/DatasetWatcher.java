@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * watch the directories of a dataset for databases that are created or
+ * changed, returning each database once it has stopped changing
+ *
+ * a database is considered stable once no changes to it, or to its journal,
+ * have been seen for the quiet period and its size and modification time are
+ * the same as when the last change was seen, new directories are watched as
+ * they are created, hidden directories are ignored
+ */
+public class DatasetWatcher {
+	
+	/*
+	 * private class level variables
+	 */
+	private String fileName;
+	private long quietPeriod;
+	
+	private WatchService watchService;
+	private HashMap<WatchKey, File> directories = new HashMap<WatchKey, File>();
+	
+	// the databases that have changed, with the time of the latest change
+	private LinkedHashMap<File, Long> changed = new LinkedHashMap<File, Long>();
+	
+	// the size and modification time of each changed database when the latest change was seen
+	private HashMap<File, String> signatures = new HashMap<File, String>();
+	
+	/**
+	 * start watching a dataset
+	 *
+	 * @param datasetDir the parent directory of the dataset
+	 * @param fileName the name of the database files, for example rhizome.db
+	 * @param quietPeriod the number of milliseconds a database must be unchanged before it is returned
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public DatasetWatcher(File datasetDir, String fileName, long quietPeriod) throws IOException {
+		
+		if(datasetDir == null || datasetDir.isDirectory() == false) {
+			throw new IllegalArgumentException("the dataset directory is required");
+		}
+		
+		if(StringUtils.isEmpty(fileName) == true) {
+			throw new IllegalArgumentException("the file name is required");
+		}
+		
+		if(quietPeriod < 1) {
+			throw new IllegalArgumentException("the quiet period must be at least 1 millisecond");
+		}
+		
+		this.fileName = fileName;
+		this.quietPeriod = quietPeriod;
+		
+		watchService = FileSystems.getDefault().newWatchService();
+		
+		register(datasetDir, false);
+	}
+	
+	/**
+	 * wait for the next database that has changed and is now stable
+	 *
+	 * @return the database file
+	 * @throws IOException if a new directory cannot be watched
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public File take() throws IOException, InterruptedException {
+		
+		while(true) {
+			
+			// return the first database that has been quiet for long enough
+			long now = System.currentTimeMillis();
+			long nextDeadline = Long.MAX_VALUE;
+			
+			Iterator<Map.Entry<File, Long>> iterator = changed.entrySet().iterator();
+			
+			while(iterator.hasNext() == true) {
+				
+				Map.Entry<File, Long> entry = iterator.next();
+				File database = entry.getKey();
+				long deadline = entry.getValue() + quietPeriod;
+				
+				if(deadline > now) {
+					nextDeadline = Math.min(nextDeadline, deadline);
+					continue;
+				}
+				
+				if(database.isFile() == false) {
+					
+					// the database was removed or renamed before it became stable
+					iterator.remove();
+					signatures.remove(database);
+					
+				} else if(getSignature(database).equals(signatures.get(database)) == false) {
+					
+					// changed without an event being seen, for example on some network file systems
+					entry.setValue(now);
+					signatures.put(database, getSignature(database));
+					nextDeadline = Math.min(nextDeadline, now + quietPeriod);
+					
+				} else {
+					iterator.remove();
+					signatures.remove(database);
+					return database;
+				}
+			}
+			
+			// wait for changes until the next database could become stable
+			WatchKey key;
+			
+			if(nextDeadline == Long.MAX_VALUE) {
+				key = watchService.take();
+			} else {
+				key = watchService.poll(Math.max(1, nextDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			
+			while(key != null) {
+				processEvents(key);
+				key = watchService.poll();
+			}
+		}
+	}
+	
+	/**
+	 * stop watching the dataset
+	 *
+	 * @throws IOException if something bad happens
+	 */
+	public void close() throws IOException {
+		watchService.close();
+		directories.clear();
+		changed.clear();
+		signatures.clear();
+	}
+	
+	// note the databases affected by the events for a directory
+	private void processEvents(WatchKey key) throws IOException {
+		
+		File directory = directories.get(key);
+		
+		for(WatchEvent<?> event : key.pollEvents()) {
+			
+			// events were lost, so treat every database as changed
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				for(File watched : new ArrayList<File>(directories.values())) {
+					noteChange(new File(watched, fileName));
+				}
+				
+				continue;
+			}
+			
+			if(directory == null) {
+				continue;
+			}
+			
+			File file = new File(directory, ((Path) event.context()).toString());
+			
+			if(file.isDirectory() == true) {
+				if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isHidden() == false) {
+					register(file, true);
+				}
+			} else if(file.getName().equals(fileName) == true || file.getName().startsWith(fileName + "-") == true) {
+				
+				// a change to the journal or write ahead log is a change to the database
+				noteChange(new File(directory, fileName));
+			}
+		}
+		
+		if(key.reset() == false) {
+			directories.remove(key);
+		}
+	}
+	
+	// watch a directory and all of the directories inside it
+	private void register(File directory, boolean isNew) throws IOException {
+		
+		WatchKey key = directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, directory);
+		
+		// a database copied into a new directory may already be complete before the directory is watched
+		if(isNew == true) {
+			noteChange(new File(directory, fileName));
+		}
+		
+		File[] children = directory.listFiles();
+		
+		if(children != null) {
+			for(File child : children) {
+				if(child.isDirectory() == true && child.isHidden() == false) {
+					register(child, isNew);
+				}
+			}
+		}
+	}
+	
+	// record a change to a database
+	private void noteChange(File database) {
+		
+		if(database.isFile() == false) {
+			return;
+		}
+		
+		changed.remove(database);
+		changed.put(database, System.currentTimeMillis());
+		signatures.put(database, getSignature(database));
+	}
+	
+	// the size and modification time of a file
+	private static String getSignature(File file) {
+		return file.length() + ":" + file.lastModified();
+	}
+}
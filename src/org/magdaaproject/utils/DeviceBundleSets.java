@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * an in memory representation of which bundles are stored on which devices
+ *
+ * each file id is mapped to a dense integer, and the bundles held by each device
+ * are stored as a bitset over those integers so that set operations between
+ * devices can be undertaken without further queries
+ */
+public class DeviceBundleSets {
+	
+	/*
+	 * private class level variables
+	 */
+	private ArrayList<String> deviceIds = new ArrayList<String>();
+	private ArrayList<long[]> deviceBits = new ArrayList<long[]>();
+	private int bundleCount = 0;
+	private long rowCount = 0;
+	
+	/**
+	 * load the bundle sets for each device from the specified table
+	 *
+	 * @param config a Configuration object with details about the database
+	 * @param connection a valid connection to the database
+	 * @param tableName the name of the table for the deployment
+	 * @return the loaded bundle sets
+	 * @throws SQLException if something bad happens
+	 */
+	public static DeviceBundleSets load(Configuration config, Connection connection, String tableName) throws SQLException {
+		
+		if(connection == null) {
+			throw new IllegalArgumentException("the connection parameter is required");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		DeviceBundleSets sets = new DeviceBundleSets();
+		
+		HashMap<String, Integer> devices = new HashMap<String, Integer>();
+		HashMap<String, Integer> files = new HashMap<String, Integer>();
+		
+		Statement statement = DatabaseUtils.createStreamingStatement(config, connection);
+		ResultSet resultSet = null;
+		
+		try {
+			resultSet = statement.executeQuery("SELECT tablet_id, file_id FROM " + tableName);
+			
+			String tabletId;
+			String fileId;
+			Integer device;
+			Integer file;
+			
+			while(resultSet.next() == true) {
+				sets.rowCount++;
+				
+				tabletId = resultSet.getString(1);
+				fileId = resultSet.getString(2);
+				
+				device = devices.get(tabletId);
+				
+				if(device == null) {
+					device = sets.deviceIds.size();
+					devices.put(tabletId, device);
+					sets.deviceIds.add(tabletId);
+					sets.deviceBits.add(new long[64]);
+				}
+				
+				file = files.get(fileId);
+				
+				if(file == null) {
+					file = sets.bundleCount++;
+					files.put(fileId, file);
+				}
+				
+				sets.setBit(device, file);
+			}
+		} finally {
+			if(resultSet != null) {
+				resultSet.close();
+			}
+			statement.close();
+		}
+		
+		// trim the bitsets to a common length
+		int words = (sets.bundleCount + 63) >>> 6;
+		
+		for(int i = 0; i < sets.deviceBits.size(); i++) {
+			sets.deviceBits.set(i, Arrays.copyOf(sets.deviceBits.get(i), words));
+		}
+		
+		return sets;
+	}
+	
+	// set the bit for a file on a device, growing the bitset as required
+	private void setBit(int device, int file) {
+		
+		long[] bits = deviceBits.get(device);
+		int word = file >>> 6;
+		
+		if(word >= bits.length) {
+			bits = Arrays.copyOf(bits, Math.max(bits.length * 2, word + 1));
+			deviceBits.set(device, bits);
+		}
+		
+		bits[word] |= 1L << file;
+	}
+	
+	/**
+	 * return the number of devices
+	 *
+	 * @return the number of devices
+	 */
+	public int getDeviceCount() {
+		return deviceIds.size();
+	}
+	
+	/**
+	 * return the id of a device
+	 *
+	 * @param device the index of the device
+	 * @return the tablet id of the device
+	 */
+	public String getDeviceId(int device) {
+		return deviceIds.get(device);
+	}
+	
+	/**
+	 * return the number of rows read from the table
+	 *
+	 * @return the number of rows read
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * return the number of unique bundles across all devices
+	 *
+	 * @return the number of unique bundles
+	 */
+	public int getBundleCount() {
+		return bundleCount;
+	}
+	
+	/**
+	 * return the bitset of bundles held by a device
+	 *
+	 * all bitsets have the same length, the array must not be modified
+	 *
+	 * @param device the index of the device
+	 * @return the bitset of bundles held by the device
+	 */
+	public long[] getBundles(int device) {
+		return deviceBits.get(device);
+	}
+	
+	/**
+	 * return the number of unique bundles held by a device
+	 *
+	 * @param device the index of the device
+	 * @return the number of bundles held by the device
+	 */
+	public int getBundleCount(int device) {
+		
+		long[] bits = deviceBits.get(device);
+		int count = 0;
+		
+		for(int i = 0; i < bits.length; i++) {
+			count += Long.bitCount(bits[i]);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * return the number of bundles held by both of two devices
+	 *
+	 * @param deviceA the index of the first device
+	 * @param deviceB the index of the second device
+	 * @return the number of bundles held by both devices
+	 */
+	public int getSharedBundleCount(int deviceA, int deviceB) {
+		
+		long[] bitsA = deviceBits.get(deviceA);
+		long[] bitsB = deviceBits.get(deviceB);
+		int count = 0;
+		
+		for(int i = 0; i < bitsA.length; i++) {
+			count += Long.bitCount(bitsA[i] & bitsB[i]);
+		}
+		
+		return count;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * write a directed graph of devices to a file one node or edge at a time,
+ * so that graphs of any size can be written in constant memory
+ *
+ * all nodes must be written before the first edge, the format of the file is
+ * determined by the extension of the file name, a trailing .gz extension
+ * causes the file to be compressed
+ */
+public abstract class GraphWriter {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * list of supported file name extensions, excluding the .gz suffix
+	 */
+	public static final String[] EXTENSIONS = {".dot", ".gv", ".graphml", ".gexf"};
+	
+	/*
+	 * protected class level variables
+	 */
+	protected Writer writer;
+	
+	private boolean edgesStarted = false;
+	
+	/**
+	 * open a graph writer for the specified file
+	 *
+	 * @param outputFile the file to write
+	 * @return a graph writer of the format matching the file name extension
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static GraphWriter open(File outputFile) throws IOException {
+		
+		if(outputFile == null) {
+			throw new IllegalArgumentException("the output file is required");
+		}
+		
+		String name = outputFile.getName().toLowerCase();
+		boolean compress = false;
+		
+		if(name.endsWith(".gz") == true) {
+			compress = true;
+			name = name.substring(0, name.length() - 3);
+		}
+		
+		GraphWriter graphWriter;
+		
+		if(name.endsWith(".graphml") == true) {
+			graphWriter = new GraphmlWriter();
+		} else if(name.endsWith(".gexf") == true) {
+			graphWriter = new GexfWriter();
+		} else if(name.endsWith(".dot") == true || name.endsWith(".gv") == true) {
+			graphWriter = new DotWriter();
+		} else {
+			throw new IllegalArgumentException("unrecognised graph file format, expected one of .dot, .gv, .graphml or .gexf");
+		}
+		
+		OutputStream stream = new BufferedOutputStream(new FileOutputStream(outputFile), 65536);
+		
+		if(compress == true) {
+			stream = new GZIPOutputStream(stream, 65536);
+		}
+		
+		graphWriter.writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 65536);
+		graphWriter.startGraph();
+		
+		return graphWriter;
+	}
+	
+	/**
+	 * check to see if a file name has a supported graph file extension
+	 *
+	 * @param outputFile the file to check
+	 * @return true if the file name is supported
+	 */
+	public static boolean isSupported(File outputFile) {
+		
+		String name = outputFile.getName().toLowerCase();
+		
+		if(name.endsWith(".gz") == true) {
+			name = name.substring(0, name.length() - 3);
+		}
+		
+		for(String extension : EXTENSIONS) {
+			if(name.endsWith(extension) == true) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * write a node representing a device
+	 *
+	 * @param id the id of the device
+	 * @param originated the number of bundles originated by the device
+	 * @throws IOException if something bad happens
+	 */
+	public void writeNode(String id, long originated) throws IOException {
+		
+		if(edgesStarted == true) {
+			throw new IllegalStateException("all nodes must be written before the first edge");
+		}
+		
+		doWriteNode(id, originated);
+	}
+	
+	/**
+	 * write an edge between two devices
+	 *
+	 * @param source the id of the sending device
+	 * @param target the id of the receiving device
+	 * @param weight the number of bundles along the edge
+	 * @param fileId the id of the bundle, or null for an edge aggregating many bundles
+	 * @param time the insert time of the bundle on the receiving device, ignored if fileId is null
+	 * @throws IOException if something bad happens
+	 */
+	public void writeEdge(String source, String target, long weight, String fileId, long time) throws IOException {
+		
+		if(edgesStarted == false) {
+			startEdges();
+			edgesStarted = true;
+		}
+		
+		doWriteEdge(source, target, weight, fileId, time);
+	}
+	
+	/**
+	 * finish the graph and close the file
+	 *
+	 * @throws IOException if something bad happens
+	 */
+	public void close() throws IOException {
+		
+		if(edgesStarted == false) {
+			startEdges();
+			edgesStarted = true;
+		}
+		
+		finishGraph();
+		writer.close();
+	}
+	
+	/*
+	 * format specific methods
+	 */
+	protected abstract void startGraph() throws IOException;
+	
+	protected abstract void doWriteNode(String id, long originated) throws IOException;
+	
+	protected abstract void startEdges() throws IOException;
+	
+	protected abstract void doWriteEdge(String source, String target, long weight, String fileId, long time) throws IOException;
+	
+	protected abstract void finishGraph() throws IOException;
+	
+	// escape a value for use in an xml attribute
+	protected static String xml(String value) {
+		return StringEscapeUtils.escapeXml(value);
+	}
+	
+	/*
+	 * graphviz dot format
+	 */
+	private static class DotWriter extends GraphWriter {
+		
+		protected void startGraph() throws IOException {
+			writer.write("digraph magdaa_graph {\n");
+			writer.write("\t node [color=lightblue2, style=filled];\n");
+		}
+		
+		protected void doWriteNode(String id, long originated) throws IOException {
+			writer.write("\t \"" + dot(id) + "\" [originated=" + originated + "];\n");
+		}
+		
+		protected void startEdges() throws IOException {
+			// nothing to do
+		}
+		
+		protected void doWriteEdge(String source, String target, long weight, String fileId, long time) throws IOException {
+			writer.write("\t \"" + dot(source) + "\" -> \"" + dot(target) + "\" [weight=" + weight);
+			
+			if(fileId == null) {
+				writer.write(", label=\"" + weight + "\"];\n");
+			} else {
+				writer.write(", file_id=\"" + dot(fileId) + "\", time=" + time + "];\n");
+			}
+		}
+		
+		protected void finishGraph() throws IOException {
+			writer.write("}\n");
+		}
+		
+		private static String dot(String value) {
+			return value.replace("\\", "\\\\").replace("\"", "\\\"");
+		}
+	}
+	
+	/*
+	 * graphml format
+	 */
+	private static class GraphmlWriter extends GraphWriter {
+		
+		protected void startGraph() throws IOException {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+			writer.write("\t<key id=\"originated\" for=\"node\" attr.name=\"originated\" attr.type=\"long\"/>\n");
+			writer.write("\t<key id=\"weight\" for=\"edge\" attr.name=\"weight\" attr.type=\"long\"/>\n");
+			writer.write("\t<key id=\"file_id\" for=\"edge\" attr.name=\"file_id\" attr.type=\"string\"/>\n");
+			writer.write("\t<key id=\"time\" for=\"edge\" attr.name=\"time\" attr.type=\"long\"/>\n");
+			writer.write("\t<graph id=\"magdaa_graph\" edgedefault=\"directed\">\n");
+		}
+		
+		protected void doWriteNode(String id, long originated) throws IOException {
+			writer.write("\t\t<node id=\"" + xml(id) + "\"><data key=\"originated\">" + originated + "</data></node>\n");
+		}
+		
+		protected void startEdges() throws IOException {
+			// nothing to do
+		}
+		
+		protected void doWriteEdge(String source, String target, long weight, String fileId, long time) throws IOException {
+			writer.write("\t\t<edge source=\"" + xml(source) + "\" target=\"" + xml(target) + "\"><data key=\"weight\">" + weight + "</data>");
+			
+			if(fileId != null) {
+				writer.write("<data key=\"file_id\">" + xml(fileId) + "</data><data key=\"time\">" + time + "</data>");
+			}
+			
+			writer.write("</edge>\n");
+		}
+		
+		protected void finishGraph() throws IOException {
+			writer.write("\t</graph>\n");
+			writer.write("</graphml>\n");
+		}
+	}
+	
+	/*
+	 * gexf format, as used by Gephi
+	 */
+	private static class GexfWriter extends GraphWriter {
+		
+		private long edgeId = 0;
+		
+		protected void startGraph() throws IOException {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<gexf xmlns=\"http://www.gexf.net/1.2draft\" version=\"1.2\">\n");
+			writer.write("\t<graph defaultedgetype=\"directed\" mode=\"dynamic\" timeformat=\"double\">\n");
+			writer.write("\t\t<attributes class=\"node\">\n");
+			writer.write("\t\t\t<attribute id=\"originated\" title=\"originated\" type=\"long\"/>\n");
+			writer.write("\t\t</attributes>\n");
+			writer.write("\t\t<attributes class=\"edge\">\n");
+			writer.write("\t\t\t<attribute id=\"file_id\" title=\"file_id\" type=\"string\"/>\n");
+			writer.write("\t\t</attributes>\n");
+			writer.write("\t\t<nodes>\n");
+		}
+		
+		protected void doWriteNode(String id, long originated) throws IOException {
+			writer.write("\t\t\t<node id=\"" + xml(id) + "\" label=\"" + xml(id) + "\"><attvalues><attvalue for=\"originated\" value=\"" + originated + "\"/></attvalues></node>\n");
+		}
+		
+		protected void startEdges() throws IOException {
+			writer.write("\t\t</nodes>\n");
+			writer.write("\t\t<edges>\n");
+		}
+		
+		protected void doWriteEdge(String source, String target, long weight, String fileId, long time) throws IOException {
+			writer.write("\t\t\t<edge id=\"" + (edgeId++) + "\" source=\"" + xml(source) + "\" target=\"" + xml(target) + "\" weight=\"" + weight + "\"");
+			
+			if(fileId == null) {
+				writer.write("/>\n");
+			} else {
+				writer.write(" start=\"" + time + "\"><attvalues><attvalue for=\"file_id\" value=\"" + xml(fileId) + "\"/></attvalues></edge>\n");
+			}
+		}
+		
+		protected void finishGraph() throws IOException {
+			writer.write("\t\t</edges>\n");
+			writer.write("\t</graph>\n");
+			writer.write("</gexf>\n");
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+/**
+ * estimate the number of distinct values in a stream using a fixed amount
+ * of memory, based on the HyperLogLog algorithm of Flajolet et al.
+ *
+ * sketches with the same precision can be merged, the result being the
+ * sketch of the union of the two streams
+ */
+public class HyperLogLog {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default precision, using 16384 registers for a standard error of less than 1%
+	 */
+	public static final int DEFAULT_PRECISION = 14;
+	
+	/*
+	 * private class level variables
+	 */
+	private int precision;
+	private byte[] registers;
+	
+	/**
+	 * create a sketch with the default precision
+	 */
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+	
+	/**
+	 * create a sketch
+	 *
+	 * @param precision the number of bits used to select a register, between 4 and 18
+	 */
+	public HyperLogLog(int precision) {
+		
+		if(precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("the precision must be between 4 and 18");
+		}
+		
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+	
+	/**
+	 * add a value to the sketch
+	 *
+	 * @param value the value to add, null values are ignored
+	 */
+	public void offer(String value) {
+		
+		if(value == null) {
+			return;
+		}
+		
+		long hash = hash(value);
+		
+		int index = (int) (hash >>> (64 - precision));
+		
+		// the position of the first set bit in the remaining bits
+		long remaining = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+		
+		if(rank > registers[index]) {
+			registers[index] = rank;
+		}
+	}
+	
+	/**
+	 * add the values in another sketch to this sketch
+	 *
+	 * @param other the sketch to merge, which must have the same precision
+	 */
+	public void merge(HyperLogLog other) {
+		
+		if(other.precision != precision) {
+			throw new IllegalArgumentException("only sketches with the same precision can be merged");
+		}
+		
+		for(int i = 0; i < registers.length; i++) {
+			if(other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+	
+	/**
+	 * return the estimated number of distinct values
+	 *
+	 * @return the estimated number of distinct values
+	 */
+	public long cardinality() {
+		
+		int count = registers.length;
+		
+		double sum = 0;
+		int zeros = 0;
+		
+		for(int i = 0; i < count; i++) {
+			sum += 1.0 / (1L << registers[i]);
+			
+			if(registers[i] == 0) {
+				zeros++;
+			}
+		}
+		
+		double alpha = 0.7213 / (1 + 1.079 / count);
+		double estimate = alpha * count * count / sum;
+		
+		// use linear counting for small cardinalities
+		if(estimate <= 2.5 * count && zeros > 0) {
+			estimate = count * Math.log((double) count / zeros);
+		}
+		
+		return Math.round(estimate);
+	}
+	
+	/**
+	 * return the standard error of the estimate, relative to the true number of distinct values
+	 *
+	 * @return the relative standard error
+	 */
+	public double getRelativeError() {
+		return 1.04 / Math.sqrt(registers.length);
+	}
+	
+	// 64 bit hash of a string, FNV-1a followed by the MurmurHash3 finaliser to spread the bits
+	private static long hash(String value) {
+		
+		long hash = 0xcbf29ce484222325L;
+		
+		for(int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		
+		return hash;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * claim devices for a worker using a lease table in the database, so that
+ * several processes, on one or many hosts, can share the work of importing a
+ * dataset
+ *
+ * a lease is held until it is released or it expires, leases are renewed in
+ * the background while the worker is running, so the leases of a worker that
+ * has crashed expire and the devices can be claimed by another worker, times
+ * are taken from the UNIX_TIMESTAMP() function of the database, which on a
+ * MySQL server uses the clock of the server so the clocks of the hosts don't
+ * matter, while an embedded SQLite database uses the clock of each worker, so
+ * the workers must run on the host with the database file
+ */
+public class LeaseTable {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default length of a lease, in seconds
+	 */
+	public static final int DEFAULT_LEASE_DURATION = 300;
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private String workerId;
+	private int leaseDuration;
+	
+	private Connection connection = null;
+	private ScheduledExecutorService heartbeat = null;
+	
+	// the devices currently claimed by this worker
+	private HashSet<String> claimed = new HashSet<String>();
+	
+	/**
+	 * prepare to claim devices using a lease table
+	 *
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the lease table
+	 * @param leaseDuration the length of a lease, in seconds
+	 */
+	public LeaseTable(Configuration config, String tableName, int leaseDuration) {
+		
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(leaseDuration < 3) {
+			throw new IllegalArgumentException("the lease duration must be at least 3 seconds");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.leaseDuration = leaseDuration;
+		
+		// the name of the runtime is the process id and host name
+		workerId = ManagementFactory.getRuntimeMXBean().getName();
+	}
+	
+	/**
+	 * create the lease table if required and start renewing the leases held by this worker
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void open() throws SQLException {
+		
+		connection = DatabaseUtils.getConnection(config);
+		
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " ("
+				+ "tablet_id VARCHAR(10) NOT NULL, "
+				+ "worker VARCHAR(255) NOT NULL, "
+				+ "lease_expiry BIGINT NOT NULL, "
+				+ "PRIMARY KEY(tablet_id))" + DatabaseUtils.getStorageBackend(config).getCharacterSet("utf8"));
+		statement.close();
+		
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lease-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// renew well before the leases expire, using a connection of its own
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				renew();
+			}
+		}, leaseDuration / 3, leaseDuration / 3, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * claim a device, if it is not already claimed by another worker or the
+	 * lease held by the other worker has expired
+	 *
+	 * @param tabletId the id of the device
+	 * @return true if the device was claimed by this worker
+	 * @throws SQLException if something bad happens
+	 */
+	public boolean claim(String tabletId) throws SQLException {
+		
+		synchronized(claimed) {
+			return claimDevice(tabletId);
+		}
+	}
+	
+	// claim a device while holding the lock on the claimed devices
+	private boolean claimDevice(String tabletId) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement(DatabaseUtils.getStorageBackend(config).getInsertIgnore() + " " + tableName + " (tablet_id, worker, lease_expiry) VALUES (?, ?, UNIX_TIMESTAMP() + ?)");
+		statement.setString(1, tabletId);
+		statement.setString(2, workerId);
+		statement.setInt(3, leaseDuration);
+		
+		boolean result = statement.executeUpdate() == 1;
+		statement.close();
+		
+		// take over an expired lease
+		if(result == false) {
+			statement = connection.prepareStatement("UPDATE " + tableName + " SET worker = ?, lease_expiry = UNIX_TIMESTAMP() + ? WHERE tablet_id = ? AND lease_expiry < UNIX_TIMESTAMP()");
+			statement.setString(1, workerId);
+			statement.setInt(2, leaseDuration);
+			statement.setString(3, tabletId);
+			
+			result = statement.executeUpdate() == 1;
+			statement.close();
+		}
+		
+		if(result == true) {
+			claimed.add(tabletId);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * release a device claimed by this worker
+	 *
+	 * @param tabletId the id of the device
+	 * @throws SQLException if something bad happens
+	 */
+	public void release(String tabletId) throws SQLException {
+		
+		synchronized(claimed) {
+			claimed.remove(tabletId);
+			
+			PreparedStatement statement = connection.prepareStatement("DELETE FROM " + tableName + " WHERE tablet_id = ? AND worker = ?");
+			statement.setString(1, tabletId);
+			statement.setString(2, workerId);
+			statement.executeUpdate();
+			statement.close();
+		}
+	}
+	
+	/**
+	 * stop renewing leases, release any devices still claimed and close the connection
+	 *
+	 * @throws SQLException if something bad happens
+	 */
+	public void close() throws SQLException {
+		
+		if(heartbeat != null) {
+			heartbeat.shutdownNow();
+		}
+		
+		if(connection != null) {
+			try {
+				PreparedStatement statement = connection.prepareStatement("DELETE FROM " + tableName + " WHERE worker = ?");
+				statement.setString(1, workerId);
+				statement.executeUpdate();
+				statement.close();
+			} finally {
+				connection.close();
+				connection = null;
+			}
+		}
+		
+		synchronized(claimed) {
+			claimed.clear();
+		}
+	}
+	
+	/**
+	 * return the id of this worker
+	 *
+	 * @return the id of the worker
+	 */
+	public String getWorkerId() {
+		return workerId;
+	}
+	
+	/**
+	 * return the length of a lease
+	 *
+	 * @return the length of a lease, in seconds
+	 */
+	public int getLeaseDuration() {
+		return leaseDuration;
+	}
+	
+	// extend the leases held by this worker, warning if any have been lost
+	private void renew() {
+		
+		// hold the lock so that devices aren't claimed or released while the leases are counted
+		synchronized(claimed) {
+			
+			if(claimed.size() == 0) {
+				return;
+			}
+			
+			Connection heartbeatConnection = null;
+			
+			try {
+				heartbeatConnection = DatabaseUtils.getConnection(config);
+				
+				PreparedStatement statement = heartbeatConnection.prepareStatement("UPDATE " + tableName + " SET lease_expiry = UNIX_TIMESTAMP() + ? WHERE worker = ?");
+				statement.setInt(1, leaseDuration);
+				statement.setString(2, workerId);
+				
+				if(statement.executeUpdate() < claimed.size()) {
+					System.err.println("WARNING: a lease held by '" + workerId + "' expired and was claimed by another worker");
+				}
+				
+				statement.close();
+				
+			} catch (SQLException e) {
+				System.err.println("WARNING: unable to renew the leases held by '" + workerId + "': " + e.getMessage());
+			} finally {
+				try {
+					if(heartbeatConnection != null) {
+						heartbeatConnection.close();
+					}
+				} catch (SQLException e) {
+					// the leases have been renewed so the failure to close is of no consequence
+				}
+			}
+		}
+	}
+}
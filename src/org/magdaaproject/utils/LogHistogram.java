@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.util.Arrays;
+
+/**
+ * a compact histogram of non-negative values with logarithmically sized buckets
+ *
+ * values below 32 are counted exactly, larger values are counted in one of 32
+ * buckets for each power of two, so quantiles are accurate to within a relative
+ * error of 1/32, histograms can be merged to combine partial results
+ */
+public class LogHistogram {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/*
+	 * private class level variables
+	 */
+	private long[] counts = new long[SUB_BUCKETS];
+	private long count = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+	
+	/**
+	 * return the maximum relative error of a value returned by getValueAtQuantile
+	 *
+	 * @return the maximum relative error
+	 */
+	public static double getRelativeError() {
+		return 1.0 / SUB_BUCKETS;
+	}
+	
+	/**
+	 * record a value
+	 *
+	 * @param value the value to record, negative values are recorded as zero
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+	
+	/**
+	 * record a value a number of times
+	 *
+	 * @param value the value to record, negative values are recorded as zero
+	 * @param times the number of times to record the value
+	 */
+	public void record(long value, long times) {
+		
+		if(value < 0) {
+			value = 0;
+		}
+		
+		int index = getIndex(value);
+		
+		if(index >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length + SUB_BUCKETS));
+		}
+		
+		counts[index] += times;
+		count += times;
+		
+		if(value < min) {
+			min = value;
+		}
+		
+		if(value > max) {
+			max = value;
+		}
+	}
+	
+	/**
+	 * add the values recorded in another histogram to this histogram
+	 *
+	 * @param other the histogram to merge
+	 */
+	public void merge(LogHistogram other) {
+		
+		if(other.count == 0) {
+			return;
+		}
+		
+		if(other.counts.length > counts.length) {
+			counts = Arrays.copyOf(counts, other.counts.length);
+		}
+		
+		for(int i = 0; i < other.counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		
+		count += other.count;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+	
+	/**
+	 * return the number of recorded values
+	 *
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	/**
+	 * return the smallest recorded value
+	 *
+	 * @return the smallest value, or zero if no values have been recorded
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+	
+	/**
+	 * return the largest recorded value
+	 *
+	 * @return the largest value, or zero if no values have been recorded
+	 */
+	public long getMax() {
+		return count == 0 ? 0 : max;
+	}
+	
+	/**
+	 * return an approximation of the value at the specified quantile
+	 *
+	 * @param quantile the quantile, between 0 and 1, for example 0.5 for the median
+	 * @return the approximate value, or zero if no values have been recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		
+		if(quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("the quantile must be between 0 and 1");
+		}
+		
+		if(count == 0) {
+			return 0;
+		}
+		
+		// the rank of the value, counting from one
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		
+		for(int i = 0; i < counts.length; i++) {
+			
+			seen += counts[i];
+			
+			if(seen >= rank) {
+				// use the middle of the bucket, limited to the recorded range
+				long lower = getLowerBound(i);
+				long value = lower + (getLowerBound(i + 1) - lower) / 2;
+				
+				return Math.max(min, Math.min(max, value));
+			}
+		}
+		
+		return max;
+	}
+	
+	// determine the bucket for a value
+	private static int getIndex(long value) {
+		
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+	
+	// determine the smallest value counted in a bucket
+	private static long getLowerBound(int index) {
+		
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		
+		int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		
+		if(exponent >= 63) {
+			return Long.MAX_VALUE;
+		}
+		
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+
+/**
+ * store the data of a deployment in a MySQL database, the connection details
+ * are set by the db.host, db.database, db.user and db.password properties
+ */
+public class MysqlStorageBackend implements StorageBackend {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String[] REQUIRED_PROPERTIES = {"db.host", "db.database", "db.user", "db.password"};
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	
+	/**
+	 * create the backend
+	 *
+	 * @param config a Configuration object with database connection details
+	 */
+	public MysqlStorageBackend(Configuration config) {
+		
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		this.config = config;
+	}
+	
+	@Override
+	public String[] getRequiredProperties() {
+		return REQUIRED_PROPERTIES.clone();
+	}
+	
+	@Override
+	public Connection getConnection() throws SQLException {
+		
+		// get a connection to the data
+		MysqlDataSource datasource = new MysqlDataSource();
+		
+		datasource.setServerName(config.getString("db.host"));
+		datasource.setDatabaseName(config.getString("db.database"));
+		datasource.setUser(config.getString("db.user"));
+		datasource.setPassword(config.getString("db.password"));
+		
+		// send batches of inserts as multi row statements
+		datasource.setRewriteBatchedStatements(true);
+		
+		return datasource.getConnection();
+	}
+	
+	@Override
+	public String getIdentityColumn(String columnName) {
+		return columnName + " BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY";
+	}
+	
+	@Override
+	public String getCharacterSet(String characterSet) {
+		return " CHARACTER SET '" + characterSet + "'";
+	}
+	
+	@Override
+	public String getInsertIgnore() {
+		return "INSERT IGNORE INTO";
+	}
+	
+	@Override
+	public Statement createScanStatement(Connection connection) throws SQLException {
+		
+		Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		
+		// the MySQL driver only streams results when the fetch size is set to this value
+		statement.setFetchSize(Integer.MIN_VALUE);
+		
+		return statement;
+	}
+	
+	@Override
+	public PreparedStatement prepareScanStatement(Connection connection, String sql) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setFetchSize(Integer.MIN_VALUE);
+		
+		return statement;
+	}
+	
+	@Override
+	public String getPlanQuery(String sql) {
+		return "EXPLAIN " + sql;
+	}
+}
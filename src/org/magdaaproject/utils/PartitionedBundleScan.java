@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * aggregate the copies of every bundle in a table in parallel, with the
+ * bundles divided into partitions by a hash of the file id
+ *
+ * each partition is read using its own connection and aggregated on a fork
+ * join pool, the partial results are then merged in pairs, every copy is
+ * included, including those without an insert time
+ *
+ * the memory used to group the copies of each bundle together is limited by
+ * the analysis.memory property, in megabytes, shared between the partitions,
+ * copies beyond the limit are written to the directory specified by the
+ * analysis.temp.dir property
+ */
+public class PartitionedBundleScan {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default memory budget for grouping copies, in megabytes
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 256;
+	
+	/**
+	 * aggregates the copies of the bundles in a partition into a result
+	 *
+	 * @param <R> the type of the result
+	 */
+	public interface Aggregator<R> {
+		
+		/**
+		 * create an empty result for a partition
+		 *
+		 * @return the empty result
+		 * @throws Exception if something bad happens
+		 */
+		public R createResult() throws Exception;
+		
+		/**
+		 * add the copies of a single bundle to the result for a partition, bundles
+		 * are added in file id order
+		 *
+		 * the copies object is reused for the next bundle once this method returns
+		 *
+		 * @param result the result for the partition
+		 * @param copies the copies of the bundle, ordered by insert time
+		 * @throws Exception if something bad happens
+		 */
+		public void addBundle(R result, BundleCopies copies) throws Exception;
+		
+		/**
+		 * complete the result for a partition once all of its bundles have been added
+		 *
+		 * @param result the result for the partition
+		 * @throws Exception if something bad happens
+		 */
+		public void finishPartition(R result) throws Exception;
+		
+		/**
+		 * merge the results of two partitions
+		 *
+		 * @param first the result of the partition with the lower number
+		 * @param second the result of the partition with the higher number
+		 * @return the merged result
+		 * @throws Exception if something bad happens
+		 */
+		public R merge(R first, R second) throws Exception;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	private String tableName;
+	private String timeColumn;
+	private int partitions;
+	private long memoryBudget;
+	private File tempDirectory;
+	
+	private HashMap<String, Integer> devices = new HashMap<String, Integer>();
+	private ArrayList<String> deviceIds = new ArrayList<String>();
+	
+	/**
+	 * prepare a scan of a table
+	 *
+	 * @param config a Configuration object with details about the MySQL database
+	 * @param tableName the name of the table to scan
+	 * @param timeColumn the name of the column containing the insert times
+	 * @param partitions the number of partitions, each read by a separate thread
+	 */
+	public PartitionedBundleScan(Configuration config, String tableName, String timeColumn, int partitions) {
+		
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		if(StringUtils.isEmpty(tableName) == true) {
+			throw new IllegalArgumentException("the table name is required");
+		}
+		
+		if(StringUtils.isEmpty(timeColumn) == true) {
+			throw new IllegalArgumentException("the time column is required");
+		}
+		
+		if(partitions < 1) {
+			throw new IllegalArgumentException("the number of partitions must be at least 1");
+		}
+		
+		this.config = config;
+		this.tableName = tableName;
+		this.timeColumn = timeColumn;
+		this.partitions = partitions;
+		
+		memoryBudget = config.getLong("analysis.memory", DEFAULT_MEMORY_BUDGET) * 1024 * 1024;
+		
+		if(StringUtils.isEmpty(config.getString("analysis.temp.dir")) == false) {
+			tempDirectory = new File(config.getString("analysis.temp.dir"));
+		}
+	}
+	
+	/**
+	 * scan every partition and merge the results
+	 *
+	 * @param connection a valid connection to the database, used to load the list of devices
+	 * @param aggregator the aggregator used for every partition
+	 * @return the merged result
+	 * @throws SQLException if a database error occurs
+	 * @throws Exception if the aggregator throws an exception
+	 */
+	public <R> R scan(Connection connection, Aggregator<R> aggregator) throws Exception {
+		
+		if(aggregator == null) {
+			throw new IllegalArgumentException("the aggregator parameter is required");
+		}
+		
+		// load the devices first, so that every partition uses the same index for a device
+		loadDevices(connection);
+		
+		ForkJoinPool pool = new ForkJoinPool(partitions);
+		
+		try {
+			return pool.invoke(new PartitionTask<R>(aggregator, 0, partitions));
+		} catch (ScanException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	// load the list of devices in the table
+	private void loadDevices(Connection connection) throws SQLException {
+		
+		devices.clear();
+		deviceIds.clear();
+		
+		Statement statement = connection.createStatement();
+		ResultSet resultSet = statement.executeQuery("SELECT DISTINCT tablet_id FROM " + tableName + " ORDER BY tablet_id");
+		
+		while(resultSet.next() == true) {
+			devices.put(resultSet.getString(1), deviceIds.size());
+			deviceIds.add(resultSet.getString(1));
+		}
+		
+		resultSet.close();
+		statement.close();
+	}
+	
+	/*
+	 * read and aggregate a single partition using its own connection, the
+	 * copies are grouped into bundles in the jvm within the memory budget
+	 */
+	private <R> R scanPartition(final Aggregator<R> aggregator, int partition) throws Exception {
+		
+		StringBuilder sql = new StringBuilder();
+		
+		sql.append("SELECT file_id, tablet_id, " + timeColumn + ", file_size, origin FROM " + tableName);
+		
+		if(partitions > 1) {
+			sql.append(" WHERE CRC32(file_id) % " + partitions + " = " + partition);
+		}
+		
+		final R result = aggregator.createResult();
+		
+		SpillingBundleGrouper grouper = new SpillingBundleGrouper(Math.max(1, memoryBudget / partitions), tempDirectory);
+		
+		Connection connection = DatabaseUtils.getConnection(config);
+		
+		try {
+			Statement statement = DatabaseUtils.createStreamingStatement(config, connection);
+			ResultSet resultSet = statement.executeQuery(sql.toString());
+			
+			long time;
+			
+			while(resultSet.next() == true) {
+				
+				time = resultSet.getLong(3);
+				
+				if(resultSet.wasNull() == true) {
+					time = BundleCopies.UNKNOWN_TIME;
+				}
+				
+				grouper.add(resultSet.getString(1), devices.get(resultSet.getString(2)), time, DatabaseUtils.DATABASE_CONST_YES.equalsIgnoreCase(resultSet.getString(5)), resultSet.getLong(4));
+			}
+			
+			resultSet.close();
+			statement.close();
+		} catch (Exception e) {
+			grouper.close();
+			throw e;
+		} finally {
+			connection.close();
+		}
+		
+		// pass on each bundle in file id order
+		grouper.finish(new BundleCopyScanner.Handler() {
+			public void handleBundle(BundleCopies copies) throws Exception {
+				aggregator.addBundle(result, copies);
+			}
+		});
+		
+		aggregator.finishPartition(result);
+		
+		return result;
+	}
+	
+	/**
+	 * return the index of a device
+	 *
+	 * @param tabletId the id of the device
+	 * @return the index of the device, or -1 if the device is not in the table
+	 */
+	public int getDevice(String tabletId) {
+		
+		Integer device = devices.get(tabletId);
+		
+		if(device == null) {
+			return -1;
+		}
+		
+		return device;
+	}
+	
+	/**
+	 * return the number of devices in the table
+	 *
+	 * @return the number of devices
+	 */
+	public int getDeviceCount() {
+		return deviceIds.size();
+	}
+	
+	/**
+	 * return the id of a device
+	 *
+	 * @param device the index of the device
+	 * @return the tablet id of the device
+	 */
+	public String getDeviceId(int device) {
+		return deviceIds.get(device);
+	}
+	
+	/*
+	 * scan a range of partitions, splitting the range in two until a single partition remains
+	 */
+	private class PartitionTask<R> extends RecursiveTask<R> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Aggregator<R> aggregator;
+		private int first;
+		private int last;
+		
+		PartitionTask(Aggregator<R> aggregator, int first, int last) {
+			this.aggregator = aggregator;
+			this.first = first;
+			this.last = last;
+		}
+		
+		protected R compute() {
+			
+			try {
+				if(last - first == 1) {
+					return scanPartition(aggregator, first);
+				}
+				
+				int middle = (first + last) >>> 1;
+				
+				PartitionTask<R> lower = new PartitionTask<R>(aggregator, first, middle);
+				PartitionTask<R> upper = new PartitionTask<R>(aggregator, middle, last);
+				
+				upper.fork();
+				R lowerResult = lower.compute();
+				R upperResult = upper.join();
+				
+				return aggregator.merge(lowerResult, upperResult);
+				
+			} catch (ScanException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new ScanException(e);
+			}
+		}
+	}
+	
+	/*
+	 * carries a checked exception out of the fork join pool
+	 */
+	private static class ScanException extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ScanException(Exception cause) {
+			super(cause);
+		}
+		
+		public Exception getCause() {
+			return (Exception) super.getCause();
+		}
+	}
+}
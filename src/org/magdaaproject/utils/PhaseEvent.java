@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * a flight recorder event for a phase of a task, only used through TaskPhase
+ * so that the application still runs on a JVM without the flight recorder
+ */
+@Name("org.magdaaproject.analysis.rhizome.TaskPhase")
+@Label("Task Phase")
+@Category({"MaGDAA", "Rhizome Analysis"})
+@Description("a phase of a rhizome analysis task")
+@StackTrace(false)
+class PhaseEvent extends Event {
+	
+	@Label("Task")
+	String task;
+	
+	@Label("Phase")
+	String phase;
+	
+	@Label("Table")
+	String tableName;
+	
+	@Label("Device")
+	String deviceId;
+	
+	@Label("Rows")
+	@Description("the number of rows read or written, or of files found by a scan")
+	long rowCount;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.configuration.Configuration;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * open the rhizome database from a device for reading
+ *
+ * the database is never written so it is opened read only, and in exclusive
+ * locking mode so that the lock is taken once, rather than for every
+ * statement, and the page cache is kept between statements instead of being
+ * checked against the file each time
+ *
+ * the size of the page cache and of the memory mapped region are set by the
+ * rhizome.cache.size and rhizome.mmap.size properties, in megabytes, the memory
+ * mapped region is only used by versions of sqlite that support it
+ */
+public class RhizomeDatabase {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default size of the page cache, in megabytes
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+	
+	/**
+	 * the default size of the memory mapped region, in megabytes
+	 */
+	public static final int DEFAULT_MMAP_SIZE = 256;
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// number of seconds to wait for a lock held by another process
+	private static final int LOCK_TIMEOUT = 1;
+	
+	/**
+	 * open a rhizome database for reading, checking that it can be read
+	 *
+	 * @param config a Configuration object with preferences
+	 * @param databaseFile the rhizome database file
+	 * @return a read only connection to the database
+	 * @throws SQLException if the database is locked, corrupt or cannot be opened
+	 */
+	public static Connection getReadOnlyConnection(Configuration config, File databaseFile) throws SQLException {
+		
+		// check on the parameters
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		if(databaseFile == null) {
+			throw new IllegalArgumentException("the database file is required");
+		}
+		
+		if(databaseFile.isFile() == false || databaseFile.canRead() == false) {
+			throw new SQLException("unable to access the rhizome database '" + databaseFile.getAbsolutePath() + "'");
+		}
+		
+		SQLiteConfig sqliteConfig = new SQLiteConfig();
+		sqliteConfig.setReadOnly(true);
+		
+		Connection connection = sqliteConfig.createConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+		
+		try {
+			Statement statement = connection.createStatement();
+			
+			// the timeout applies to the connection, so that a locked database fails quickly
+			statement.setQueryTimeout(LOCK_TIMEOUT);
+			
+			// set here rather than in the sqlite config, as the driver rejects pragmas that return a value
+			statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+			statement.execute("PRAGMA temp_store = MEMORY");
+			
+			// reading the schema checks the header and takes the lock
+			statement.executeQuery("SELECT COUNT(*) FROM sqlite_master").close();
+			
+			ResultSet resultSet = statement.executeQuery("PRAGMA page_size");
+			resultSet.next();
+			long pageSize = resultSet.getLong(1);
+			resultSet.close();
+			
+			long cacheSize = config.getLong("rhizome.cache.size", DEFAULT_CACHE_SIZE) * 1024 * 1024;
+			statement.execute("PRAGMA cache_size = " + Math.max(1, cacheSize / pageSize));
+			
+			// ignored by versions of sqlite without memory mapped i/o
+			long mmapSize = config.getLong("rhizome.mmap.size", DEFAULT_MMAP_SIZE) * 1024 * 1024;
+			statement.execute("PRAGMA mmap_size = " + mmapSize);
+			
+			statement.close();
+			
+		} catch (SQLException e) {
+			connection.close();
+			throw new SQLException(describeError(databaseFile, e), e);
+		}
+		
+		return connection;
+	}
+	
+	// describe why a database could not be read
+	private static String describeError(File databaseFile, SQLException e) {
+		
+		String message = String.valueOf(e.getMessage()).toLowerCase();
+		
+		if(message.contains("locked") == true || message.contains("busy") == true) {
+			return "the rhizome database '" + databaseFile.getAbsolutePath() + "' is locked by another process";
+		}
+		
+		if(message.contains("not a database") == true || message.contains("malformed") == true || message.contains("corrupt") == true || message.contains("encrypted") == true) {
+			return "the rhizome database '" + databaseFile.getAbsolutePath() + "' is corrupt or is not a sqlite database";
+		}
+		
+		return "unable to read the rhizome database '" + databaseFile.getAbsolutePath() + "': " + e.getMessage();
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * group copies of bundles that arrive in any order into the copies of each
+ * bundle, using no more than a fixed amount of memory
+ *
+ * copies are held in memory until the memory budget is reached, at which
+ * point they are sorted and written to a temporary file as a run, the runs
+ * are then combined with a k-way merge, bundles are passed to the handler in
+ * file id order, ignoring case, with the copies of each bundle in insert time order
+ */
+public class SpillingBundleGrouper {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * comparator giving the order in which copies are passed to the handler
+	 */
+	public static final Comparator<Copy> COPY_ORDER = new Comparator<Copy>() {
+		public int compare(Copy a, Copy b) {
+			
+			// the same order as the case insensitive collation used by MySQL for the file id
+			int result = String.CASE_INSENSITIVE_ORDER.compare(a.fileId, b.fileId);
+			
+			if(result == 0) {
+				result = a.fileId.compareTo(b.fileId);
+			}
+			
+			if(result == 0) {
+				result = a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+			}
+			
+			return result;
+		}
+	};
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// approximate size of a copy in memory, excluding the characters of the file id
+	private static final long COPY_OVERHEAD = 96;
+	
+	private static final int BUFFER_SIZE = 65536;
+	
+	// the maximum number of runs read at once, limiting open files and buffer memory
+	private static final int MAX_MERGE_WIDTH = 64;
+	
+	/*
+	 * private class level variables
+	 */
+	private long memoryBudget;
+	private File tempDirectory;
+	
+	private ArrayList<Copy> copies = new ArrayList<Copy>();
+	private long memoryUsed = 0;
+	
+	private ArrayList<File> runs = new ArrayList<File>();
+	private ArrayList<Long> runSizes = new ArrayList<Long>();
+	
+	/**
+	 * create a grouper
+	 *
+	 * @param memoryBudget the approximate number of bytes of copies held in memory before a run is written
+	 * @param tempDirectory the directory for the runs, or null for the default temporary directory
+	 */
+	public SpillingBundleGrouper(long memoryBudget, File tempDirectory) {
+		
+		if(memoryBudget < 1) {
+			throw new IllegalArgumentException("the memory budget must be at least 1 byte");
+		}
+		
+		this.memoryBudget = memoryBudget;
+		this.tempDirectory = tempDirectory;
+	}
+	
+	/**
+	 * add a copy of a bundle
+	 *
+	 * @param fileId the id of the bundle
+	 * @param device the index of the device holding the copy
+	 * @param time the insert time of the copy, or BundleCopies.UNKNOWN_TIME if not known
+	 * @param isOrigin true if the device is the origin of the bundle
+	 * @param size the size of the copy
+	 * @throws IOException if a run cannot be written
+	 */
+	public void add(String fileId, int device, long time, boolean isOrigin, long size) throws IOException {
+		
+		copies.add(new Copy(fileId, device, time, isOrigin, size));
+		memoryUsed += COPY_OVERHEAD + 2 * fileId.length();
+		
+		if(memoryUsed >= memoryBudget) {
+			writeRun();
+		}
+	}
+	
+	/**
+	 * pass the copies of every bundle to a handler, and delete the runs
+	 *
+	 * @param handler the handler to receive the copies of each bundle
+	 * @throws IOException if a run cannot be read
+	 * @throws Exception if the handler throws an exception
+	 */
+	public void finish(BundleCopyScanner.Handler handler) throws Exception {
+		
+		BundleCopies bundle = new BundleCopies();
+		
+		try {
+			if(runs.size() == 0) {
+				
+				// everything fits in memory
+				Collections.sort(copies, COPY_ORDER);
+				
+				for(Copy copy : copies) {
+					group(bundle, copy, handler);
+				}
+				
+				copies.clear();
+				
+			} else {
+				
+				if(copies.size() > 0) {
+					writeRun();
+				}
+				
+				merge(bundle, handler);
+			}
+			
+			// pass on the final bundle
+			if(bundle.getCount() > 0) {
+				handler.handleBundle(bundle);
+			}
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * return the number of runs written to disk
+	 *
+	 * @return the number of runs
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+	
+	/**
+	 * discard any copies and delete the runs
+	 */
+	public void close() {
+		
+		copies.clear();
+		memoryUsed = 0;
+		
+		for(File run : runs) {
+			run.delete();
+		}
+		
+		runs.clear();
+		runSizes.clear();
+	}
+	
+	// add a copy to the current bundle, passing on the bundle when the file id changes
+	private void group(BundleCopies bundle, Copy copy, BundleCopyScanner.Handler handler) throws Exception {
+		
+		if(copy.fileId.equals(bundle.getFileId()) == false) {
+			
+			if(bundle.getCount() > 0) {
+				handler.handleBundle(bundle);
+			}
+			
+			bundle.reset(copy.fileId);
+		}
+		
+		bundle.add(copy.device, copy.time, copy.isOrigin, copy.size);
+	}
+	
+	// sort the copies in memory and write them to a new run
+	private void writeRun() throws IOException {
+		
+		Collections.sort(copies, COPY_ORDER);
+		
+		File run = File.createTempFile("bundle-run", ".bin", tempDirectory);
+		run.deleteOnExit();
+		
+		runs.add(run);
+		runSizes.add((long) copies.size());
+		
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+		
+		try {
+			for(Copy copy : copies) {
+				writeCopy(output, copy);
+			}
+		} finally {
+			output.close();
+		}
+		
+		copies.clear();
+		memoryUsed = 0;
+	}
+	
+	// merge the runs, combining them first if there are too many to read at once
+	private void merge(BundleCopies bundle, BundleCopyScanner.Handler handler) throws Exception {
+		
+		while(runs.size() > MAX_MERGE_WIDTH) {
+			
+			File run = File.createTempFile("bundle-run", ".bin", tempDirectory);
+			run.deleteOnExit();
+			
+			long size = 0;
+			
+			for(int i = 0; i < MAX_MERGE_WIDTH; i++) {
+				size += runSizes.get(i);
+			}
+			
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+			
+			try {
+				mergeRuns(MAX_MERGE_WIDTH, null, null, output);
+			} finally {
+				output.close();
+			}
+			
+			// replace the merged runs with the combined run
+			for(int i = 0; i < MAX_MERGE_WIDTH; i++) {
+				runs.remove(0).delete();
+				runSizes.remove(0);
+			}
+			
+			runs.add(run);
+			runSizes.add(size);
+		}
+		
+		mergeRuns(runs.size(), bundle, handler, null);
+	}
+	
+	// merge the first runs, each of which is already sorted, into the handler or a new run
+	private void mergeRuns(int count, BundleCopies bundle, BundleCopyScanner.Handler handler, DataOutputStream output) throws Exception {
+		
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(count, new Comparator<RunReader>() {
+			public int compare(RunReader a, RunReader b) {
+				return COPY_ORDER.compare(a.copy, b.copy);
+			}
+		});
+		
+		ArrayList<RunReader> readers = new ArrayList<RunReader>();
+		
+		try {
+			for(int i = 0; i < count; i++) {
+				
+				RunReader reader = new RunReader(runs.get(i), runSizes.get(i));
+				readers.add(reader);
+				
+				if(reader.next() == true) {
+					queue.add(reader);
+				}
+			}
+			
+			while(queue.isEmpty() == false) {
+				
+				RunReader reader = queue.poll();
+				
+				if(output == null) {
+					group(bundle, reader.copy, handler);
+				} else {
+					writeCopy(output, reader.copy);
+				}
+				
+				if(reader.next() == true) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			for(RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+	
+	// write a single copy to a run
+	private static void writeCopy(DataOutputStream output, Copy copy) throws IOException {
+		output.writeUTF(copy.fileId);
+		output.writeInt(copy.device);
+		output.writeLong(copy.time);
+		output.writeBoolean(copy.isOrigin);
+		output.writeLong(copy.size);
+	}
+	
+	/**
+	 * a single copy of a bundle
+	 */
+	public static class Copy {
+		
+		private String fileId;
+		private int device;
+		private long time;
+		private boolean isOrigin;
+		private long size;
+		
+		private Copy(String fileId, int device, long time, boolean isOrigin, long size) {
+			this.fileId = fileId;
+			this.device = device;
+			this.time = time;
+			this.isOrigin = isOrigin;
+			this.size = size;
+		}
+	}
+	
+	/*
+	 * reads the copies in a run one at a time
+	 */
+	private static class RunReader {
+		
+		private DataInputStream input;
+		private long remaining;
+		private Copy copy;
+		
+		RunReader(File run, long size) throws IOException {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+			remaining = size;
+		}
+		
+		// read the next copy, returning false at the end of the run
+		boolean next() throws IOException {
+			
+			if(remaining == 0) {
+				copy = null;
+				return false;
+			}
+			
+			remaining--;
+			copy = new Copy(input.readUTF(), input.readInt(), input.readLong(), input.readBoolean(), input.readLong());
+			
+			return true;
+		}
+		
+		void close() throws IOException {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+
+import org.apache.commons.configuration.Configuration;
+import org.sqlite.Function;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * store the data of a deployment in an embedded SQLite database, so that the
+ * analysis can be undertaken on a laptop without a database server, the path to
+ * the database file is set by the db.database property
+ *
+ * the database uses a rollback journal rather than a write ahead log, as the
+ * write ahead log of the version of SQLite included with the driver can be
+ * corrupted when processes on the same host write to the database in turn,
+ * temporary tables and indexes, such as those used to sort and group rows, are
+ * held in memory, and the size of the page cache and of the memory mapped
+ * region are set by the db.cache.size and db.mmap.size properties, in megabytes
+ *
+ * SQLite allows one writer at a time, and the driver starts each transaction
+ * as deferred, so a transaction that reads before it writes fails at once if
+ * another connection is writing, as the busy timeout isn't used when a read
+ * lock is upgraded, the transactions of the connections are therefore started
+ * as immediate, which takes the write lock before anything is read and does
+ * wait for the busy timeout, and the connections in this process take turns
+ * to open a transaction so they don't wait on the busy timeout at all
+ *
+ * the UNIX_TIMESTAMP() function uses the clock of the host running the
+ * software, rather than that of a database server, so the workers sharing a
+ * database file must use the same clock, which they do when they run on the
+ * same host as the file
+ */
+public class SqliteStorageBackend implements StorageBackend {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default size of the page cache, in megabytes
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 64;
+	
+	/**
+	 * the default size of the memory mapped region, in megabytes
+	 */
+	public static final int DEFAULT_MMAP_SIZE = 256;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String[] REQUIRED_PROPERTIES = {"db.database"};
+	
+	// number of seconds to wait for a lock held by another process
+	private static final int LOCK_TIMEOUT = 300;
+	
+	// the turns taken by the writers in this process, by database file
+	private static final ConcurrentHashMap<String, Semaphore> WRITERS = new ConcurrentHashMap<String, Semaphore>();
+	
+	/*
+	 * private class level variables
+	 */
+	private Configuration config;
+	
+	/**
+	 * create the backend
+	 *
+	 * @param config a Configuration object with the path to the database file
+	 */
+	public SqliteStorageBackend(Configuration config) {
+		
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		this.config = config;
+	}
+	
+	@Override
+	public String[] getRequiredProperties() {
+		return REQUIRED_PROPERTIES.clone();
+	}
+	
+	@Override
+	public Connection getConnection() throws SQLException {
+		
+		String path = config.getString("db.database");
+		Connection connection = new SQLiteConfig().createConnection("jdbc:sqlite:" + path);
+		
+		try {
+			Statement statement = connection.createStatement();
+			
+			// the timeout applies to the connection, and is used as the busy timeout
+			statement.setQueryTimeout(LOCK_TIMEOUT);
+			
+			// set here rather than in the sqlite config, as the driver rejects pragmas that return a value
+			statement.execute("PRAGMA journal_mode = DELETE");
+			statement.execute("PRAGMA synchronous = NORMAL");
+			statement.execute("PRAGMA temp_store = MEMORY");
+			
+			ResultSet resultSet = statement.executeQuery("PRAGMA page_size");
+			resultSet.next();
+			long pageSize = resultSet.getLong(1);
+			resultSet.close();
+			
+			long cacheSize = config.getLong("db.cache.size", DEFAULT_CACHE_SIZE) * 1024 * 1024;
+			statement.execute("PRAGMA cache_size = " + Math.max(1, cacheSize / pageSize));
+			
+			// ignored by versions of sqlite without memory mapped i/o
+			long mmapSize = config.getLong("db.mmap.size", DEFAULT_MMAP_SIZE) * 1024 * 1024;
+			statement.execute("PRAGMA mmap_size = " + mmapSize);
+			
+			statement.close();
+			
+			// the functions provided by MySQL that are used by the tasks
+			Function.create(connection, "CRC32", new Crc32Function());
+			Function.create(connection, "UNIX_TIMESTAMP", new UnixTimestampFunction());
+			
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		
+		return (Connection) Proxy.newProxyInstance(SqliteStorageBackend.class.getClassLoader(), new Class<?>[] {Connection.class}, new ImmediateTransactions(connection, getWriters(path)));
+	}
+	
+	// get the turns of the writers to a database file
+	private static Semaphore getWriters(String path) {
+		
+		String key = new File(path).getAbsolutePath();
+		
+		try {
+			key = new File(path).getCanonicalPath();
+		} catch (IOException e) {
+			// the absolute path identifies the file well enough
+		}
+		
+		Semaphore writers = WRITERS.get(key);
+		
+		if(writers == null) {
+			WRITERS.putIfAbsent(key, new Semaphore(1));
+			writers = WRITERS.get(key);
+		}
+		
+		return writers;
+	}
+	
+	@Override
+	public String getIdentityColumn(String columnName) {
+		
+		// only a column declared exactly this way is set automatically
+		return columnName + " INTEGER PRIMARY KEY AUTOINCREMENT";
+	}
+	
+	@Override
+	public String getCharacterSet(String characterSet) {
+		return "";
+	}
+	
+	@Override
+	public String getInsertIgnore() {
+		return "INSERT OR IGNORE INTO";
+	}
+	
+	@Override
+	public Statement createScanStatement(Connection connection) throws SQLException {
+		
+		// the rows are always read from the database as they are requested
+		return connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+	
+	@Override
+	public PreparedStatement prepareScanStatement(Connection connection, String sql) throws SQLException {
+		return connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+	
+	@Override
+	public String getPlanQuery(String sql) {
+		return "EXPLAIN QUERY PLAN " + sql;
+	}
+	
+	/*
+	 * the checksum of a string, the same as the CRC32() function of MySQL for
+	 * a string in the utf8 character set
+	 */
+	private static class Crc32Function extends Function {
+		
+		@Override
+		protected void xFunc() throws SQLException {
+			
+			String value = value_text(0);
+			
+			if(value == null) {
+				result();
+				return;
+			}
+			
+			CRC32 crc = new CRC32();
+			
+			try {
+				crc.update(value.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			result(crc.getValue());
+		}
+	}
+	
+	/*
+	 * the current time, in seconds since the epoch, the same as the
+	 * UNIX_TIMESTAMP() function of MySQL without an argument
+	 */
+	private static class UnixTimestampFunction extends Function {
+		
+		@Override
+		protected void xFunc() throws SQLException {
+			result(System.currentTimeMillis() / 1000);
+		}
+	}
+	
+	/*
+	 * the transactions of a connection, which is left in auto commit mode in the
+	 * driver while the transactions are started and ended here, a transaction is
+	 * started as immediate when the first statement is executed after auto commit
+	 * is turned off or the previous transaction ended
+	 */
+	private static class ImmediateTransactions implements InvocationHandler {
+		
+		private Connection connection;
+		private Semaphore writers;
+		
+		private boolean autoCommit = true;
+		private boolean inTransaction = false;
+		
+		public ImmediateTransactions(Connection connection, Semaphore writers) {
+			this.connection = connection;
+			this.writers = writers;
+		}
+		
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			String name = method.getName();
+			
+			if(name.equals("getAutoCommit") == true) {
+				return autoCommit;
+			}
+			
+			if(name.equals("setAutoCommit") == true) {
+				
+				// turning on auto commit commits the transaction
+				if((Boolean) args[0] == true && inTransaction == true) {
+					endTransaction("COMMIT");
+				}
+				
+				autoCommit = (Boolean) args[0];
+				return null;
+			}
+			
+			if(name.equals("commit") == true || (name.equals("rollback") == true && args == null)) {
+				
+				if(autoCommit == true) {
+					throw new SQLException("the connection is in auto commit mode");
+				}
+				
+				endTransaction(name.equals("commit") == true ? "COMMIT" : "ROLLBACK");
+				return null;
+			}
+			
+			if(name.equals("close") == true && inTransaction == true) {
+				endTransaction("ROLLBACK");
+			}
+			
+			Object result;
+			
+			try {
+				result = method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			
+			// statements start a transaction when they are executed
+			if(result instanceof Statement) {
+				
+				final Statement statement = (Statement) result;
+				Class<?> type = statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+				
+				result = Proxy.newProxyInstance(SqliteStorageBackend.class.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+					
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						
+						if(method.getName().startsWith("execute") == true) {
+							beginTransaction();
+						}
+						
+						try {
+							return method.invoke(statement, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+			}
+			
+			return result;
+		}
+		
+		// start a transaction if one is required and isn't already open
+		private synchronized void beginTransaction() throws SQLException {
+			
+			if(autoCommit == true || inTransaction == true) {
+				return;
+			}
+			
+			try {
+				writers.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting to write to the database");
+			}
+			
+			try {
+				execute("BEGIN IMMEDIATE");
+			} catch (SQLException e) {
+				writers.release();
+				throw e;
+			}
+			
+			inTransaction = true;
+		}
+		
+		// end the open transaction, if there is one
+		private void endTransaction(String sql) throws SQLException {
+			
+			if(inTransaction == false) {
+				return;
+			}
+			
+			// a failed commit leaves the transaction open so it can be rolled back, a failed rollback means sqlite has already rolled it back
+			try {
+				execute(sql);
+			} catch (SQLException e) {
+				if(sql.equals("COMMIT") == true) {
+					throw e;
+				}
+			}
+			
+			inTransaction = false;
+			writers.release();
+		}
+		
+		private void execute(String sql) throws SQLException {
+			
+			Statement statement = connection.createStatement();
+			
+			try {
+				statement.execute(sql);
+			} finally {
+				statement.close();
+			}
+		}
+	}
+}
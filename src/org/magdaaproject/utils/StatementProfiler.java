@@ -0,0 +1,697 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.Configuration;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * profile the SQL statements executed on the connections to the
+ * database, recording the time taken and the number of rows returned by each
+ * statement, and capturing the plan of any statement slower than a threshold
+ * using the plan query of the storage backend
+ *
+ * statements are grouped by their text with the literal values replaced, so
+ * the same query built by concatenation for different devices is reported
+ * once, the time of a query includes the time spent fetching its rows but not
+ * the time spent by the task processing them, the plans are captured using a
+ * separate connection so the transactions and result sets of the task are not
+ * disturbed
+ *
+ * once started the profiler applies to every connection returned by
+ * DatabaseUtils.getConnection() in the application
+ */
+public class StatementProfiler {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the default threshold, in milliseconds, above which a statement is slow
+	 */
+	public static final long DEFAULT_THRESHOLD = 100;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String[] REPORT_HEADERS = {"run_start", "task", "rank", "statement", "executions", "slow_executions", "total_ms", "mean_ms", "max_ms", "rows_returned", "rows_examined_estimate", "plan"};
+	
+	// the literal values in a statement
+	private static final Pattern STRING_LITERALS = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+	private static final Pattern NUMBER_LITERALS = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern LITERAL_LISTS = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	
+	// the statements that can be explained
+	private static final Pattern EXPLAINABLE = Pattern.compile("^\\s*(?:select|update|delete)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	
+	/*
+	 * private class level variables
+	 */
+	private static volatile StatementProfiler profiler = null;
+	
+	private Configuration config;
+	private long thresholdNanos;
+	private long startTime;
+	
+	private volatile TaskMetrics metrics = null;
+	
+	private ConcurrentHashMap<String, StatementStatistics> statistics = new ConcurrentHashMap<String, StatementStatistics>();
+	
+	private Connection explainConnection = null;
+	
+	/*
+	 * create the profiler
+	 */
+	private StatementProfiler(Configuration config, long threshold) {
+		this.config = config;
+		thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold);
+		startTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * start profiling the statements executed on new connections
+	 *
+	 * @param config a Configuration object with details about the database
+	 * @param threshold the time, in milliseconds, above which a statement is slow and its plan is captured
+	 * @return the profiler
+	 */
+	public static synchronized StatementProfiler start(Configuration config, long threshold) {
+		
+		if(config == null) {
+			throw new IllegalArgumentException("the config parameter is required");
+		}
+		
+		if(threshold < 1) {
+			throw new IllegalArgumentException("the threshold must be at least 1 millisecond");
+		}
+		
+		if(profiler == null) {
+			profiler = new StatementProfiler(config, threshold);
+		}
+		
+		return profiler;
+	}
+	
+	/**
+	 * profile the statements executed on a connection, if the profiler has been started
+	 *
+	 * @param connection the connection to profile
+	 * @return a connection that profiles its statements, or the connection unchanged
+	 */
+	public static Connection profile(Connection connection) {
+		
+		StatementProfiler current = profiler;
+		
+		if(current == null || connection == null) {
+			return connection;
+		}
+		
+		return (Connection) wrap(Connection.class, current.new ConnectionHandler(connection));
+	}
+	
+	/**
+	 * set the metrics to which the time taken by each statement is added
+	 *
+	 * @param metrics the metrics of the task being profiled
+	 */
+	public void setMetrics(TaskMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * append a report of the slow statements to a CSV file, ranked by the total
+	 * time taken by all executions of each statement, writing the header if the
+	 * file is new
+	 *
+	 * @param reportFile the file to append to
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeReport(File reportFile) throws IOException {
+		
+		ArrayList<StatementStatistics> slowStatements = new ArrayList<StatementStatistics>();
+		
+		for(StatementStatistics statement : statistics.values()) {
+			synchronized(statement) {
+				if(statement.slowExecutions > 0) {
+					slowStatements.add(statement);
+				}
+			}
+		}
+		
+		Collections.sort(slowStatements, new Comparator<StatementStatistics>() {
+			public int compare(StatementStatistics first, StatementStatistics second) {
+				return Long.valueOf(second.getTotalNanos()).compareTo(first.getTotalNanos());
+			}
+		});
+		
+		boolean isNew = reportFile.exists() == false || reportFile.length() == 0;
+		
+		CSVWriter writer = new CSVWriter(new FileWriter(reportFile, true), ',');
+		
+		try {
+			if(isNew == true) {
+				writer.writeNext(REPORT_HEADERS);
+			}
+			
+			TaskMetrics currentMetrics = metrics;
+			String taskName = currentMetrics == null ? "" : currentMetrics.getTaskName();
+			
+			String[] values = new String[REPORT_HEADERS.length];
+			int rank = 1;
+			
+			for(StatementStatistics statement : slowStatements) {
+				
+				synchronized(statement) {
+					values[0] = Long.toString(startTime);
+					values[1] = taskName;
+					values[2] = Integer.toString(rank);
+					values[3] = statement.statement;
+					values[4] = Long.toString(statement.executions);
+					values[5] = Long.toString(statement.slowExecutions);
+					values[6] = Long.toString(TimeUnit.NANOSECONDS.toMillis(statement.totalNanos));
+					values[7] = Long.toString(TimeUnit.NANOSECONDS.toMillis(statement.totalNanos / statement.executions));
+					values[8] = Long.toString(TimeUnit.NANOSECONDS.toMillis(statement.maxNanos));
+					values[9] = Long.toString(statement.rowsReturned);
+					values[10] = statement.rowsExamined == null ? "" : Long.toString(statement.rowsExamined);
+					values[11] = statement.plan == null ? "" : statement.plan;
+				}
+				
+				writer.writeNext(values);
+				rank++;
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * close the connection used to capture plans
+	 */
+	public synchronized void close() {
+		
+		if(explainConnection != null) {
+			try {
+				explainConnection.close();
+			} catch (SQLException e) {
+				// the connection is no longer required
+			}
+			
+			explainConnection = null;
+		}
+	}
+	
+	/**
+	 * replace the literal values in a statement so that statements which differ
+	 * only by their values are grouped together
+	 *
+	 * @param sql the text of the statement
+	 * @return the text with each literal value replaced by ?
+	 */
+	public static String normalise(String sql) {
+		
+		String normalised = STRING_LITERALS.matcher(sql).replaceAll("?");
+		normalised = NUMBER_LITERALS.matcher(normalised).replaceAll("?");
+		normalised = LITERAL_LISTS.matcher(normalised).replaceAll("(?, ...)");
+		
+		return WHITESPACE.matcher(normalised).replaceAll(" ").trim();
+	}
+	
+	/*
+	 * record an execution of a statement, capturing its plan the first time
+	 * the statement is slow
+	 */
+	private void record(String sql, long elapsedNanos, long rows) {
+		
+		TaskMetrics currentMetrics = metrics;
+		
+		if(currentMetrics != null) {
+			currentMetrics.recordDuration("sql.execute", elapsedNanos);
+			currentMetrics.add("sql.rows.returned", rows);
+		}
+		
+		String key = normalise(sql);
+		
+		StatementStatistics statement = statistics.get(key);
+		
+		if(statement == null) {
+			statistics.putIfAbsent(key, new StatementStatistics(key));
+			statement = statistics.get(key);
+		}
+		
+		boolean isSlow = elapsedNanos >= thresholdNanos;
+		boolean capturePlan = false;
+		
+		synchronized(statement) {
+			statement.executions++;
+			statement.totalNanos += elapsedNanos;
+			statement.maxNanos = Math.max(statement.maxNanos, elapsedNanos);
+			statement.rowsReturned += rows;
+			
+			if(isSlow == true) {
+				statement.slowExecutions++;
+				
+				if(statement.explained == false) {
+					statement.explained = true;
+					capturePlan = true;
+				}
+			}
+		}
+		
+		if(capturePlan == true) {
+			explain(statement, sql);
+		}
+	}
+	
+	/*
+	 * capture the plan of a statement, and estimate the number of rows it
+	 * examines from the product of the rows examined by each step of the plan
+	 */
+	private synchronized void explain(StatementStatistics statement, String sql) {
+		
+		if(EXPLAINABLE.matcher(sql).matches() == false) {
+			synchronized(statement) {
+				statement.plan = "not captured, only select, update and delete statements can be explained";
+			}
+			return;
+		}
+		
+		StringBuilder plan = new StringBuilder();
+		Long rowsExamined = null;
+		
+		Statement explainStatement = null;
+		
+		try {
+			if(explainConnection == null) {
+				explainConnection = getTarget(DatabaseUtils.getConnection(config));
+			}
+			
+			explainStatement = explainConnection.createStatement();
+			ResultSet resultSet = explainStatement.executeQuery(DatabaseUtils.getStorageBackend(config).getPlanQuery(sql));
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			
+			while(resultSet.next() == true) {
+				
+				if(plan.length() > 0) {
+					plan.append("; ");
+				}
+				
+				for(int i = 1; i <= metaData.getColumnCount(); i++) {
+					
+					String value = resultSet.getString(i);
+					
+					if(value == null) {
+						continue;
+					}
+					
+					plan.append(metaData.getColumnLabel(i)).append('=').append(value).append(' ');
+					
+					if(metaData.getColumnLabel(i).equalsIgnoreCase("rows") == true) {
+						try {
+							long rows = Long.parseLong(value);
+							rowsExamined = rowsExamined == null ? rows : multiply(rowsExamined, rows);
+						} catch (NumberFormatException e) {
+							// the plan of this step has no estimate
+						}
+					}
+				}
+				
+				plan.setLength(plan.length() - 1);
+			}
+			
+			resultSet.close();
+		} catch (SQLException e) {
+			plan.setLength(0);
+			plan.append("not captured, " + e.getMessage());
+			rowsExamined = null;
+		} finally {
+			if(explainStatement != null) {
+				try {
+					explainStatement.close();
+				} catch (SQLException e) {
+					// the statement is no longer required
+				}
+			}
+		}
+		
+		synchronized(statement) {
+			statement.plan = plan.toString();
+			statement.rowsExamined = rowsExamined;
+		}
+	}
+	
+	// multiply two estimates without overflowing
+	private static long multiply(long first, long second) {
+		
+		if(first != 0 && second > Long.MAX_VALUE / first) {
+			return Long.MAX_VALUE;
+		}
+		
+		return first * second;
+	}
+	
+	// substitute the parameters of a prepared statement so that it can be explained
+	private static String bindParameters(String sql, TreeMap<Integer, Object> parameters) {
+		
+		StringBuilder bound = new StringBuilder();
+		boolean inString = false;
+		int index = 1;
+		
+		for(int i = 0; i < sql.length(); i++) {
+			
+			char character = sql.charAt(i);
+			
+			if(character == '\'') {
+				inString = !inString;
+			}
+			
+			if(character == '?' && inString == false) {
+				
+				Object value = parameters.get(index++);
+				
+				if(value == null) {
+					bound.append("NULL");
+				} else if(value instanceof Number || value instanceof Boolean) {
+					bound.append(value);
+				} else {
+					bound.append('\'').append(value.toString().replace("\\", "\\\\").replace("'", "''")).append('\'');
+				}
+			} else {
+				bound.append(character);
+			}
+		}
+		
+		return bound.toString();
+	}
+	
+	// the connection underneath a profiled connection
+	private static Connection getTarget(Connection connection) {
+		
+		if(Proxy.isProxyClass(connection.getClass()) == true && Proxy.getInvocationHandler(connection) instanceof StatementProfiler.ConnectionHandler) {
+			return ((ConnectionHandler) Proxy.getInvocationHandler(connection)).connection;
+		}
+		
+		return connection;
+	}
+	
+	// create a proxy for a JDBC interface
+	private static Object wrap(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(StatementProfiler.class.getClassLoader(), new Class<?>[] {type}, handler);
+	}
+	
+	// invoke a method on the object underneath a proxy, passing on any exception it throws
+	private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/*
+	 * the statistics of all executions of a statement
+	 */
+	private static class StatementStatistics {
+		
+		private String statement;
+		
+		private long executions = 0;
+		private long slowExecutions = 0;
+		private long totalNanos = 0;
+		private long maxNanos = 0;
+		private long rowsReturned = 0;
+		
+		private boolean explained = false;
+		private String plan = null;
+		private Long rowsExamined = null;
+		
+		public StatementStatistics(String statement) {
+			this.statement = statement;
+		}
+		
+		public synchronized long getTotalNanos() {
+			return totalNanos;
+		}
+	}
+	
+	/*
+	 * an execution of a statement, which for a query lasts until its rows have
+	 * been read or its result set is closed
+	 */
+	private class Execution {
+		
+		private String sql;
+		private long elapsedNanos = 0;
+		private long rows = 0;
+		private boolean finished = false;
+		
+		public Execution(String sql) {
+			this.sql = sql;
+		}
+		
+		public void finish() {
+			if(finished == false) {
+				finished = true;
+				record(sql, elapsedNanos, rows);
+			}
+		}
+	}
+	
+	/*
+	 * wrap the statements created by a connection
+	 */
+	private class ConnectionHandler implements InvocationHandler {
+		
+		private Connection connection;
+		
+		public ConnectionHandler(Connection connection) {
+			this.connection = connection;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			Object result = invokeTarget(connection, method, args);
+			
+			if(result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType()) == true) {
+				
+				// the text of a prepared statement is known when it is prepared
+				String sql = method.getName().startsWith("prepare") == true ? (String) args[0] : null;
+				
+				return wrap(method.getReturnType(), new StatementHandler((Statement) result, sql));
+			}
+			
+			return result;
+		}
+	}
+	
+	/*
+	 * time the executions of a statement
+	 */
+	private class StatementHandler implements InvocationHandler {
+		
+		private Statement statement;
+		private String preparedSql;
+		private String batchSql = null;
+		
+		private TreeMap<Integer, Object> parameters = new TreeMap<Integer, Object>();
+		
+		private Execution current = null;
+		
+		public StatementHandler(Statement statement, String preparedSql) {
+			this.statement = statement;
+			this.preparedSql = preparedSql;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			String name = method.getName();
+			
+			// remember the parameters of a prepared statement
+			if(preparedSql != null && name.startsWith("set") == true && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				parameters.put((Integer) args[0], name.equals("setNull") == true ? null : args[1]);
+			} else if(name.equals("clearParameters") == true) {
+				parameters.clear();
+			} else if(name.equals("addBatch") == true && args != null && batchSql == null) {
+				batchSql = (String) args[0];
+			}
+			
+			if(name.equals("executeQuery") == true || name.equals("execute") == true || name.equals("executeUpdate") == true) {
+				return execute(method, args);
+			}
+			
+			if(name.equals("executeBatch") == true) {
+				
+				finishCurrent();
+				
+				String sql = preparedSql != null ? preparedSql : batchSql;
+				batchSql = null;
+				
+				long start = System.nanoTime();
+				int[] counts = (int[]) invokeTarget(statement, method, args);
+				long elapsed = System.nanoTime() - start;
+				
+				long rows = 0;
+				
+				for(int count : counts) {
+					rows += Math.max(0, count);
+				}
+				
+				// the plan of a batch isn't captured as only its last parameters are known
+				Execution execution = new Execution("batch: " + sql);
+				execution.elapsedNanos = elapsed;
+				execution.rows = rows;
+				execution.finish();
+				
+				return counts;
+			}
+			
+			if(name.equals("getResultSet") == true) {
+				
+				Object result = invokeTarget(statement, method, args);
+				
+				if(result != null && current != null && current.finished == false) {
+					return wrap(ResultSet.class, new ResultSetHandler((ResultSet) result, current));
+				}
+				
+				return result;
+			}
+			
+			if(name.equals("close") == true) {
+				finishCurrent();
+			}
+			
+			return invokeTarget(statement, method, args);
+		}
+		
+		// time an execution of the statement
+		private Object execute(Method method, Object[] args) throws Throwable {
+			
+			finishCurrent();
+			
+			String sql;
+			
+			if(args != null && args.length > 0 && args[0] instanceof String) {
+				sql = (String) args[0];
+			} else if(parameters.isEmpty() == true) {
+				sql = preparedSql;
+			} else {
+				sql = bindParameters(preparedSql, parameters);
+			}
+			
+			Execution execution = new Execution(sql);
+			
+			long start = System.nanoTime();
+			Object result = invokeTarget(statement, method, args);
+			execution.elapsedNanos = System.nanoTime() - start;
+			
+			if(result instanceof ResultSet) {
+				current = execution;
+				return wrap(ResultSet.class, new ResultSetHandler((ResultSet) result, execution));
+			}
+			
+			if(result instanceof Integer) {
+				execution.rows = Math.max(0, (Integer) result);
+				execution.finish();
+			} else if(Boolean.TRUE.equals(result) == true) {
+				
+				// the result set is read using getResultSet
+				current = execution;
+			} else {
+				execution.rows = Math.max(0, statement.getUpdateCount());
+				execution.finish();
+			}
+			
+			return result;
+		}
+		
+		// finish the previous execution, as a new execution closes its result set
+		private void finishCurrent() {
+			
+			if(current != null) {
+				current.finish();
+				current = null;
+			}
+		}
+	}
+	
+	/*
+	 * count the rows of a result set and the time spent fetching them
+	 */
+	private class ResultSetHandler implements InvocationHandler {
+		
+		private ResultSet resultSet;
+		private Execution execution;
+		
+		public ResultSetHandler(ResultSet resultSet, Execution execution) {
+			this.resultSet = resultSet;
+			this.execution = execution;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			String name = method.getName();
+			
+			if(name.equals("next") == true) {
+				
+				long start = System.nanoTime();
+				Object result = invokeTarget(resultSet, method, args);
+				execution.elapsedNanos += System.nanoTime() - start;
+				
+				if(Boolean.TRUE.equals(result) == true) {
+					execution.rows++;
+				} else {
+					execution.finish();
+				}
+				
+				return result;
+			}
+			
+			if(name.equals("close") == true) {
+				execution.finish();
+			}
+			
+			return invokeTarget(resultSet, method, args);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * a database used to store the data of a deployment, such as a MySQL server or
+ * an embedded database in a local file
+ *
+ * the tasks use the same SQL with every backend, so a backend provides the
+ * parts of the SQL that differ between databases, and a connection on which the
+ * CRC32() and UNIX_TIMESTAMP() functions used by the tasks are available, the
+ * backend is chosen by the db.backend property, and an implementation of this
+ * interface with a constructor that takes a Configuration object can be used by
+ * setting the property to the name of its class
+ */
+public interface StorageBackend {
+	
+	/**
+	 * return the properties that must be set to use the backend
+	 *
+	 * @return the names of the required properties
+	 */
+	public String[] getRequiredProperties();
+	
+	/**
+	 * open a connection to the database, with the settings that suit the tasks
+	 *
+	 * @return a connection to the database
+	 * @throws SQLException if something bad happens
+	 */
+	public Connection getConnection() throws SQLException;
+	
+	/**
+	 * return the definition of a column which is the primary key of a table and
+	 * is set automatically when a row is inserted
+	 *
+	 * @param columnName the name of the column
+	 * @return the definition of the column, for use in a CREATE TABLE statement
+	 */
+	public String getIdentityColumn(String columnName);
+	
+	/**
+	 * return the clause that sets the character set of a table or column
+	 *
+	 * @param characterSet the name of the character set, such as utf8 or ascii
+	 * @return the clause, including a leading space, or an empty string if the database has a single character set
+	 */
+	public String getCharacterSet(String characterSet);
+	
+	/**
+	 * return the start of an INSERT statement which skips rows that would duplicate a key
+	 *
+	 * @return the start of the statement, up to and including INTO
+	 */
+	public String getInsertIgnore();
+	
+	/**
+	 * create a statement for a scan which reads the rows of a query in order,
+	 * without holding the entire result set in memory
+	 *
+	 * @param connection a connection to the database
+	 * @return a forward only, read only statement
+	 * @throws SQLException if something bad happens
+	 */
+	public Statement createScanStatement(Connection connection) throws SQLException;
+	
+	/**
+	 * prepare a statement for a scan which reads the rows of a query in order,
+	 * without holding the entire result set in memory
+	 *
+	 * @param connection a connection to the database
+	 * @param sql the query
+	 * @return a forward only, read only prepared statement
+	 * @throws SQLException if something bad happens
+	 */
+	public PreparedStatement prepareScanStatement(Connection connection, String sql) throws SQLException;
+	
+	/**
+	 * return the query that describes how the database will execute a statement
+	 *
+	 * @param sql the statement
+	 * @return a query returning the plan of the statement
+	 */
+	public String getPlanQuery(String sql);
+}
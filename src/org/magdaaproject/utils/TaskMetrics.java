@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * a registry of the metrics recorded by a task
+ *
+ * counters record totals such as the number of rows read or written, gauges
+ * record the current value of something such as the depth of a queue, and
+ * timers record the latency of each call to something such as a statement, in
+ * microseconds, in a histogram
+ *
+ * while a task runs the metrics are available over JMX as the attributes of a
+ * single MBean, and once it is complete a summary can be appended to a CSV file
+ * so that the performance of tasks can be compared across runs, all methods are
+ * safe to call from several threads
+ */
+public class TaskMetrics implements DynamicMBean {
+	
+	/*
+	 * public class level constants
+	 */
+	/**
+	 * the domain of the names of the MBeans
+	 */
+	public static final String JMX_DOMAIN = "org.magdaaproject.analysis.rhizome";
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// quantiles of the timers that are reported
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99"};
+	
+	private static final String[] SUMMARY_HEADERS = {"run_start", "task", "metric", "type", "count", "value", "min", "p50", "p90", "p99", "max"};
+	
+	/*
+	 * private class level variables
+	 */
+	private String taskName;
+	private long startTime;
+	
+	private ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentHashMap<String, LogHistogram> timers = new ConcurrentHashMap<String, LogHistogram>();
+	
+	private ObjectName objectName = null;
+	
+	/**
+	 * create a registry for a task
+	 *
+	 * @param taskName the name of the task
+	 */
+	public TaskMetrics(String taskName) {
+		
+		if(StringUtils.isEmpty(taskName) == true) {
+			throw new IllegalArgumentException("the task name is required");
+		}
+		
+		this.taskName = taskName;
+		startTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * add one to a counter
+	 *
+	 * @param name the name of the counter
+	 */
+	public void increment(String name) {
+		add(name, 1);
+	}
+	
+	/**
+	 * add an amount to a counter
+	 *
+	 * @param name the name of the counter
+	 * @param amount the amount to add
+	 */
+	public void add(String name, long amount) {
+		getValue(counters, name).addAndGet(amount);
+	}
+	
+	/**
+	 * set the current value of a gauge
+	 *
+	 * @param name the name of the gauge
+	 * @param value the current value
+	 */
+	public void setGauge(String name, long value) {
+		getValue(gauges, name).set(value);
+	}
+	
+	/**
+	 * record the time taken by a call, from the time it started until now
+	 *
+	 * @param name the name of the timer
+	 * @param startNanos the value of System.nanoTime() when the call started
+	 */
+	public void recordTime(String name, long startNanos) {
+		recordDuration(name, System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * record the time taken by a call that has been measured by the caller
+	 *
+	 * @param name the name of the timer
+	 * @param nanos the time taken, in nanoseconds
+	 */
+	public void recordDuration(String name, long nanos) {
+		
+		LogHistogram timer = timers.get(name);
+		
+		if(timer == null) {
+			timers.putIfAbsent(name, new LogHistogram());
+			timer = timers.get(name);
+		}
+		
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		
+		synchronized(timer) {
+			timer.record(micros);
+		}
+	}
+	
+	/**
+	 * return the value of a counter
+	 *
+	 * @param name the name of the counter
+	 * @return the value, or zero if nothing has been counted
+	 */
+	public long getCount(String name) {
+		
+		AtomicLong value = counters.get(name);
+		
+		return value == null ? 0 : value.get();
+	}
+	
+	/**
+	 * return the name of the task
+	 *
+	 * @return the name of the task
+	 */
+	public String getTaskName() {
+		return taskName;
+	}
+	
+	/**
+	 * make the metrics available over JMX
+	 *
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public void register() throws JMException {
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		
+		objectName = new ObjectName(JMX_DOMAIN + ":type=TaskMetrics,name=" + ObjectName.quote(taskName));
+		
+		// a task may be run more than once in the same process
+		if(server.isRegistered(objectName) == true) {
+			server.unregisterMBean(objectName);
+		}
+		
+		server.registerMBean(this, objectName);
+	}
+	
+	/**
+	 * stop making the metrics available over JMX
+	 *
+	 * @throws JMException if the MBean cannot be unregistered
+	 */
+	public void unregister() throws JMException {
+		
+		if(objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+	
+	/**
+	 * append a summary of the metrics to a CSV file, writing the header if the file is new
+	 *
+	 * @param summaryFile the file to append to
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeSummary(File summaryFile) throws IOException {
+		
+		boolean isNew = summaryFile.exists() == false || summaryFile.length() == 0;
+		
+		CSVWriter writer = new CSVWriter(new FileWriter(summaryFile, true), ',');
+		
+		try {
+			if(isNew == true) {
+				writer.writeNext(SUMMARY_HEADERS);
+			}
+			
+			String[] values = new String[SUMMARY_HEADERS.length];
+			
+			writeRow(writer, values, "task.elapsed", "time_ms", "", Long.toString(System.currentTimeMillis() - startTime));
+			
+			for(String name : getSortedNames(counters)) {
+				writeRow(writer, values, name, "counter", "", Long.toString(counters.get(name).get()));
+			}
+			
+			for(String name : getSortedNames(gauges)) {
+				writeRow(writer, values, name, "gauge", "", Long.toString(gauges.get(name).get()));
+			}
+			
+			for(String name : getSortedNames(timers)) {
+				
+				LogHistogram timer = timers.get(name);
+				
+				synchronized(timer) {
+					values[0] = Long.toString(startTime);
+					values[1] = taskName;
+					values[2] = name;
+					values[3] = "time_us";
+					values[4] = Long.toString(timer.getCount());
+					values[5] = "";
+					values[6] = Long.toString(timer.getMin());
+					
+					for(int i = 0; i < QUANTILES.length; i++) {
+						values[7 + i] = Long.toString(timer.getValueAtQuantile(QUANTILES[i]));
+					}
+					
+					values[10] = Long.toString(timer.getMax());
+				}
+				
+				writer.writeNext(values);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/*
+	 * the DynamicMBean interface, each counter and gauge is an attribute, and
+	 * each timer is a set of attributes for its count, quantiles and maximum
+	 */
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		
+		if(attribute.equals("task.elapsed_ms") == true) {
+			return System.currentTimeMillis() - startTime;
+		}
+		
+		if(counters.containsKey(attribute) == true) {
+			return counters.get(attribute).get();
+		}
+		
+		if(gauges.containsKey(attribute) == true) {
+			return gauges.get(attribute).get();
+		}
+		
+		int separator = attribute.lastIndexOf('.');
+		
+		if(separator != -1 && timers.containsKey(attribute.substring(0, separator)) == true) {
+			
+			LogHistogram timer = timers.get(attribute.substring(0, separator));
+			String statistic = attribute.substring(separator + 1);
+			
+			synchronized(timer) {
+				if(statistic.equals("count") == true) {
+					return timer.getCount();
+				}
+				
+				if(statistic.equals("max_us") == true) {
+					return timer.getMax();
+				}
+				
+				for(int i = 0; i < QUANTILES.length; i++) {
+					if(statistic.equals(QUANTILE_NAMES[i] + "_us") == true) {
+						return timer.getValueAtQuantile(QUANTILES[i]);
+					}
+				}
+			}
+		}
+		
+		throw new AttributeNotFoundException("unknown metric '" + attribute + "'");
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		
+		AttributeList list = new AttributeList();
+		
+		for(String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// the attributes that can't be found are left out of the list
+			}
+		}
+		
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("the metrics are read only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "the metrics have no operations");
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		
+		// the attributes change as metrics are first recorded
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		
+		attributes.add(getAttributeInfo("task.elapsed_ms", "time since the task started, in milliseconds"));
+		
+		for(String name : getSortedNames(counters)) {
+			attributes.add(getAttributeInfo(name, "counter"));
+		}
+		
+		for(String name : getSortedNames(gauges)) {
+			attributes.add(getAttributeInfo(name, "gauge"));
+		}
+		
+		for(String name : getSortedNames(timers)) {
+			attributes.add(getAttributeInfo(name + ".count", "number of calls"));
+			
+			for(String quantile : QUANTILE_NAMES) {
+				attributes.add(getAttributeInfo(name + "." + quantile + "_us", "latency at the " + quantile + " quantile, in microseconds"));
+			}
+			
+			attributes.add(getAttributeInfo(name + ".max_us", "maximum latency, in microseconds"));
+		}
+		
+		return new MBeanInfo(getClass().getName(), "metrics of the " + taskName + " task", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+	
+	// describe a read only attribute
+	private static MBeanAttributeInfo getAttributeInfo(String name, String description) {
+		return new MBeanAttributeInfo(name, "java.lang.Long", description, true, false, false);
+	}
+	
+	// write a row of the summary for a counter, gauge or the elapsed time
+	private void writeRow(CSVWriter writer, String[] values, String name, String type, String count, String value) {
+		
+		values[0] = Long.toString(startTime);
+		values[1] = taskName;
+		values[2] = name;
+		values[3] = type;
+		values[4] = count;
+		values[5] = value;
+		
+		for(int i = 6; i < values.length; i++) {
+			values[i] = "";
+		}
+		
+		writer.writeNext(values);
+	}
+	
+	// get a value from a map, adding it if required
+	private static AtomicLong getValue(ConcurrentHashMap<String, AtomicLong> map, String name) {
+		
+		AtomicLong value = map.get(name);
+		
+		if(value == null) {
+			map.putIfAbsent(name, new AtomicLong());
+			value = map.get(name);
+		}
+		
+		return value;
+	}
+	
+	// the names in a map in a stable order
+	private static List<String> getSortedNames(Map<String, ?> map) {
+		
+		ArrayList<String> names = new ArrayList<String>(map.keySet());
+		Collections.sort(names);
+		
+		return names;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 The MaGDAA Project
+ *
+ * This file is part of the MaGDAA Rhizome Analysis software
+ *
+ * MaGDAA Rhizome Analysis software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.magdaaproject.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * a phase of a task, such as scanning a dataset or importing a device, which
+ * is recorded as an event by the Java Flight Recorder so that the time taken by
+ * each phase can be seen alongside the rest of a recording
+ *
+ * the events are only recorded while a recording is running, either one
+ * started with startRecording() or one attached to the JVM with jcmd, and
+ * phases do nothing on a JVM without the flight recorder
+ */
+public class TaskPhase {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final boolean RECORDER_AVAILABLE = isRecorderAvailable();
+	
+	/*
+	 * private class level variables
+	 */
+	private PhaseEvent event = null;
+	
+	/*
+	 * start a phase
+	 */
+	private TaskPhase(String taskName, String phase, String tableName) {
+		
+		if(RECORDER_AVAILABLE == true) {
+			event = new PhaseEvent();
+			event.task = taskName;
+			event.phase = phase;
+			event.tableName = tableName;
+			event.begin();
+		}
+	}
+	
+	/**
+	 * start a phase of a task
+	 *
+	 * @param taskName the name of the task
+	 * @param phase the name of the phase, for example device.import
+	 * @param tableName the name of the table the phase works with, or null
+	 * @return the phase, which must be ended
+	 */
+	public static TaskPhase begin(String taskName, String phase, String tableName) {
+		
+		if(StringUtils.isEmpty(taskName) == true || StringUtils.isEmpty(phase) == true) {
+			throw new IllegalArgumentException("the task and phase names are required");
+		}
+		
+		return new TaskPhase(taskName, phase, tableName);
+	}
+	
+	/**
+	 * set the id of the device the phase works with
+	 *
+	 * @param deviceId the id of the device
+	 * @return this phase
+	 */
+	public TaskPhase setDeviceId(String deviceId) {
+		
+		if(event != null) {
+			event.deviceId = deviceId;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * set the number of rows read or written by the phase
+	 *
+	 * @param rowCount the number of rows
+	 * @return this phase
+	 */
+	public TaskPhase setRowCount(long rowCount) {
+		
+		if(event != null) {
+			event.rowCount = rowCount;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * end the phase, recording it if a recording is running, a phase that
+	 * failed is recorded in the same way as one that succeeded
+	 */
+	public void end() {
+		
+		if(event != null) {
+			event.end();
+			
+			if(event.shouldCommit() == true) {
+				event.commit();
+			}
+			
+			event = null;
+		}
+	}
+	
+	/**
+	 * start a flight recording using the profile settings, which is written to
+	 * a file when the application exits
+	 *
+	 * @param destination the file to write the recording to
+	 * @throws IOException if the recording cannot be started
+	 */
+	public static void startRecording(File destination) throws IOException {
+		
+		if(destination == null) {
+			throw new IllegalArgumentException("the destination parameter is required");
+		}
+		
+		if(RECORDER_AVAILABLE == false) {
+			throw new IOException("the flight recorder isn't available in this JVM, Java 11 or later is required");
+		}
+		
+		Recording recording;
+		
+		try {
+			recording = new Recording(Configuration.getConfiguration("profile"));
+		} catch (ParseException e) {
+			throw new IOException("unable to read the profile settings of the flight recorder", e);
+		}
+		
+		recording.setName("rhizome-analysis");
+		recording.enable(PhaseEvent.class);
+		recording.setDestination(destination.toPath());
+		
+		// the tasks exit the application directly, so the recording is written as it exits
+		recording.setDumpOnExit(true);
+		recording.start();
+	}
+	
+	// check if the classes of the flight recorder are available
+	private static boolean isRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}